@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+/**
+ * Failure to capture a toolchain, classified so that the controller can
+ * decide whether trying again may help
+ */
+class CaptureException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Reason a capture failed
+     */
+    enum Kind {
+
+        /**
+         * Visual Studio is not registered on the agent
+         */
+        REGISTRY_MISS(false),
+
+        /**
+         * Visual Studio is registered but vcvarsall is missing
+         */
+        MISSING_SCRIPT(false),
+
+        /**
+         * The agent or installation cannot provide the toolchain
+         */
+        UNSUPPORTED(false),
+
+        /**
+         * vcvarsall reported an error, which running it again does not fix
+         */
+        NONZERO_EXIT(false),
+
+        /**
+         * vcvarsall did not finish in time
+         */
+        TIMEOUT(true),
+
+        /**
+         * The output of vcvarsall could not be read completely
+         */
+        PARSE_ERROR(true),
+
+        /**
+         * The process or a file could not be accessed
+         */
+        IO_ERROR(true),
+
+        /**
+         * Any other failure
+         */
+        UNKNOWN(false);
+
+        private final boolean mTransient;
+
+        Kind(boolean transient_) {
+            mTransient = transient_;
+        }
+
+        /**
+         * Determine if the failure may go away by trying again
+         * @return true if the capture should be retried
+         */
+        boolean isTransient() {
+            return mTransient;
+        }
+    }
+
+    private final Kind mKind;
+
+    CaptureException(Kind kind, String message) {
+        super(message);
+        mKind = kind;
+    }
+
+    Kind getKind() {
+        return mKind;
+    }
+}
@@ -0,0 +1,84 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.remoting.Channel;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Environments captured on this agent, kept in memory for reuse
+ *
+ * The memo is cleared when the connection the captures arrived on closes, and
+ * captures made outside of a connection are not kept. It is bounded to the
+ * most recently used toolchains. Entries are keyed by fingerprint, so a
+ * changed toolchain is never served from the memo.
+ */
+final class CaptureMemo {
+
+    private static final int MAX_ENTRIES = 16;
+
+    private static final Map<String, CapturedEnvironment> ENTRIES =
+            new LinkedHashMap<String, CapturedEnvironment>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CapturedEnvironment> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private static Channel sChannel;
+
+    private CaptureMemo() {
+    }
+
+    static synchronized CapturedEnvironment get(String fingerprint) {
+        return ENTRIES.get(fingerprint);
+    }
+
+    /**
+     * Keep an environment until the connection closes
+     * @param fingerprint fingerprint ID of the toolchain
+     * @param environment captured environment
+     * @param channel connection the capture arrived on, null if there is none
+     */
+    static synchronized void put(String fingerprint, CapturedEnvironment environment, Channel channel) {
+        if (channel != null && watchChannel(channel)) {
+            ENTRIES.put(fingerprint, environment);
+        }
+    }
+
+    static synchronized int size() {
+        return ENTRIES.size();
+    }
+
+    static synchronized void clear() {
+        ENTRIES.clear();
+    }
+
+    /**
+     * Make sure the memo is cleared along with a connection
+     * @param channel connection the capture arrived on
+     * @return false if that connection is already closing
+     */
+    private static boolean watchChannel(Channel channel) {
+        if (channel == sChannel) {
+            return true;
+        }
+        if (channel.isClosingOrClosed()) {
+            return false;
+        }
+        sChannel = channel;
+        channel.addListener(new Channel.Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                clear();
+            }
+        });
+        // The connection may have closed before the listener was added
+        if (channel.isClosingOrClosed()) {
+            clear();
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,172 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import com.codahale.metrics.MetricRegistry;
+import jenkins.metrics.api.Metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records capture timings with the Metrics plugin and keeps the most recent
+ * timings of each node for display on its page
+ *
+ * Timers are named vcvarsall.&lt;version&gt;.&lt;arch&gt;.&lt;phase&gt; so that
+ * toolchains can be compared across the fleet. Dots in the version and
+ * architecture are replaced by underscores, so that "15.0" stays a single
+ * component of the name.
+ */
+class CaptureMetrics {
+
+    /**
+     * Timings of a single toolchain as seen from the controller
+     */
+    public static class Sample {
+
+        private final String mToolchain;
+        private final CaptureTimings mTimings;
+        private final long mRoundTripMillis;
+
+        Sample(String toolchain, CaptureTimings timings, long roundTripMillis) {
+            mToolchain = toolchain;
+            mTimings = timings;
+            mRoundTripMillis = roundTripMillis;
+        }
+
+        public String getToolchain() {
+            return mToolchain;
+        }
+
+        public String getSource() {
+            return mTimings.getSource() == null ? "" : mTimings.getSource().name().toLowerCase(Locale.ENGLISH);
+        }
+
+        public long getRegistryMillis() {
+            return mTimings.getRegistryMillis();
+        }
+
+        public long getResolveMillis() {
+            return mTimings.getResolveMillis();
+        }
+
+        public long getSpawnMillis() {
+            return mTimings.getSpawnMillis();
+        }
+
+        public long getProcessMillis() {
+            return mTimings.getProcessMillis();
+        }
+
+        public long getParseMillis() {
+            return mTimings.getParseMillis();
+        }
+
+        public long getAgentMillis() {
+            return mTimings.getTotalMillis();
+        }
+
+        /**
+         * Time spent on the channel, including serialization (toolchains
+         * captured together share a single round trip)
+         * @return round trip time not accounted for on the agent
+         */
+        public long getTransferMillis() {
+            return Math.max(0, mRoundTripMillis - mTimings.getTotalMillis());
+        }
+    }
+
+    private static final ConcurrentMap<String, Map<String, Sample>> LATEST = new ConcurrentHashMap<>();
+
+    private CaptureMetrics() {
+    }
+
+    /**
+     * Record the timings of a capture
+     * @param nodeName node the capture ran on
+     * @param version Visual Studio version
+     * @param arch target architecture
+     * @param timings timings reported by the agent
+     * @param roundTripMillis time the controller waited for the result
+     */
+    static void record(String nodeName, String version, String arch, CaptureTimings timings,
+                       long roundTripMillis) {
+        Sample sample = new Sample(Toolchain.key(version, arch), timings, roundTripMillis);
+        update(version, arch, "registry", sample.getRegistryMillis());
+        update(version, arch, "resolve", sample.getResolveMillis());
+        update(version, arch, "spawn", sample.getSpawnMillis());
+        update(version, arch, "process", sample.getProcessMillis());
+        update(version, arch, "parse", sample.getParseMillis());
+        update(version, arch, "transfer", sample.getTransferMillis());
+        update(version, arch, "total", sample.getAgentMillis() + sample.getTransferMillis());
+        Metrics.metricRegistry().counter(name(version, arch, "source", sample.getSource())).inc();
+
+        Map<String, Sample> samples = LATEST.get(nodeName);
+        if (samples == null) {
+            Map<String, Sample> created = Collections.synchronizedMap(new LinkedHashMap<String, Sample>());
+            samples = LATEST.putIfAbsent(nodeName, created);
+            if (samples == null) {
+                samples = created;
+            }
+        }
+        samples.put(sample.getToolchain(), sample);
+    }
+
+    /**
+     * Count a failed capture
+     * @param version Visual Studio version
+     * @param arch target architecture
+     * @param kind reason for the failure
+     */
+    static void recordFailure(String version, String arch, CaptureException.Kind kind) {
+        String reason = kind.name().toLowerCase(Locale.ENGLISH);
+        Metrics.metricRegistry().counter(name(version, arch, "failure", reason)).inc();
+    }
+
+    /**
+     * Retrieve the most recent timings of a node
+     * @param nodeName name of the node
+     * @return timings of each toolchain captured on the node
+     */
+    static Map<String, Sample> getLatest(String nodeName) {
+        Map<String, Sample> samples = LATEST.get(nodeName);
+        if (samples == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (samples) {
+            return new LinkedHashMap<>(samples);
+        }
+    }
+
+    /**
+     * Forget the timings of a node
+     * @param nodeName name of the node
+     */
+    static void remove(String nodeName) {
+        LATEST.remove(nodeName);
+    }
+
+    /**
+     * Build the name of a metric
+     * @param version Visual Studio version
+     * @param arch target architecture
+     * @param names remaining components of the name
+     * @return name with the version and architecture as single components
+     */
+    static String name(String version, String arch, String... names) {
+        String[] components = new String[names.length + 2];
+        components[0] = version.replace('.', '_');
+        components[1] = arch.replace('.', '_');
+        System.arraycopy(names, 0, components, 2, names.length);
+        return MetricRegistry.name("vcvarsall", components);
+    }
+
+    private static void update(String version, String arch, String phase, long millis) {
+        Metrics.metricRegistry()
+                .timer(name(version, arch, phase))
+                .update(millis, TimeUnit.MILLISECONDS);
+    }
+}
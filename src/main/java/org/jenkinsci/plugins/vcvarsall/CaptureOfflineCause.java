@@ -0,0 +1,27 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.slaves.OfflineCause;
+
+/**
+ * Reason a node was taken offline after vcvarsall could not be captured
+ *
+ * The node is brought back online by the next capture that succeeds, but
+ * only if it is still offline for this reason.
+ */
+public class CaptureOfflineCause extends OfflineCause {
+
+    private final String mDescription;
+
+    CaptureOfflineCause(String description) {
+        mDescription = description;
+    }
+
+    public String getDescription() {
+        return mDescription;
+    }
+
+    @Override
+    public String toString() {
+        return "Unable to set up MSVC: " + mDescription;
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+/**
+ * Keeps builds off nodes whose MSVC environment is still being captured
+ */
+@Extension
+@SuppressWarnings("unused")
+public class CaptureQueueTaskDispatcher extends QueueTaskDispatcher {
+
+    /**
+     * Blockage reported while vcvarsall is running on a node
+     */
+    private static class CapturePending extends CauseOfBlockage {
+
+        private final String mNodeName;
+
+        CapturePending(String nodeName) {
+            mNodeName = nodeName;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return String.format("Waiting for vcvarsall to finish on %s", mNodeName);
+        }
+    }
+
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (node.getNodeProperties().get(MsvcNodeProperty.class) == null) {
+            return null;
+        }
+        if (ComputerListenerImpl.isCapturePending(node)) {
+            return new CapturePending(node.getDisplayName());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent in each phase of a capture on the agent
+ */
+class CaptureTimings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Where the environment came from
+     */
+    enum Source {
+        SHARED, MEMORY, DISK, EMULATED, VCVARSALL
+    }
+
+    private long mRegistryNanos;
+    private long mResolveNanos;
+    private long mSpawnNanos;
+    private long mProcessNanos;
+    private long mParseNanos;
+    private long mTotalNanos;
+    private Source mSource;
+
+    void addRegistry(long nanos) {
+        mRegistryNanos += nanos;
+    }
+
+    void addResolve(long nanos) {
+        mResolveNanos += nanos;
+    }
+
+    void addSpawn(long nanos) {
+        mSpawnNanos += nanos;
+    }
+
+    void addProcess(long nanos) {
+        mProcessNanos += nanos;
+    }
+
+    synchronized void addParse(long nanos) {
+        mParseNanos += nanos;
+    }
+
+    void setTotal(long nanos) {
+        mTotalNanos = nanos;
+    }
+
+    void setSource(Source source) {
+        mSource = source;
+    }
+
+    /**
+     * Time spent looking up the installation in the registry or instance store
+     */
+    long getRegistryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mRegistryNanos);
+    }
+
+    /**
+     * Time spent locating and fingerprinting vcvarsall.bat
+     */
+    long getResolveMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mResolveNanos);
+    }
+
+    /**
+     * Time spent starting cmd.exe
+     */
+    long getSpawnMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mSpawnNanos);
+    }
+
+    /**
+     * Time from starting cmd.exe until its output was fully read
+     */
+    long getProcessMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mProcessNanos);
+    }
+
+    /**
+     * Time spent parsing output into variables
+     */
+    synchronized long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mParseNanos);
+    }
+
+    /**
+     * Time spent on the agent in total
+     */
+    long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalNanos);
+    }
+
+    Source getSource() {
+        return mSource;
+    }
+}
@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Computer;
+import hudson.model.TransientComputerActionFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows the timings of the most recent capture on the page of a node
+ */
+public class CaptureTimingsAction implements Action {
+
+    private final Computer mComputer;
+
+    CaptureTimingsAction(Computer computer) {
+        mComputer = computer;
+    }
+
+    @SuppressWarnings("unused")
+    public List<CaptureMetrics.Sample> getSamples() {
+        return new ArrayList<>(CaptureMetrics.getLatest(mComputer.getName()).values());
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "vcvarsall timings";
+    }
+
+    @Override
+    public String getUrlName() {
+        return null;
+    }
+
+    @Extension
+    @SuppressWarnings("unused")
+    public static class Factory extends TransientComputerActionFactory {
+
+        @Override
+        public Collection<? extends Action> createFor(Computer target) {
+            if (CaptureMetrics.getLatest(target.getName()).isEmpty()) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new CaptureTimingsAction(target));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.remoting.Channel;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Capture several toolchains on the agent in a single round trip
+ *
+ * The individual captures run in parallel and a failure in one of them does
+ * not prevent the others from being returned. The cores and memory of the
+ * agent are returned along with them.
+ */
+class CaptureToolchainsCallable
+        extends MasterToSlaveCallable<CaptureToolchainsCallable.Results, RuntimeException> {
+
+    /**
+     * Outcome of capturing the toolchains of an agent
+     */
+    static class Results implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, VcvarsallResult> mResults;
+        private final ParallelTuning mTuning;
+
+        Results(Map<String, VcvarsallResult> results, ParallelTuning tuning) {
+            mResults = results;
+            mTuning = tuning;
+        }
+
+        /**
+         * Retrieve the result of each toolchain
+         * @return results by toolchain key
+         */
+        Map<String, VcvarsallResult> getResults() {
+            return mResults;
+        }
+
+        ParallelTuning getTuning() {
+            return mTuning;
+        }
+    }
+
+    private final Map<String, RunVcvarsallCallable> mCallables;
+
+    CaptureToolchainsCallable(Map<String, RunVcvarsallCallable> callables) {
+        mCallables = callables;
+    }
+
+    RunVcvarsallCallable getCallable(String key) {
+        return mCallables.get(key);
+    }
+
+    /**
+     * Create a callable for some of the toolchains, such as those to retry
+     * @param keys keys of the toolchains to capture
+     * @return callable capturing only those toolchains
+     */
+    CaptureToolchainsCallable subset(Set<String> keys) {
+        Map<String, RunVcvarsallCallable> callables = new LinkedHashMap<>(mCallables);
+        callables.keySet().retainAll(keys);
+        return new CaptureToolchainsCallable(callables);
+    }
+
+    Set<String> getKeys() {
+        return mCallables.keySet();
+    }
+
+    @Override
+    public Results call() throws RuntimeException {
+        Map<String, VcvarsallResult> results = new LinkedHashMap<>();
+        ParallelTuning tuning = ParallelTuning.probe();
+        if (mCallables.isEmpty()) {
+            return new Results(results, tuning);
+        }
+        // Only the thread the request arrived on knows the connection
+        final Channel channel = Channel.current();
+        int threads = Math.min(mCallables.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<VcvarsallResult>> futures = new ArrayList<>();
+            for (final RunVcvarsallCallable callable : mCallables.values()) {
+                futures.add(executor.submit(new Callable<VcvarsallResult>() {
+                    @Override
+                    public VcvarsallResult call() {
+                        return callable.call(channel);
+                    }
+                }));
+            }
+            int i = 0;
+            for (String key : mCallables.keySet()) {
+                VcvarsallResult result;
+                try {
+                    result = futures.get(i++).get();
+                } catch (ExecutionException e) {
+                    CaptureException.Kind kind = e.getCause() instanceof CaptureException ?
+                            ((CaptureException) e.getCause()).getKind() : CaptureException.Kind.UNKNOWN;
+                    result = VcvarsallResult.failure(kind, e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e.getMessage());
+                }
+                results.put(key, result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Results(results, tuning);
+    }
+}
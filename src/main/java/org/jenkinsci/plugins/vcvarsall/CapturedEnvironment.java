@@ -0,0 +1,464 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import hudson.model.Environment;
+import jenkins.util.SystemProperties;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Variables that vcvarsall added to or changed in the agent environment
+ *
+ * Only the difference from the environment the script started with is kept.
+ * Path-like variables are split into segments, and when vcvarsall simply
+ * added to an existing value, only the segments added before and after it
+ * are stored. Variables that merely record the environment the script
+ * started with are dropped, so that the result can be applied on any node.
+ * Segments and segment lists are interned so that nodes with the same
+ * toolchain share a single copy.
+ *
+ * Over a channel the variables are sent in the compact form produced by
+ * {@link EnvironmentCodec} unless it has been disabled, in which case (or if
+ * encoding fails) the fields are serialized as usual.
+ */
+class CapturedEnvironment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String SEPARATOR = ";";
+
+    /**
+     * Send variables in the compact encoding instead of serializing the maps
+     */
+    private static final boolean COMPACT = SystemProperties.getBoolean(
+            CapturedEnvironment.class.getName() + ".compact", true);
+
+    /**
+     * Deflate the compact encoding
+     */
+    private static final boolean DEFLATE = SystemProperties.getBoolean(
+            CapturedEnvironment.class.getName() + ".deflate", true);
+
+    /**
+     * Variables treated as lists of paths
+     */
+    private static final Set<String> PATH_VARIABLES = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        PATH_VARIABLES.addAll(Arrays.asList(
+                "PATH", "INCLUDE", "LIB", "LIBPATH", "EXTERNAL_INCLUDE"
+        ));
+    }
+
+    /**
+     * Variables holding a copy of the environment the script started with
+     */
+    private static final Set<String> SNAPSHOT_VARIABLES = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        SNAPSHOT_VARIABLES.add("__VSCMD_PREINIT_PATH");
+    }
+
+    /**
+     * Interners used on the controller (kept in a holder so that the agent,
+     * which only computes the difference, never initializes them)
+     */
+    private static final class Pool {
+        static final Interner<String> STRINGS = Interners.newWeakInterner();
+        static final Interner<List<String>> SEGMENT_LISTS = Interners.newWeakInterner();
+    }
+
+    /**
+     * Flattened form of the variables used when applying them to builds
+     */
+    private static final class Overlay {
+        final String[] names;
+        final String[] values;
+        final boolean[] prepend;
+        final boolean[] append;
+
+        Overlay(int size) {
+            names = new String[size];
+            values = new String[size];
+            prepend = new boolean[size];
+            append = new boolean[size];
+        }
+    }
+
+    private Map<String, String> mVariables;
+    private Map<String, List<String>> mPathValues;
+    private Map<String, List<String>> mPathPrepends;
+    private Map<String, List<String>> mPathAppends;
+
+    /**
+     * Set on the agent if a value replaced by vcvarsall still contains
+     * parts of the value it had before
+     */
+    private transient boolean mBaseDependent;
+
+    private transient volatile Overlay mOverlay;
+    private transient volatile Environment mEnvironment;
+
+    private CapturedEnvironment() {
+        mVariables = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathPrepends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathAppends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+    /**
+     * Compute the variables that differ between two environments
+     * @param before environment the script started with
+     * @param after environment after running the script
+     * @return variables that were added or changed
+     */
+    static CapturedEnvironment diff(Map<String, String> before, Map<String, String> after) {
+        Map<String, String> original = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        original.putAll(before);
+        CapturedEnvironment environment = new CapturedEnvironment();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            String oldValue = original.get(name);
+            if (value.equals(oldValue) || SNAPSHOT_VARIABLES.contains(name)) {
+                continue;
+            }
+            if (!PATH_VARIABLES.contains(name)) {
+                environment.mVariables.put(name, value);
+                continue;
+            }
+            int index = oldValue == null || oldValue.isEmpty() ? -1
+                    : (SEPARATOR + value + SEPARATOR).indexOf(SEPARATOR + oldValue + SEPARATOR);
+            if (index == -1) {
+                environment.mPathValues.put(name, split(value));
+                environment.mBaseDependent |= oldValue != null && sharesSegments(value, oldValue);
+                continue;
+            }
+            List<String> prepends = split(value.substring(0, index));
+            List<String> appends = split(value.substring(Math.min(value.length(), index + oldValue.length())));
+            if (!prepends.isEmpty()) {
+                environment.mPathPrepends.put(name, prepends);
+            }
+            if (!appends.isEmpty()) {
+                environment.mPathAppends.put(name, appends);
+            }
+        }
+        return environment;
+    }
+
+    private static boolean sharesSegments(String value, String oldValue) {
+        Set<String> segments = new HashSet<>(split(oldValue.toLowerCase(Locale.ENGLISH)));
+        for (String segment : split(value.toLowerCase(Locale.ENGLISH))) {
+            if (segments.contains(segment)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determine if the environment only applies to nodes whose environment
+     * matches the one it was captured in
+     *
+     * This is the case if vcvarsall replaced a path variable with a value
+     * that still contains parts of the old one, in an order that cannot be
+     * expressed as segments added before and after it.
+     * @return true if the environment must not be shared with other nodes
+     *         unless their environment is the same
+     */
+    boolean isBaseDependent() {
+        return mBaseDependent;
+    }
+
+    private static List<String> split(String value) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : value.split(SEPARATOR)) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private static String join(List<String> segments) {
+        StringBuilder builder = new StringBuilder();
+        for (String segment : segments) {
+            if (builder.length() != 0) {
+                builder.append(SEPARATOR);
+            }
+            builder.append(segment);
+        }
+        return builder.toString();
+    }
+
+    private static List<String> intern(List<String> segments) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        for (String segment : segments) {
+            builder.add(Pool.STRINGS.intern(segment));
+        }
+        return Pool.SEGMENT_LISTS.intern(builder.build());
+    }
+
+    private static Map<String, List<String>> internAll(Map<String, List<String>> map) {
+        Map<String, List<String>> interned = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (map != null) {
+            for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+                interned.put(Pool.STRINGS.intern(entry.getKey()), intern(entry.getValue()));
+            }
+        }
+        return interned;
+    }
+
+    /**
+     * Encode the variables for storage
+     * @return variables in the compact encoding
+     * @throws IOException if the variables cannot be encoded
+     */
+    byte[] encode() throws IOException {
+        return EnvironmentCodec.encode(mVariables, mPathValues, mPathPrepends, mPathAppends, true);
+    }
+
+    /**
+     * Decode variables encoded by {@link #encode}
+     * @param data variables in the compact encoding
+     * @return environment with its strings interned
+     * @throws IOException if the data is not valid
+     */
+    static CapturedEnvironment decode(byte[] data) throws IOException {
+        CapturedEnvironment environment = new CapturedEnvironment();
+        EnvironmentCodec.decode(data, environment.mVariables, environment.mPathValues, environment.mPathPrepends,
+                environment.mPathAppends);
+        return (CapturedEnvironment) environment.readResolve();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        byte[] data = null;
+        if (COMPACT) {
+            try {
+                data = EnvironmentCodec.encode(mVariables, mPathValues, mPathPrepends, mPathAppends, DEFLATE);
+            } catch (IOException e) {
+                // Values the encoding cannot hold are serialized as usual
+            }
+        }
+        out.writeBoolean(data != null);
+        if (data == null) {
+            out.defaultWriteObject();
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        if (!in.readBoolean()) {
+            in.defaultReadObject();
+            return;
+        }
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("invalid environment length");
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        mVariables = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathPrepends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathAppends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        EnvironmentCodec.decode(data, mVariables, mPathValues, mPathPrepends, mPathAppends);
+    }
+
+    protected Object readResolve() {
+        Map<String, String> variables = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (mVariables != null) {
+            for (Map.Entry<String, String> entry : mVariables.entrySet()) {
+                variables.put(Pool.STRINGS.intern(entry.getKey()), Pool.STRINGS.intern(entry.getValue()));
+            }
+        }
+        mVariables = variables;
+        mPathValues = internAll(mPathValues);
+        mPathPrepends = internAll(mPathPrepends);
+        mPathAppends = internAll(mPathAppends);
+        return this;
+    }
+
+    /**
+     * Remove duplicate and nonexistent entries from the path variables
+     *
+     * Must be called on the host the environment was captured on, since that
+     * is where the entries are checked. Entries vcvarsall prepended are only
+     * compared with each other so that the order of the search is unchanged.
+     * @param dropped list to receive a description of each removed entry
+     * @return compacted environment
+     */
+    CapturedEnvironment compactPaths(List<String> dropped) {
+        CapturedEnvironment compacted = new CapturedEnvironment();
+        compacted.mVariables.putAll(mVariables);
+        for (Map.Entry<String, List<String>> entry : mPathValues.entrySet()) {
+            compacted.mPathValues.put(entry.getKey(), compact(entry.getKey(), entry.getValue(), dropped));
+        }
+        for (Map.Entry<String, List<String>> entry : mPathPrepends.entrySet()) {
+            compacted.mPathPrepends.put(entry.getKey(), compact(entry.getKey(), entry.getValue(), dropped));
+        }
+        for (Map.Entry<String, List<String>> entry : mPathAppends.entrySet()) {
+            compacted.mPathAppends.put(entry.getKey(), compact(entry.getKey(), entry.getValue(), dropped));
+        }
+        compacted.mBaseDependent = mBaseDependent;
+        return compacted;
+    }
+
+    private static List<String> compact(String name, List<String> segments, List<String> dropped) {
+        Set<String> seen = new HashSet<>();
+        List<String> compacted = new ArrayList<>();
+        for (String segment : segments) {
+            String normalized = segment.toLowerCase(Locale.ENGLISH);
+            while (normalized.endsWith("\\")) {
+                normalized = normalized.substring(0, normalized.length() - 1);
+            }
+            if (!seen.add(normalized)) {
+                dropped.add(String.format("%s: duplicate %s", name, segment));
+            } else if (!new File(segment).exists()) {
+                dropped.add(String.format("%s: nonexistent %s", name, segment));
+            } else {
+                compacted.add(segment);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Retrieve the names of the variables that were added or changed
+     * @return variable names
+     */
+    Set<String> getNames() {
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        names.addAll(mVariables.keySet());
+        names.addAll(mPathValues.keySet());
+        names.addAll(mPathPrepends.keySet());
+        names.addAll(mPathAppends.keySet());
+        return names;
+    }
+
+    /**
+     * Retrieve the number of variables that were added or changed
+     * @return number of variables
+     */
+    int size() {
+        return getNames().size();
+    }
+
+    /**
+     * Build the flattened form of the variables
+     *
+     * Variables that replace a value come first so that additions to the
+     * same variable are applied on top of them.
+     */
+    private Overlay overlay() {
+        Overlay overlay = mOverlay;
+        if (overlay == null) {
+            overlay = new Overlay(mVariables.size() + mPathValues.size() + mPathPrepends.size()
+                    + mPathAppends.size());
+            int i = 0;
+            for (Map.Entry<String, String> entry : mVariables.entrySet()) {
+                overlay.names[i] = entry.getKey();
+                overlay.values[i++] = entry.getValue();
+            }
+            for (Map.Entry<String, List<String>> entry : mPathValues.entrySet()) {
+                overlay.names[i] = entry.getKey();
+                overlay.values[i++] = join(entry.getValue());
+            }
+            for (Map.Entry<String, List<String>> entry : mPathPrepends.entrySet()) {
+                overlay.names[i] = entry.getKey();
+                overlay.prepend[i] = true;
+                overlay.values[i++] = join(entry.getValue());
+            }
+            for (Map.Entry<String, List<String>> entry : mPathAppends.entrySet()) {
+                overlay.names[i] = entry.getKey();
+                overlay.append[i] = true;
+                overlay.values[i++] = join(entry.getValue());
+            }
+            mOverlay = overlay;
+        }
+        return overlay;
+    }
+
+    /**
+     * Apply the captured variables to an environment
+     * @param env environment to modify
+     */
+    void apply(Map<String, String> env) {
+        Overlay overlay = overlay();
+        for (int i = 0; i < overlay.names.length; i++) {
+            String value = overlay.values[i];
+            if (overlay.prepend[i] || overlay.append[i]) {
+                String existing = env.get(overlay.names[i]);
+                if (existing != null && !existing.isEmpty()) {
+                    value = overlay.prepend[i] ? value + SEPARATOR + existing : existing + SEPARATOR + value;
+                }
+            }
+            env.put(overlay.names[i], value);
+        }
+    }
+
+    /**
+     * Undo {@link #apply} on an environment, so that another toolchain can
+     * be applied in place of this one
+     *
+     * Prepended and appended segments are stripped again. Variables this
+     * environment set are removed if they still hold the value it set, since
+     * the value they had before is not known.
+     * @param env environment to modify
+     */
+    void unapply(Map<String, String> env) {
+        Overlay overlay = overlay();
+        for (int i = overlay.names.length - 1; i >= 0; i--) {
+            String existing = env.get(overlay.names[i]);
+            String value = overlay.values[i];
+            if (existing == null) {
+                continue;
+            }
+            if (existing.equals(value)) {
+                env.remove(overlay.names[i]);
+            } else if (overlay.prepend[i] && existing.startsWith(value + SEPARATOR)) {
+                env.put(overlay.names[i], existing.substring(value.length() + SEPARATOR.length()));
+            } else if (overlay.append[i] && existing.endsWith(SEPARATOR + value)) {
+                env.put(overlay.names[i],
+                        existing.substring(0, existing.length() - value.length() - SEPARATOR.length()));
+            }
+        }
+    }
+
+    /**
+     * Retrieve a build environment that applies the captured variables
+     *
+     * The instance holds no per-build state and is shared by all builds.
+     * @return build environment
+     */
+    Environment toEnvironment() {
+        Environment environment = mEnvironment;
+        if (environment == null) {
+            environment = new Environment() {
+                @Override
+                public void buildEnvVars(Map<String, String> env) {
+                    apply(env);
+                }
+            };
+            mEnvironment = environment;
+        }
+        return environment;
+    }
+}
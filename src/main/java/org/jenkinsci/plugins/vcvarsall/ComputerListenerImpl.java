@@ -1,19 +1,36 @@
 package org.jenkinsci.plugins.vcvarsall;
 
-import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.Computer;
+import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.remoting.Channel;
+import hudson.remoting.VirtualChannel;
 import hudson.slaves.ComputerListener;
-import jenkins.security.MasterToSlaveCallable;
+import hudson.slaves.OfflineCause;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Listens for computers coming online and if they are configured to provide
@@ -24,186 +41,488 @@ import java.lang.reflect.InvocationTargetException;
 public class ComputerListenerImpl extends ComputerListener {
 
     /**
-     * Run vcvarsall with the correct parameters
+     * Directory (relative to the agent root) for cached environments
      */
-    private static class RunVcvarsallCallable
-            extends MasterToSlaveCallable<Object, RuntimeException> {
+    static final String CACHE_DIR = "vcvarsall-cache";
 
-        private String mVersion;
-        private String mArch;
+    /**
+     * Maximum number of captures that may run at the same time
+     */
+    static final int CAPTURE_THREADS = SystemProperties.getInteger(
+            ComputerListenerImpl.class.getName() + ".captureThreads", 4);
+
+    /**
+     * Time (in seconds) after which a running vcvarsall is killed
+     */
+    static final long CAPTURE_TIMEOUT = SystemProperties.getLong(
+            ComputerListenerImpl.class.getName() + ".captureTimeout", 600L);
+
+    /**
+     * Number of attempts made before giving up on a toolchain whose
+     * capture keeps failing for a transient reason
+     */
+    private static final int CAPTURE_ATTEMPTS = SystemProperties.getInteger(
+            ComputerListenerImpl.class.getName() + ".captureAttempts", 3);
+
+    /**
+     * Time (in seconds) before the first retry, doubled for every further
+     * retry and jittered so that agents failing together do not retry
+     * together
+     */
+    private static final long RETRY_DELAY = SystemProperties.getLong(
+            ComputerListenerImpl.class.getName() + ".retryDelay", 10L);
+
+    static final ExecutorService CAPTURE_EXECUTOR = Executors.newFixedThreadPool(
+            CAPTURE_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "vcvarsall capture")
+    );
+
+    /**
+     * Script run on agents in place of vcvarsall, for testing without
+     * Visual Studio (see {@link RunVcvarsallCallable#setScript}), either
+     * absolute or relative to the root directory of the agent
+     */
+    static volatile String sCaptureScript;
+
+    /**
+     * Locate the script run in place of vcvarsall on an agent
+     * @param root root directory of the agent
+     * @return absolute path to the script or null to run vcvarsall
+     */
+    static String captureScript(FilePath root) {
+        String script = sCaptureScript;
+        return script == null || root == null ? null : root.child(script).getRemote();
+    }
+
+    /**
+     * Connections with a capture in progress by node name
+     *
+     * The connection is kept rather than just the name, so that a capture
+     * still finishing for an old connection does not release the builds
+     * waiting for the capture of a newer one.
+     */
+    private static final ConcurrentMap<String, Channel> PENDING = new ConcurrentHashMap<>();
+
+    /**
+     * Determine if a capture is still in progress for the specified node
+     * @param node node to check
+     * @return true if builds on the node should wait for the capture
+     */
+    static boolean isCapturePending(Node node) {
+        return PENDING.containsKey(node.getNodeName());
+    }
 
-        RunVcvarsallCallable(String version, String arch) {
-            mVersion = version;
-            mArch = arch;
+    @Override
+    public void preOnline(final Computer c, final Channel channel, final FilePath root, final TaskListener listener) throws IOException, InterruptedException {
+        super.preOnline(c, channel, root, listener);
+
+        // Ignore any nodes that don't have the property
+        final Node node = c.getNode();
+        MsvcNodeProperty msvcNodeProperty = node.getNodeProperties().get(MsvcNodeProperty.class);
+        if (msvcNodeProperty == null) {
+            return;
         }
 
-        /**
-         * Determine if the host is running a 64-bit operating system
-         * @return true if the host is 64-bit
-         */
-        private boolean isHost64Bit() {
-            return System.getenv("ProgramFiles(x86)") != null;
+        for (Toolchain toolchain : msvcNodeProperty.getToolchains()) {
+            listener.getLogger().printf(
+                    "Preparing to run vcvarsall for VS %s (%s)\n",
+                    toolchain.getVersion(),
+                    toolchain.getArch()
+            );
         }
 
-        /**
-         * Find the installation directory for Visual Studio
-         * @return absolute path to the installation directory or NULL if non-existent
-         * @throws RuntimeException for invalid versions
-         */
-        private String findInstallDir() throws RuntimeException {
-            String installKey;
-            if (isHost64Bit()) {
-                installKey = "SOFTWARE\\Wow6432Node\\Microsoft\\VisualStudio\\SxS\\VS7";
-            } else {
-                installKey = "SOFTWARE\\Microsoft\\VisualStudio\\SxS\\VS7";
-            }
-            String installDir;
-            try {
-                installDir = WinRegistry.readString(
-                        WinRegistry.HKEY_LOCAL_MACHINE,
-                        installKey,
-                        mVersion
-                );
-            } catch (IllegalAccessException|InvocationTargetException e) {
-                throw new RuntimeException(e.getMessage());
-            }
-            if (installDir == null) {
-                throw new RuntimeException("unable to find installation directory");
-            }
-            return installDir;
-        }
-
-        /**
-         * Find the absolute path to vcvarsall.bat
-         * @param installDir Visual Studio installation directory
-         * @return absolute path to the vcvarsall script
-         * @throws RuntimeException for invalid versions
-         */
-        private String findVcvarsall(String installDir) throws RuntimeException {
-            String path;
-            switch (mVersion) {
-                case MsvcNodeProperty.MSVC2013:
-                case MsvcNodeProperty.MSVC2015:
-                    path = installDir + "VC\\vcvarsall.bat";
-                    break;
-                case MsvcNodeProperty.MSVC2017:
-                    path = installDir + "VC\\Auxiliary\\Build\\vcvarsall.bat";
-                    break;
-                default:
-                    throw new RuntimeException("invalid Visual Studio version");
-            }
-            if (!new File(path).exists()) {
-                throw new RuntimeException("vcvarsall.bat does not exist");
-            }
-            return path;
-        }
-
-        /**
-         * Generate the parameter to pass to vcvarsall.bat
-         * @return parameter to pass
-         * @throws RuntimeException for invalid arch
-         */
-        private String generateParam() throws RuntimeException {
-            boolean use64Bit = isHost64Bit();
-            if (mVersion.equals(MsvcNodeProperty.MSVC2013)) {
-                use64Bit = false;
-            }
-            switch (mArch) {
-                case MsvcNodeProperty.X86:
-                    return use64Bit ? "amd64_x86" : "x86";
-                case MsvcNodeProperty.X86_64:
-                    return use64Bit ? "amd64" : "x86_amd64";
-                default:
-                    throw new RuntimeException("invalid architecture");
-            }
+        // Builds are kept off the node until the capture completes. For nodes
+        // from a template, the agent usually only has to confirm the
+        // fingerprints recorded for it, which skips running vcvarsall
+        final String nodeName = node.getNodeName();
+        final CaptureToolchainsCallable callable = createCallable(msvcNodeProperty, root);
+        PENDING.put(nodeName, channel);
+        String templateId = ToolchainTemplateResolver.resolve(node);
+        if (templateId != null && !ToolchainTemplates.get().getFingerprints(templateId).isEmpty()) {
+            listener.getLogger().printf("Checking toolchains against template %s\n", templateId);
         }
+        submitCapture(c, channel, nodeName, callable, listener, new LinkedHashMap<String, VcvarsallResult>(), 1);
+    }
 
-        /**
-         * Run the vcvarsall.bat script
-         * @param path absolute path to vcvarsall
-         * @param param parameter for passing to the script
-         * @throws RuntimeException for failure to run the script
-         */
-        private EnvVars runVcvarsall(String path, String param) throws RuntimeException {
-            EnvVars envVars = new EnvVars();
-            try {
-                ProcessBuilder builder = new ProcessBuilder(
-                        "cmd", "/c",
-                        String.format("\"%s\" > NUL %s && set", path, param)
-                );
-                Process process = builder.start();
-                BufferedReader outReader = new BufferedReader(
-                        new InputStreamReader(process.getInputStream())
-                );
-                BufferedReader errReader = new BufferedReader(
-                        new InputStreamReader(process.getErrorStream())
-                );
-                StringBuilder errOutput = new StringBuilder();
-                String out, err = null;
-                while ((out = outReader.readLine()) != null || (err = errReader.readLine()) != null) {
-                    if (out != null) {
-                        out = out.trim();
-                        if (out.length() != 0) {
-                            envVars.addLine(out);
+    /**
+     * Run a capture attempt in the background, keeping builds off the node
+     * until the last attempt has finished
+     * @param failures failures of earlier attempts, updated by this one
+     * @param attempt number of this attempt, starting at 1
+     */
+    private static void submitCapture(final Computer c, final Channel channel, final String nodeName,
+                                      final CaptureToolchainsCallable callable, final TaskListener listener,
+                                      final Map<String, VcvarsallResult> failures, final int attempt) {
+        try {
+            CAPTURE_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    boolean done = true;
+                    try {
+                        done = attempt(c, channel, nodeName, callable, listener, failures, attempt);
+                    } finally {
+                        if (done) {
+                            PENDING.remove(nodeName, channel);
                         }
-                    } else {
-                        errOutput.append(err);
                     }
                 }
-                if (process.waitFor() != 0) {
-                    throw new RuntimeException(errOutput.toString());
-                }
-            } catch(IOException|InterruptedException e) {
-                throw new RuntimeException(e.getMessage());
+            });
+        } catch (RejectedExecutionException e) {
+            PENDING.remove(nodeName, channel);
+            listener.getLogger().printf("ERROR: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Capture the toolchains and schedule another attempt for those that
+     * failed for a transient reason
+     * @return true if no further attempt was scheduled
+     */
+    private static boolean attempt(final Computer c, final Channel channel, final String nodeName,
+                                   CaptureToolchainsCallable callable, final TaskListener listener,
+                                   final Map<String, VcvarsallResult> failures, final int attempt) {
+        Map<String, VcvarsallResult> failed = new LinkedHashMap<>();
+        captureToolchains(c, channel, callable, listener, 0, failed);
+        failures.keySet().removeAll(callable.getKeys());
+        failures.putAll(failed);
+        if (channel.isClosingOrClosed()) {
+            return true;
+        }
+
+        Set<String> retry = new LinkedHashSet<>();
+        for (Map.Entry<String, VcvarsallResult> entry : failed.entrySet()) {
+            if (entry.getValue().getFailureKind().isTransient()) {
+                retry.add(entry.getKey());
             }
-            return envVars;
         }
+        if (retry.isEmpty() || attempt >= CAPTURE_ATTEMPTS) {
+            updateOfflineCause(c, failures, listener);
+            return true;
+        }
+
+        long delayMillis = retryDelayMillis(attempt);
+        listener.getLogger().printf("Retrying %s in %d ms (attempt %d of %d)\n",
+                retry, delayMillis, attempt + 1, CAPTURE_ATTEMPTS);
+        final CaptureToolchainsCallable retryCallable = callable.subset(retry);
+        try {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submitCapture(c, channel, nodeName, retryCallable, listener, failures, attempt + 1);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getMessage());
+            updateOfflineCause(c, failures, listener);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compute the delay before a retry: exponential backoff with the delay
+     * chosen at random between half and one and a half times the nominal one
+     * @param attempt number of the attempt that failed
+     * @return delay in milliseconds
+     */
+    private static long retryDelayMillis(int attempt) {
+        long nominal = TimeUnit.SECONDS.toMillis(RETRY_DELAY) << Math.min(attempt - 1, 16);
+        return nominal / 2 + ThreadLocalRandom.current().nextLong(nominal + 1);
+    }
 
-        @Override
-        public Object call() throws RuntimeException {
-            if (!System.getProperty("os.name").startsWith("Windows")) {
-                throw new RuntimeException("host is not running Windows");
+    /**
+     * Take the node offline if toolchains could not be captured and the node
+     * is configured for it, or bring it back online once they could
+     *
+     * A node that was taken offline for any other reason is left alone.
+     * @param failures failed toolchains by key
+     */
+    private static void updateOfflineCause(Computer c, Map<String, VcvarsallResult> failures, TaskListener listener) {
+        Node node = c.getNode();
+        MsvcNodeProperty msvcNodeProperty = node == null ? null :
+                node.getNodeProperties().get(MsvcNodeProperty.class);
+        OfflineCause cause = c.getOfflineCause();
+        if (msvcNodeProperty != null && msvcNodeProperty.isHoldOffline() && !failures.isEmpty()) {
+            if (c.isTemporarilyOffline() && !(cause instanceof CaptureOfflineCause)) {
+                return;
             }
-            String path = findVcvarsall(findInstallDir());
-            String param = generateParam();
-            return runVcvarsall(path, param);
+            StringBuilder description = new StringBuilder();
+            for (Map.Entry<String, VcvarsallResult> entry : failures.entrySet()) {
+                if (description.length() != 0) {
+                    description.append("; ");
+                }
+                description.append(String.format("%s: %s (%s)", entry.getKey(), entry.getValue().getError(),
+                        entry.getValue().getFailureKind()));
+            }
+            c.setTemporarilyOffline(true, new CaptureOfflineCause(description.toString()));
+            listener.getLogger().printf("Taking %s offline: %s\n", c.getDisplayName(), description);
+        } else if (cause instanceof CaptureOfflineCause) {
+            c.setTemporarilyOffline(false, null);
+            listener.getLogger().printf("Bringing %s back online\n", c.getDisplayName());
         }
     }
 
-    @Override
-    public void preOnline(Computer c, Channel channel, FilePath root, TaskListener listener) throws IOException, InterruptedException {
-        super.preOnline(c, channel, root, listener);
+    /**
+     * Create the callable that captures every toolchain of a node
+     * @param msvcNodeProperty property listing the toolchains
+     * @param root root directory of the agent
+     * @return callable to run on the agent
+     */
+    static CaptureToolchainsCallable createCallable(MsvcNodeProperty msvcNodeProperty, FilePath root) {
+        return createCallable(msvcNodeProperty, root, ToolchainStore.get().getSharedIds(), false);
+    }
 
-        // Ignore any nodes that don't have the property
-        MsvcNodeProperty msvcNodeProperty = c.getNode().getNodeProperties().get(MsvcNodeProperty.class);
-        if (msvcNodeProperty == null) {
-            return;
+    private static CaptureToolchainsCallable createCallable(MsvcNodeProperty msvcNodeProperty, FilePath root,
+                                                            Set<String> knownFingerprints, boolean checkOnly) {
+        Map<String, RunVcvarsallCallable> callables = new LinkedHashMap<>();
+        for (Toolchain toolchain : msvcNodeProperty.getToolchains()) {
+            RunVcvarsallCallable callable = new RunVcvarsallCallable(
+                    toolchain.getVersion(),
+                    toolchain.getArch(),
+                    root.child(CACHE_DIR).getRemote(),
+                    CAPTURE_TIMEOUT,
+                    msvcNodeProperty.isEmulate(),
+                    msvcNodeProperty.isValidateEmulation(),
+                    msvcNodeProperty.isPreferNativeHost(),
+                    msvcNodeProperty.createFilter(),
+                    msvcNodeProperty.isCompactPath(),
+                    msvcNodeProperty.isReuseShell(),
+                    knownFingerprints
+            );
+            callable.setScript(captureScript(root));
+            callable.setCheckOnly(checkOnly);
+            callables.put(toolchain.getKey(), callable);
+        }
+        return new CaptureToolchainsCallable(callables);
+    }
+
+    /**
+     * Fingerprint the toolchains of a node without capturing them, to find
+     * those that have changed since they were captured
+     *
+     * Only the fingerprints come back from the agent, and vcvarsall is not
+     * run. Toolchains that could not be fingerprinted count as changed.
+     * @param timeoutSeconds time to wait for the agent
+     * @return keys of the changed toolchains or null if the agent could not
+     *         be reached
+     */
+    static Set<String> findChanged(VirtualChannel channel, MsvcNodeProperty msvcNodeProperty, FilePath root,
+                                   TaskListener listener, long timeoutSeconds) {
+        CaptureToolchainsCallable callable = createCallable(msvcNodeProperty, root,
+                new HashSet<>(msvcNodeProperty.getFingerprintIds()), true);
+        Future<CaptureToolchainsCallable.Results> future = null;
+        CaptureToolchainsCallable.Results results;
+        try {
+            future = channel.callAsync(callable);
+            results = future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            listener.getLogger().printf("ERROR: no answer from the agent within %d seconds\n", timeoutSeconds);
+            return null;
+        } catch (ExecutionException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getCause().getMessage());
+            return null;
+        } catch (RuntimeException|IOException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getMessage());
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        Set<String> changed = new LinkedHashSet<>();
+        for (Map.Entry<String, VcvarsallResult> entry : results.getResults().entrySet()) {
+            VcvarsallResult result = entry.getValue();
+            if (result.getError() != null
+                    || !result.getFingerprint().getId().equals(msvcNodeProperty.getFingerprint(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
         }
+        return changed;
+    }
 
-        listener.getLogger().printf(
-                "Preparing to run vcvarsall for VS %s (%s)\n",
-                msvcNodeProperty.getVersion(),
-                msvcNodeProperty.getArch()
-        );
+    /**
+     * Retrieve all of the environment variables from vcvarsall (or the cache
+     * on the agent if the toolchain has not changed) and pass them to the node
+     * @return number of toolchains whose environment changed
+     */
+    static int capture(Computer c, VirtualChannel channel, CaptureToolchainsCallable callable, TaskListener listener) {
+        return Math.max(0, capture(c, channel, callable, listener, 0));
+    }
 
-        // Retrieve all of the environment variables from vcvarsall
-        EnvVars envVars;
+    /**
+     * Retrieve all of the environment variables, giving up if the agent
+     * does not answer in time
+     * @param timeoutSeconds time to wait for the agent or 0 to wait forever
+     * @return number of toolchains whose environment changed or -1 if the
+     *         agent could not be reached
+     */
+    static int capture(Computer c, VirtualChannel channel, CaptureToolchainsCallable callable, TaskListener listener,
+                       long timeoutSeconds) {
+        return capture(c, channel, callable, listener, timeoutSeconds, new LinkedHashMap<String, VcvarsallResult>());
+    }
+
+    /**
+     * Retrieve all of the environment variables, giving up if the agent
+     * does not answer in time, and report the toolchains that failed
+     * @param timeoutSeconds time to wait for the agent or 0 to wait forever
+     * @param failures map to receive the failed toolchains by key
+     * @return number of toolchains whose environment changed or -1 if the
+     *         agent could not be reached
+     */
+    static int capture(Computer c, VirtualChannel channel, CaptureToolchainsCallable callable, TaskListener listener,
+                       long timeoutSeconds, Map<String, VcvarsallResult> failures) {
+        int changed = captureToolchains(c, channel, callable, listener, timeoutSeconds, failures);
+        if (changed >= 0) {
+            updateOfflineCause(c, failures, listener);
+        }
+        return changed;
+    }
+
+    /**
+     * Retrieve all of the environment variables, collecting the toolchains
+     * that could not be captured
+     * @param failures map to receive the failed toolchains by key
+     * @return number of toolchains whose environment changed or -1 if the
+     *         agent could not be reached
+     */
+    private static int captureToolchains(Computer c, VirtualChannel channel, CaptureToolchainsCallable callable,
+                                         TaskListener listener, long timeoutSeconds,
+                                         Map<String, VcvarsallResult> failures) {
+        CaptureToolchainsCallable.Results results;
+        long start = System.nanoTime();
+        Future<CaptureToolchainsCallable.Results> future = null;
         try {
-            envVars = (EnvVars) channel.call(new RunVcvarsallCallable(
-                    msvcNodeProperty.getVersion(),
-                    msvcNodeProperty.getArch()
-            ));
-        } catch (RuntimeException e) {
+            if (timeoutSeconds > 0) {
+                future = channel.callAsync(callable);
+                results = future.get(timeoutSeconds, TimeUnit.SECONDS);
+            } else {
+                results = channel.call(callable);
+            }
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            String error = String.format("no answer from the agent within %d seconds", timeoutSeconds);
+            listener.getLogger().printf("ERROR: %s\n", error);
+            return channelFailure(callable, CaptureException.Kind.TIMEOUT, error, failures);
+        } catch (ExecutionException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getCause().getMessage());
+            return channelFailure(callable, CaptureException.Kind.IO_ERROR, e.getCause().getMessage(), failures);
+        } catch (RuntimeException|IOException e) {
             listener.getLogger().printf("ERROR: %s\n", e.getMessage());
-            return;
+            return channelFailure(callable, CaptureException.Kind.IO_ERROR, e.getMessage(), failures);
+        } catch (InterruptedException e) {
+            listener.getLogger().printf("ERROR: %s\n", e.getMessage());
+            Thread.currentThread().interrupt();
+            return -1;
         }
+        long roundTripMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
 
-        // Pass the variables to the node
-        msvcNodeProperty.setEnvVars(envVars);
+        // The node may have been reconfigured while the capture was running,
+        // so look up the current property instead of reusing the old one
+        Node node = c.getNode();
+        MsvcNodeProperty msvcNodeProperty = node == null ? null :
+                node.getNodeProperties().get(MsvcNodeProperty.class);
+        if (msvcNodeProperty == null) {
+            return 0;
+        }
 
-        listener.getLogger().printf(
-                "Received %d env. variables from vcvarsall\n",
-                envVars.size()
-        );
+        // Cores and memory come back with the toolchains, so the agent is
+        // only called once
+        msvcNodeProperty.setTuning(results.getTuning());
+
+        String templateId = ToolchainTemplateResolver.resolve(node);
+        Map<String, Set<String>> templateFingerprints = templateId == null ?
+                Collections.<String, Set<String>>emptyMap() : ToolchainTemplates.get().getFingerprints(templateId);
+
+        int changed = 0;
+        for (Map.Entry<String, VcvarsallResult> entry : results.getResults().entrySet()) {
+            VcvarsallResult result = entry.getValue();
+            RunVcvarsallCallable toolchain = callable.getCallable(entry.getKey());
+            if (result.getError() != null) {
+                listener.getLogger().printf("ERROR: %s: %s (%s)\n", entry.getKey(), result.getError(),
+                        result.getFailureKind());
+                CaptureMetrics.recordFailure(toolchain.getVersion(), toolchain.getArch(), result.getFailureKind());
+                failures.put(entry.getKey(), result);
+                continue;
+            }
+
+            CaptureTimings timings = result.getTimings();
+            CaptureMetrics.record(node.getNodeName(), toolchain.getVersion(), toolchain.getArch(),
+                    timings, roundTripMillis);
+            listener.getLogger().printf(
+                    "Captured %s in %d ms (%s, %d ms on the agent)\n",
+                    entry.getKey(),
+                    roundTripMillis,
+                    timings.getSource(),
+                    timings.getTotalMillis()
+            );
+
+            for (String warning : result.getWarnings()) {
+                listener.getLogger().printf("WARNING: %s: %s\n", entry.getKey(), warning);
+            }
+
+            ToolchainFingerprint fingerprint = result.getFingerprint();
+            String id = fingerprint.getId();
+            if (result.getEnvironment() == null) {
+                if (ToolchainStore.get().get(fingerprint.getId()) == null) {
+                    listener.getLogger().printf("ERROR: %s: shared environment is no longer available\n",
+                            entry.getKey());
+                    failures.put(entry.getKey(), VcvarsallResult.failure(CaptureException.Kind.IO_ERROR,
+                            "shared environment is no longer available"));
+                    continue;
+                }
+                listener.getLogger().printf(
+                        "Reusing shared environment for %s (fingerprint %s)\n",
+                        entry.getKey(),
+                        fingerprint.getId()
+                );
+            } else {
+                listener.getLogger().printf(
+                        "vcvarsall cache %s for %s (fingerprint %s)\n",
+                        result.isCacheHit() ? "hit" : "miss",
+                        entry.getKey(),
+                        fingerprint.getId()
+                );
+                id = ToolchainStore.get().put(fingerprint, result.getEnvironment(), node.getNodeName())
+                        .getFingerprint().getId();
+                if (!id.equals(fingerprint.getId())) {
+                    listener.getLogger().printf("WARNING: %s: environment differs from the one captured before "
+                            + "for fingerprint %s, keeping it for this node only\n", entry.getKey(),
+                            fingerprint.getId());
+                }
+                listener.getLogger().printf(
+                        "Received %d env. variables from vcvarsall for %s\n",
+                        result.getEnvironment().size(),
+                        entry.getKey()
+                );
+            }
+
+            // Point the node at the shared environment
+            if (msvcNodeProperty.setFingerprint(entry.getKey(), id)) {
+                changed++;
+            }
+            if (templateId != null) {
+                Set<String> expected = templateFingerprints.get(entry.getKey());
+                if (expected != null && !expected.contains(fingerprint.getId())) {
+                    listener.getLogger().printf("WARNING: %s does not match template %s (fingerprints %s)\n",
+                            entry.getKey(), templateId, expected);
+                }
+                ToolchainTemplates.get().record(templateId, entry.getKey(), fingerprint.getId());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Mark every toolchain of a capture that did not reach the agent (or
+     * did not return) as failed
+     * @return -1
+     */
+    private static int channelFailure(CaptureToolchainsCallable callable, CaptureException.Kind kind, String error,
+                                      Map<String, VcvarsallResult> failures) {
+        for (String key : callable.getKeys()) {
+            failures.put(key, VcvarsallResult.failure(kind, error));
+        }
+        return -1;
     }
 }
@@ -0,0 +1,57 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Find the toolchains installed on an agent
+ */
+class DetectToolchainsCallable extends MasterToSlaveCallable<Map<String, Set<String>>, RuntimeException> {
+
+    /**
+     * Packages that provide the compilers for each target (Visual Studio 2017
+     * and newer, where individual targets are optional)
+     */
+    private static final Map<TargetArch, String> TARGET_PACKAGES = new HashMap<>();
+
+    static {
+        TARGET_PACKAGES.put(TargetArch.X86, VsInstanceStore.VC_TOOLS_PACKAGE);
+        TARGET_PACKAGES.put(TargetArch.X86_64, VsInstanceStore.VC_TOOLS_PACKAGE);
+        TARGET_PACKAGES.put(TargetArch.ARM64, "Microsoft.VisualStudio.Component.VC.Tools.ARM64");
+        TARGET_PACKAGES.put(TargetArch.ARM64EC, "Microsoft.VisualStudio.Component.VC.Tools.ARM64EC");
+    }
+
+    @Override
+    public Map<String, Set<String>> call() throws RuntimeException {
+        Map<String, Set<String>> installed = new LinkedHashMap<>();
+        if (!System.getProperty("os.name").startsWith("Windows")) {
+            return installed;
+        }
+        VsInstanceStore store = VsInstanceStore.get(VsInstanceStore.getDefaultDir());
+        HostArch host = HostArch.detect(System.getenv());
+        try (RegistryReader registry = RegistryReader.open()) {
+            for (VsVersion version : VsVersion.values()) {
+                String installDir = RunVcvarsallCallable.findInstallDir(registry, store, host, version.getId());
+                if (installDir == null || RunVcvarsallCallable.findVcvarsall(version, installDir) == null) {
+                    continue;
+                }
+                VsInstance instance = store.find(version.getId());
+                Set<String> targets = new LinkedHashSet<>();
+                for (TargetArch target : version.getTargets()) {
+                    if (instance == null || instance.getPackages().contains(TARGET_PACKAGES.get(target))) {
+                        targets.add(target.getId());
+                    }
+                }
+                if (!targets.isEmpty()) {
+                    installed.put(version.getId(), targets);
+                }
+            }
+        }
+        return installed;
+    }
+}
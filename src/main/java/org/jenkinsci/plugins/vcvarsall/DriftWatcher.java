@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically checks online nodes for toolchain changes
+ *
+ * Each toolchain is only fingerprinted on the agent, which sends back the
+ * fingerprints and nothing else. Only a toolchain whose fingerprint differs
+ * from the one the node uses (after a Visual Studio update, for example) is
+ * captured again and the node pointed at its new environment. Builds that are
+ * already running keep the environment they started with. Nodes are checked
+ * in parallel like a fleet capture, so an agent that does not answer only
+ * holds up the check until its timeout.
+ *
+ * The check can be turned off, in which case only unused environments are
+ * removed from the store.
+ */
+@Extension
+@SuppressWarnings("unused")
+public class DriftWatcher extends AsyncPeriodicWork {
+
+    /**
+     * Time (in minutes) between checks
+     */
+    private static final long RECURRENCE_PERIOD = SystemProperties.getLong(
+            DriftWatcher.class.getName() + ".recurrencePeriod", 15L);
+
+    /**
+     * Whether nodes are checked for toolchain changes
+     */
+    private static final boolean CHECK_TOOLCHAINS = SystemProperties.getBoolean(
+            DriftWatcher.class.getName() + ".checkToolchains", true);
+
+    public DriftWatcher() {
+        super("vcvarsall drift watcher");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(RECURRENCE_PERIOD);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+        if (CHECK_TOOLCHAINS) {
+            refresh(listener);
+        }
+
+        // Environments of toolchains that no node uses any more are removed
+        // from the store once they have been unused for a while
+        Set<String> referenced = new HashSet<>(ToolchainTemplates.get().getFingerprintIds());
+        for (Node node : Jenkins.get().getNodes()) {
+            MsvcNodeProperty msvcNodeProperty = node.getNodeProperties().get(MsvcNodeProperty.class);
+            if (msvcNodeProperty != null) {
+                referenced.addAll(msvcNodeProperty.getFingerprintIds());
+            }
+        }
+        int removed = ToolchainStore.get().prune(referenced);
+        if (removed != 0) {
+            listener.getLogger().printf("Removed %d unused environment(s) from the store\n", removed);
+        }
+    }
+
+    /**
+     * Recapture the toolchains that have changed on any online node
+     */
+    static void refresh(TaskListener listener) throws InterruptedException {
+        FleetCapture fleetCapture = FleetCapture.run(FleetCapture.DEFAULT_PARALLELISM, FleetCapture.DEFAULT_TIMEOUT,
+                true);
+        fleetCapture.await();
+        for (FleetCapture.NodeResult result : fleetCapture.getResults()) {
+            if (result.getState() == FleetCapture.State.FAILED) {
+                listener.getLogger().printf("WARNING: unable to check %s\n", result.getNodeName());
+                listener.getLogger().print(result.getLog());
+            } else if (result.getChanged() != 0) {
+                listener.getLogger().printf("Refreshed %d toolchain(s) on %s\n", result.getChanged(),
+                        result.getNodeName());
+            }
+        }
+    }
+}
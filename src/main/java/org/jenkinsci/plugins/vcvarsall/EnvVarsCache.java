@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * On-disk cache of captured environments, kept on the agent
+ *
+ * Each entry is stored in a separate file named after the fingerprint of the
+ * toolchain that produced it, so a change to any part of the fingerprint
+ * simply results in a cache miss.
+ */
+class EnvVarsCache {
+
+    private static final String FINGERPRINT_KEY = "vcvarsall.fingerprint";
+
+    private final File mDir;
+
+    EnvVarsCache(File dir) {
+        mDir = dir;
+    }
+
+    private File entryFile(String fingerprint) {
+        return new File(mDir, fingerprint + ".properties");
+    }
+
+    /**
+     * Load a cached environment
+     * @param fingerprint toolchain fingerprint
+     * @return cached environment or null if there is no valid entry
+     */
+    EnvVars load(String fingerprint) {
+        File file = entryFile(fingerprint);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!fingerprint.equals(properties.remove(FINGERPRINT_KEY))) {
+            return null;
+        }
+        EnvVars envVars = new EnvVars();
+        for (String name : properties.stringPropertyNames()) {
+            envVars.put(name, properties.getProperty(name));
+        }
+        return envVars;
+    }
+
+    /**
+     * Store an environment in the cache
+     * @param fingerprint toolchain fingerprint
+     * @param envVars environment to store
+     * @throws IOException if the entry cannot be written
+     */
+    void store(String fingerprint, EnvVars envVars) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("unable to create " + mDir);
+        }
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> entry : envVars.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue());
+        }
+        properties.setProperty(FINGERPRINT_KEY, fingerprint);
+
+        // Write to a temporary file first so that a partially written entry
+        // is never picked up by a concurrent load
+        File tmp = File.createTempFile(fingerprint, ".tmp", mDir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                properties.store(out, null);
+            }
+            File file = entryFile(fingerprint);
+            if (!tmp.renameTo(file)) {
+                Util.deleteFile(file);
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("unable to write " + file);
+                }
+            }
+        } finally {
+            if (tmp.exists()) {
+                Util.deleteFile(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding of a captured environment
+ *
+ * Every string (variable names, values and path segments) is stored once in
+ * a sorted table, with each entry sharing its common prefix with the one
+ * before it - path segments from the same installation differ only in their
+ * last few components. Variable names vcvarsall is known to set are not
+ * stored at all but refer to a shared dictionary. The variables then only
+ * consist of references into the table. The result is optionally deflated.
+ *
+ * Both ends of a channel run the same plugin version, so the format carries
+ * a version number but no compatibility with other versions is attempted,
+ * except that environments stored before appended path segments were kept
+ * (version 1) can still be read.
+ */
+class EnvironmentCodec {
+
+    private static final int VERSION = 2;
+
+    private static final int VERSION_WITHOUT_APPENDS = 1;
+
+    private static final int FLAG_DEFLATED = 1;
+
+    /**
+     * Encoded size (in bytes) below which deflating is not worthwhile
+     */
+    private static final int DEFLATE_THRESHOLD = 512;
+
+    /**
+     * Strings shared by both ends (append only - indices are transmitted)
+     */
+    private static final List<String> DICTIONARY = Arrays.asList(
+            "PATH", "INCLUDE", "LIB", "LIBPATH", "EXTERNAL_INCLUDE", "__VSCMD_PREINIT_PATH",
+            "CommandPromptType", "DevEnvDir", "ExtensionSdkDir", "Framework40Version",
+            "FrameworkDir", "FrameworkDir32", "FrameworkDir64", "FrameworkVersion",
+            "FrameworkVersion32", "FrameworkVersion64", "FSHARPINSTALLDIR", "HTMLHelpDir",
+            "IFCPATH", "NETFXSDKDir", "Platform", "UCRTVersion", "UniversalCRTSdkDir",
+            "VCIDEInstallDir", "VCINSTALLDIR", "VCToolsInstallDir", "VCToolsRedistDir",
+            "VCToolsVersion", "VisualStudioVersion", "VS140COMNTOOLS", "VS150COMNTOOLS",
+            "VS160COMNTOOLS", "VS170COMNTOOLS", "VSCMD_ARG_app_plat", "VSCMD_ARG_HOST_ARCH",
+            "VSCMD_ARG_TGT_ARCH", "VSCMD_VER", "VSINSTALLDIR", "WindowsLibPath",
+            "WindowsSdkBinPath", "WindowsSdkDir", "WindowsSDKLibVersion", "WindowsSdkVerBinPath",
+            "WindowsSDKVersion", "x86", "x64", "arm", "arm64", "Desktop"
+    );
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.size(); i++) {
+            DICTIONARY_INDEX.put(DICTIONARY.get(i), i);
+        }
+    }
+
+    private EnvironmentCodec() {
+    }
+
+    /**
+     * Encode the parts of an environment
+     * @param variables plain variables
+     * @param pathValues path variables replaced entirely
+     * @param pathPrepends path variables prepended to
+     * @param pathAppends path variables appended to
+     * @param deflate true to deflate the result if it is large enough
+     * @return encoded form
+     * @throws IOException if encoding fails
+     */
+    static byte[] encode(Map<String, String> variables, Map<String, List<String>> pathValues,
+                         Map<String, List<String>> pathPrepends, Map<String, List<String>> pathAppends,
+                         boolean deflate) throws IOException {
+
+        // Build the table of strings not in the dictionary
+        TreeSet<String> strings = new TreeSet<>();
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            strings.add(entry.getKey());
+            strings.add(entry.getValue());
+        }
+        for (Map<String, List<String>> map : Arrays.asList(pathValues, pathPrepends, pathAppends)) {
+            for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+                strings.add(entry.getKey());
+                strings.addAll(entry.getValue());
+            }
+        }
+        strings.removeAll(DICTIONARY_INDEX.keySet());
+        Map<String, Integer> index = new HashMap<>(DICTIONARY_INDEX);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        writeVarInt(out, strings.size());
+        String previous = "";
+        for (String string : strings) {
+            int common = commonPrefix(previous, string);
+            writeVarInt(out, common);
+            out.writeUTF(string.substring(common));
+            index.put(string, index.size());
+            previous = string;
+        }
+
+        writeVarInt(out, variables.size());
+        for (Map.Entry<String, String> entry : variables.entrySet()) {
+            writeVarInt(out, index.get(entry.getKey()));
+            writeVarInt(out, index.get(entry.getValue()));
+        }
+        writePaths(out, pathValues, index);
+        writePaths(out, pathPrepends, index);
+        writePaths(out, pathAppends, index);
+        out.flush();
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(VERSION);
+        if (deflate && body.size() >= DEFLATE_THRESHOLD) {
+            result.write(FLAG_DEFLATED);
+            try (OutputStream deflater = new DeflaterOutputStream(result)) {
+                body.writeTo(deflater);
+            }
+        } else {
+            result.write(0);
+            body.writeTo(result);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Decode an environment encoded by {@link #encode}
+     * @param data encoded form
+     * @param variables map to receive the plain variables
+     * @param pathValues map to receive the replaced path variables
+     * @param pathPrepends map to receive the prepended path variables
+     * @param pathAppends map to receive the appended path variables
+     * @throws IOException if the data is not valid
+     */
+    static void decode(byte[] data, Map<String, String> variables, Map<String, List<String>> pathValues,
+                       Map<String, List<String>> pathPrepends, Map<String, List<String>> pathAppends)
+            throws IOException {
+        if (data.length < 2 || (data[0] != VERSION && data[0] != VERSION_WITHOUT_APPENDS)) {
+            throw new IOException("unsupported environment encoding");
+        }
+        InputStream body = new ByteArrayInputStream(data, 2, data.length - 2);
+        if ((data[1] & FLAG_DEFLATED) != 0) {
+            body = new InflaterInputStream(body);
+        }
+        DataInputStream in = new DataInputStream(body);
+
+        // Counts are not trusted for sizing, so corrupt data cannot make
+        // the decoder allocate more than the data itself justifies
+        int count = readVarInt(in);
+        List<String> strings = new ArrayList<>(DICTIONARY);
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int common = readVarInt(in);
+            if (common > previous.length()) {
+                throw new IOException("invalid string table");
+            }
+            previous = previous.substring(0, common) + in.readUTF();
+            strings.add(previous);
+        }
+
+        count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            variables.put(lookup(strings, readVarInt(in)), lookup(strings, readVarInt(in)));
+        }
+        readPaths(in, pathValues, strings);
+        readPaths(in, pathPrepends, strings);
+        if (data[0] != VERSION_WITHOUT_APPENDS) {
+            readPaths(in, pathAppends, strings);
+        }
+        if (in.read() != -1) {
+            throw new IOException("unexpected data after environment");
+        }
+    }
+
+    private static void writePaths(DataOutputStream out, Map<String, List<String>> paths,
+                                   Map<String, Integer> index) throws IOException {
+        writeVarInt(out, paths.size());
+        for (Map.Entry<String, List<String>> entry : paths.entrySet()) {
+            writeVarInt(out, index.get(entry.getKey()));
+            writeVarInt(out, entry.getValue().size());
+            for (String segment : entry.getValue()) {
+                writeVarInt(out, index.get(segment));
+            }
+        }
+    }
+
+    private static void readPaths(DataInputStream in, Map<String, List<String>> paths,
+                                  List<String> strings) throws IOException {
+        int count = readVarInt(in);
+        for (int i = 0; i < count; i++) {
+            String name = lookup(strings, readVarInt(in));
+            int size = readVarInt(in);
+            List<String> segments = new ArrayList<>();
+            for (int j = 0; j < size; j++) {
+                segments.add(lookup(strings, readVarInt(in)));
+            }
+            paths.put(name, segments);
+        }
+    }
+
+    private static String lookup(List<String> strings, int i) throws IOException {
+        if (i < 0 || i >= strings.size()) {
+            throw new IOException("invalid string reference");
+        }
+        return strings.get(i);
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("invalid integer");
+                }
+                return value;
+            }
+        }
+        throw new IOException("invalid integer");
+    }
+}
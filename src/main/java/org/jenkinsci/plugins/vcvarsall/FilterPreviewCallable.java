@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Capture a toolchain without filtering and report what a filter would drop
+ */
+class FilterPreviewCallable extends MasterToSlaveCallable<List<String>, RuntimeException> {
+
+    private final RunVcvarsallCallable mCallable;
+    private final VariableFilter mFilter;
+    private final boolean mCompactPath;
+
+    /**
+     * Create the callable
+     * @param callable capture without filtering or compaction
+     * @param filter filter to preview
+     * @param compactPath true to preview path compaction
+     */
+    FilterPreviewCallable(RunVcvarsallCallable callable, VariableFilter filter, boolean compactPath) {
+        mCallable = callable;
+        mFilter = filter;
+        mCompactPath = compactPath;
+    }
+
+    @Override
+    public List<String> call() throws RuntimeException {
+        CapturedEnvironment environment = mCallable.call().getEnvironment();
+        List<String> dropped = new ArrayList<>();
+        for (String name : environment.getNames()) {
+            if (!mFilter.accepts(name)) {
+                dropped.add(String.format("%s: filtered", name));
+            }
+        }
+        if (mCompactPath) {
+            environment.compactPaths(dropped);
+        }
+        return dropped;
+    }
+}
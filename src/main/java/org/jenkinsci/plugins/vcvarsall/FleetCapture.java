@@ -0,0 +1,269 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture the toolchains of every online node at once
+ *
+ * Used to refresh the whole fleet (after Visual Studio updates have been
+ * rolled out, for example) without reconnecting any agents. Nodes are
+ * captured on a dedicated executor so that a large fleet does not starve
+ * the captures of agents that are connecting at the same time.
+ */
+class FleetCapture {
+
+    /**
+     * Default number of nodes captured at the same time
+     */
+    static final int DEFAULT_PARALLELISM = SystemProperties.getInteger(
+            FleetCapture.class.getName() + ".parallelism", 16);
+
+    /**
+     * Default time (in seconds) to wait for a single node
+     */
+    static final long DEFAULT_TIMEOUT = SystemProperties.getLong(
+            FleetCapture.class.getName() + ".timeout", ComputerListenerImpl.CAPTURE_TIMEOUT + 60);
+
+    private static FleetCapture sCurrent;
+
+    /**
+     * State of the capture on a single node
+     */
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    /**
+     * Progress and outcome for a single node
+     */
+    public static class NodeResult {
+
+        private final String mNodeName;
+        private final ByteArrayOutputStream mLog = new ByteArrayOutputStream();
+        private volatile State mState = State.QUEUED;
+        private volatile int mChanged;
+        private volatile List<String> mFailures = Collections.emptyList();
+
+        NodeResult(String nodeName) {
+            mNodeName = nodeName;
+        }
+
+        public String getNodeName() {
+            return mNodeName;
+        }
+
+        public State getState() {
+            return mState;
+        }
+
+        /**
+         * Retrieve the number of toolchains whose environment changed
+         * @return number of refreshed toolchains
+         */
+        public int getChanged() {
+            return mChanged;
+        }
+
+        /**
+         * Retrieve the toolchains that could not be captured
+         * @return description of each failed toolchain
+         */
+        public List<String> getFailures() {
+            return mFailures;
+        }
+
+        public String getLog() {
+            return new String(mLog.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private final List<NodeResult> mResults = new ArrayList<>();
+    private final ExecutorService mExecutor;
+    private final long mStarted = System.currentTimeMillis();
+
+    private FleetCapture(int parallelism) {
+        mExecutor = Executors.newFixedThreadPool(
+                parallelism,
+                new NamingThreadFactory(new DaemonThreadFactory(), "vcvarsall fleet capture")
+        );
+    }
+
+    /**
+     * Start capturing every online node with the property
+     *
+     * Only one fleet capture runs at a time; if one is already in progress
+     * it is returned instead of starting another.
+     * @param parallelism number of nodes captured at the same time
+     * @param timeoutSeconds time to wait for a single node
+     * @return capture in progress
+     */
+    static synchronized FleetCapture start(int parallelism, long timeoutSeconds) {
+        if (sCurrent != null && !sCurrent.isDone()) {
+            return sCurrent;
+        }
+        sCurrent = run(parallelism, timeoutSeconds);
+        return sCurrent;
+    }
+
+    /**
+     * Start capturing every online node with the property, without
+     * publishing the progress
+     * @param parallelism number of nodes captured at the same time
+     * @param timeoutSeconds time to wait for a single node
+     * @return capture in progress
+     */
+    static FleetCapture run(int parallelism, long timeoutSeconds) {
+        return run(parallelism, timeoutSeconds, false);
+    }
+
+    /**
+     * Start capturing the online nodes with the property, without
+     * publishing the progress
+     * @param parallelism number of nodes captured at the same time
+     * @param timeoutSeconds time to wait for a single node
+     * @param changedOnly true to fingerprint the toolchains first and only
+     *                    capture those that have changed
+     * @return capture in progress
+     */
+    static FleetCapture run(int parallelism, final long timeoutSeconds, final boolean changedOnly) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        if (timeoutSeconds < 1) {
+            throw new IllegalArgumentException("timeout must be at least 1 second");
+        }
+        final FleetCapture fleetCapture = new FleetCapture(parallelism);
+        for (final Computer c : Jenkins.get().getComputers()) {
+            Node node = c.getNode();
+            final VirtualChannel channel = c.getChannel();
+            if (node == null || channel == null || ComputerListenerImpl.isCapturePending(node)) {
+                continue;
+            }
+            final MsvcNodeProperty msvcNodeProperty = node.getNodeProperties().get(MsvcNodeProperty.class);
+            final FilePath root = node.getRootPath();
+            if (msvcNodeProperty == null || root == null) {
+                continue;
+            }
+            final NodeResult result = new NodeResult(node.getNodeName());
+            fleetCapture.mResults.add(result);
+            fleetCapture.mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    result.mState = State.RUNNING;
+                    TaskListener listener = new StreamTaskListener(result.mLog);
+                    CaptureToolchainsCallable callable = ComputerListenerImpl.createCallable(msvcNodeProperty, root);
+                    if (changedOnly) {
+                        Set<String> keys = ComputerListenerImpl.findChanged(channel, msvcNodeProperty, root, listener,
+                                timeoutSeconds);
+                        if (keys == null) {
+                            result.mState = State.FAILED;
+                            return;
+                        }
+                        if (keys.isEmpty()) {
+                            result.mState = State.SUCCEEDED;
+                            return;
+                        }
+                        callable = callable.subset(keys);
+                    }
+                    Map<String, VcvarsallResult> failures = new LinkedHashMap<>();
+                    int changed = ComputerListenerImpl.capture(
+                            c,
+                            channel,
+                            callable,
+                            listener,
+                            timeoutSeconds,
+                            failures
+                    );
+                    List<String> failed = new ArrayList<>();
+                    for (Map.Entry<String, VcvarsallResult> entry : failures.entrySet()) {
+                        failed.add(String.format("%s: %s (%s)", entry.getKey(), entry.getValue().getError(),
+                                entry.getValue().getFailureKind()));
+                    }
+                    result.mChanged = Math.max(0, changed);
+                    result.mFailures = Collections.unmodifiableList(failed);
+                    result.mState = changed < 0 || !failed.isEmpty() ? State.FAILED : State.SUCCEEDED;
+                }
+            });
+        }
+        fleetCapture.mExecutor.shutdown();
+        return fleetCapture;
+    }
+
+    /**
+     * Retrieve the most recent fleet capture
+     * @return capture or null if none has been started
+     */
+    static synchronized FleetCapture getCurrent() {
+        return sCurrent;
+    }
+
+    boolean isDone() {
+        return mExecutor.isTerminated();
+    }
+
+    /**
+     * Wait for every node to finish
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void await() throws InterruptedException {
+        while (!mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // Every node gives up after its timeout, so this ends eventually
+        }
+    }
+
+    long getStarted() {
+        return mStarted;
+    }
+
+    List<NodeResult> getResults() {
+        return Collections.unmodifiableList(mResults);
+    }
+
+    /**
+     * Count the toolchains that could not be captured on any node
+     * @return number of failed toolchains
+     */
+    int countFailures() {
+        int count = 0;
+        for (NodeResult result : mResults) {
+            count += result.getFailures().size();
+        }
+        return count;
+    }
+
+    /**
+     * Count the nodes in a particular state
+     * @param state state to look for
+     * @return number of nodes in that state
+     */
+    int count(State state) {
+        int count = 0;
+        for (NodeResult result : mResults) {
+            if (result.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Refresh the toolchains of every node from the command line
+ */
+@Extension
+@SuppressWarnings("unused")
+public class FleetCaptureCommand extends CLICommand {
+
+    @Option(name = "-parallelism", usage = "Number of nodes captured at the same time")
+    public int parallelism = FleetCapture.DEFAULT_PARALLELISM;
+
+    @Option(name = "-timeout", usage = "Time (in seconds) to wait for a single node")
+    public long timeout = FleetCapture.DEFAULT_TIMEOUT;
+
+    @Option(name = "-verbose", usage = "Print the capture log of every node")
+    public boolean verbose;
+
+    @Override
+    public String getName() {
+        return "vcvarsall-fleet-capture";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Captures the vcvarsall toolchains of every online node.";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        FleetCapture fleetCapture = FleetCapture.start(parallelism, timeout);
+        int total = fleetCapture.getResults().size();
+        stdout.printf("Capturing %d node(s)\n", total);
+
+        // Report progress until every node has finished
+        int reported = -1;
+        while (!fleetCapture.isDone()) {
+            Thread.sleep(1000);
+            int finished = fleetCapture.count(FleetCapture.State.SUCCEEDED) +
+                    fleetCapture.count(FleetCapture.State.FAILED);
+            if (finished != reported) {
+                stdout.printf("%d of %d node(s) finished\n", finished, total);
+                reported = finished;
+            }
+        }
+
+        int refreshed = 0;
+        for (FleetCapture.NodeResult result : fleetCapture.getResults()) {
+            refreshed += result.getChanged();
+            stdout.printf("%s: %s, %d toolchain(s) refreshed\n",
+                    result.getNodeName(), result.getState(), result.getChanged());
+            for (String failure : result.getFailures()) {
+                stdout.printf("  failed %s\n", failure);
+            }
+            if (verbose || result.getState() == FleetCapture.State.FAILED) {
+                stdout.print(result.getLog());
+            }
+        }
+        int failed = fleetCapture.count(FleetCapture.State.FAILED);
+        stdout.printf("%d toolchain(s) refreshed, %d toolchain(s) failed, %d node(s) failed\n",
+                refreshed, fleetCapture.countFailures(), failed);
+        return failed == 0 ? 0 : 1;
+    }
+}
@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Page for refreshing the toolchains of every node from the controller
+ */
+@Extension
+@SuppressWarnings("unused")
+public class FleetCaptureLink extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "computer.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Refresh vcvarsall toolchains";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Capture the toolchains of every online node configured to run vcvarsall.bat";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "vcvarsall";
+    }
+
+    public int getDefaultParallelism() {
+        return FleetCapture.DEFAULT_PARALLELISM;
+    }
+
+    public long getDefaultTimeout() {
+        return FleetCapture.DEFAULT_TIMEOUT;
+    }
+
+    public boolean isStarted() {
+        return FleetCapture.getCurrent() != null;
+    }
+
+    public boolean isRunning() {
+        FleetCapture current = FleetCapture.getCurrent();
+        return current != null && !current.isDone();
+    }
+
+    public Date getStartTime() {
+        FleetCapture current = FleetCapture.getCurrent();
+        return current == null ? null : new Date(current.getStarted());
+    }
+
+    public List<FleetCapture.NodeResult> getResults() {
+        FleetCapture current = FleetCapture.getCurrent();
+        return current == null ? Collections.<FleetCapture.NodeResult>emptyList() : current.getResults();
+    }
+
+    /**
+     * Count the nodes in a particular state
+     * @param state name of the state
+     * @return number of nodes in that state
+     */
+    public int count(String state) {
+        FleetCapture current = FleetCapture.getCurrent();
+        return current == null ? 0 : current.count(FleetCapture.State.valueOf(state));
+    }
+
+    @RequirePOST
+    public HttpResponse doStart(@QueryParameter int parallelism, @QueryParameter long timeout) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        try {
+            FleetCapture.start(parallelism, timeout);
+        } catch (IllegalArgumentException e) {
+            return HttpResponses.error(400, e.getMessage());
+        }
+        return HttpResponses.redirectToDot();
+    }
+}
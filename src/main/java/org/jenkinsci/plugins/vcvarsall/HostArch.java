@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Architecture of the compilers and tools themselves
+ */
+enum HostArch {
+
+    X86("x86", "x86"),
+    X64("amd64", "x64"),
+    ARM64("arm64", "arm64");
+
+    private final String mParam;
+    private final String mDirectory;
+
+    HostArch(String param, String directory) {
+        mParam = param;
+        mDirectory = directory;
+    }
+
+    /**
+     * Determine the architecture of the operating system
+     *
+     * PROCESSOR_ARCHITEW6432 is only set for 32-bit processes running on a
+     * 64-bit system (where PROCESSOR_ARCHITECTURE reports the emulated
+     * architecture), so it takes precedence.
+     * @param env environment of the current process
+     * @return host architecture
+     */
+    static HostArch detect(Map<String, String> env) {
+        String arch = env.get("PROCESSOR_ARCHITEW6432");
+        if (arch == null) {
+            arch = env.get("PROCESSOR_ARCHITECTURE");
+        }
+        if (arch != null) {
+            switch (arch.toUpperCase(Locale.ENGLISH)) {
+                case "AMD64":
+                case "IA64":
+                    return X64;
+                case "ARM64":
+                    return ARM64;
+                case "X86":
+                    return X86;
+            }
+        }
+        return env.get("ProgramFiles(x86)") != null ? X64 : X86;
+    }
+
+    /**
+     * Retrieve the name vcvarsall uses for the architecture
+     * @return host part of the vcvarsall parameter
+     */
+    String getParam() {
+        return mParam;
+    }
+
+    /**
+     * Retrieve the name used in the bin\Host&lt;arch&gt; directories
+     * @return directory name
+     */
+    String getDirectory() {
+        return mDirectory;
+    }
+}
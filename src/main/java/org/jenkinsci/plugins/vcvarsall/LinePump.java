@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Thread that reads a stream line by line until it is exhausted
+ */
+abstract class LinePump extends Thread {
+
+    private final BufferedReader mReader;
+    private volatile IOException mError;
+
+    LinePump(String name, InputStream in) {
+        super(name);
+        setDaemon(true);
+        mReader = new BufferedReader(new InputStreamReader(in));
+    }
+
+    /**
+     * Process a single line read from the stream
+     * @param line line without its terminator
+     */
+    protected abstract void onLine(String line);
+
+    /**
+     * Retrieve the error that stopped the pump
+     * @return error or null if the stream was read to the end
+     */
+    IOException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            String line;
+            while ((line = mReader.readLine()) != null) {
+                onLine(line);
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            try {
+                mReader.close();
+            } catch (IOException e) {
+                // Nothing more can be read either way
+            }
+        }
+    }
+}
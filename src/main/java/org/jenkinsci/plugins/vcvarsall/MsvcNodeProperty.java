@@ -3,68 +3,377 @@ package org.jenkinsci.plugins.vcvarsall;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.*;
 import hudson.slaves.NodeProperty;
 import hudson.slaves.NodePropertyDescriptor;
-import hudson.util.ListBoxModel;
+import hudson.remoting.VirtualChannel;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Property for configuring Visual Studio support
  */
 public class MsvcNodeProperty extends NodeProperty<Node> {
 
-    static final String MSVC2013 = "12.0";
-    static final String MSVC2015 = "14.0";
-    static final String MSVC2017 = "15.0";
+    /**
+     * Build parameter used to select a toolchain other than the default
+     */
+    static final String TOOLCHAIN_PARAM = "VCVARSALL_TOOLCHAIN";
 
-    static final String X86 = "x86";
-    static final String X86_64 = "x86_64";
+    private static final Environment EMPTY_ENVIRONMENT = new Environment() {};
 
-    private String mVersion;
-    private String mArch;
-    private EnvVars mEnvVars;
+    private List<Toolchain> mToolchains;
+    private boolean mEmulate;
+    private boolean mValidateEmulation;
+    private boolean mForceX86Host;
+    private boolean mTuneParallelism;
+    private String mTemplate;
+    private String mAllowVariables;
+    private String mDenyVariables;
+    private boolean mCompactPath;
+    private boolean mReuseShell;
+    private boolean mHoldOffline;
+    private volatile Map<String, String> mFingerprints;
+    private transient volatile ParallelTuning mTuning;
+
+    // Retained for reading configurations with a single toolchain
+    @Deprecated
+    private transient String mVersion;
+    @Deprecated
+    private transient String mArch;
 
     @DataBoundConstructor
-    public MsvcNodeProperty(String version, String arch) {
-        mVersion = version;
-        mArch = arch;
+    public MsvcNodeProperty(List<Toolchain> toolchains) {
+        mToolchains = toolchains == null ? new ArrayList<Toolchain>() : new ArrayList<>(toolchains);
+    }
+
+    protected Object readResolve() {
+        if (mToolchains == null) {
+            mToolchains = new ArrayList<>();
+            if (mVersion != null && mArch != null) {
+                mToolchains.add(new Toolchain(mVersion, mArch));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Point a toolchain at an environment in the toolchain store
+     * @param key toolchain key
+     * @param fingerprint ID of the fingerprint the environment is stored under
+     * @return true if the toolchain previously pointed elsewhere
+     */
+    boolean setFingerprint(String key, String fingerprint) {
+        synchronized (this) {
+            if (mFingerprints != null && fingerprint.equals(mFingerprints.get(key))) {
+                return false;
+            }
+            Map<String, String> fingerprints = mFingerprints == null ?
+                    new HashMap<String, String>() : new HashMap<>(mFingerprints);
+            fingerprints.put(key, fingerprint);
+            mFingerprints = fingerprints;
+            return true;
+        }
+    }
+
+    /**
+     * Retrieve the fingerprints of the environments the toolchains use
+     * @return fingerprint IDs
+     */
+    Collection<String> getFingerprintIds() {
+        Map<String, String> fingerprints = mFingerprints;
+        return fingerprints == null ? Collections.<String>emptyList() : fingerprints.values();
+    }
+
+    /**
+     * Retrieve the fingerprint of the environment a toolchain uses
+     * @param key toolchain key
+     * @return fingerprint ID or null if the toolchain has not been captured
+     */
+    String getFingerprint(String key) {
+        Map<String, String> fingerprints = mFingerprints;
+        return fingerprints == null ? null : fingerprints.get(key);
+    }
+
+    /**
+     * Retrieve the environment captured for a toolchain
+     * @param key toolchain key or null for the default toolchain
+     * @return captured environment or null if none is available
+     */
+    CapturedEnvironment getEnvironment(String key) {
+        if (key == null) {
+            if (mToolchains.isEmpty()) {
+                return null;
+            }
+            key = mToolchains.get(0).getKey();
+        }
+        Map<String, String> fingerprints = mFingerprints;
+        if (fingerprints == null) {
+            return null;
+        }
+        ToolchainStore.Entry entry = ToolchainStore.get().get(fingerprints.get(key));
+        return entry == null ? null : entry.getEnvironment();
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public List<Toolchain> getToolchains() {
+        return Collections.unmodifiableList(mToolchains);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isEmulate() {
+        return mEmulate;
+    }
+
+    /**
+     * Compute the environment from the installation layout instead of
+     * running vcvarsall (Visual Studio 2017 and newer only)
+     * @param emulate true to enable emulation
+     */
+    @DataBoundSetter
+    public void setEmulate(boolean emulate) {
+        mEmulate = emulate;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isValidateEmulation() {
+        return mValidateEmulation;
+    }
+
+    /**
+     * Also run vcvarsall and fall back to its environment if the emulated
+     * one differs
+     * @param validateEmulation true to enable validation
+     */
+    @DataBoundSetter
+    public void setValidateEmulation(boolean validateEmulation) {
+        mValidateEmulation = validateEmulation;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isPreferNativeHost() {
+        return !mForceX86Host;
+    }
+
+    /**
+     * Use compilers native to the host (64-bit compilers on 64-bit hosts)
+     * where installed instead of the x86-hosted cross compilers
+     * @param preferNativeHost true to prefer native compilers
+     */
+    @DataBoundSetter
+    public void setPreferNativeHost(boolean preferNativeHost) {
+        mForceX86Host = !preferNativeHost;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isTuneParallelism() {
+        return mTuneParallelism;
+    }
+
+    /**
+     * Inject variables that make builds use the cores of the node
+     * @param tuneParallelism true to inject the variables
+     */
+    @DataBoundSetter
+    public void setTuneParallelism(boolean tuneParallelism) {
+        mTuneParallelism = tuneParallelism;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getTemplate() {
+        return mTemplate;
+    }
+
+    /**
+     * Name the template the node is provisioned from, so that nodes of the
+     * same template reuse each other's environments from the start
+     * @param template template ID or empty for none
+     */
+    @DataBoundSetter
+    public void setTemplate(String template) {
+        mTemplate = Util.fixEmptyAndTrim(template);
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getAllowVariables() {
+        return mAllowVariables;
     }
 
-    void setEnvVars(EnvVars envVars) {
-        mEnvVars = envVars;
+    /**
+     * Only keep the variables matching these patterns (one per line)
+     * @param allowVariables patterns or empty to keep all variables
+     */
+    @DataBoundSetter
+    public void setAllowVariables(String allowVariables) {
+        mAllowVariables = Util.fixEmptyAndTrim(allowVariables);
     }
 
     @SuppressWarnings("WeakerAccess")
-    public String getVersion() {
-        return mVersion;
+    public String getDenyVariables() {
+        return mDenyVariables == null ? VariableFilter.DEFAULT_DENY : mDenyVariables;
+    }
+
+    /**
+     * Drop the variables matching these patterns (one per line)
+     * @param denyVariables patterns
+     */
+    @DataBoundSetter
+    public void setDenyVariables(String denyVariables) {
+        mDenyVariables = Util.fixNull(denyVariables).trim();
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isCompactPath() {
+        return mCompactPath;
+    }
+
+    /**
+     * Remove duplicate and nonexistent entries from path variables
+     * @param compactPath true to compact path variables
+     */
+    @DataBoundSetter
+    public void setCompactPath(boolean compactPath) {
+        mCompactPath = compactPath;
     }
 
     @SuppressWarnings("WeakerAccess")
-    public String getArch() {
-        return mArch;
+    public boolean isReuseShell() {
+        return mReuseShell;
+    }
+
+    /**
+     * Run vcvarsall in warm cmd sessions kept on the agent
+     * @param reuseShell true to reuse sessions
+     */
+    @DataBoundSetter
+    public void setReuseShell(boolean reuseShell) {
+        mReuseShell = reuseShell;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public boolean isHoldOffline() {
+        return mHoldOffline;
+    }
+
+    /**
+     * Keep the node offline while any toolchain cannot be captured
+     * @param holdOffline true to take the node offline on failure
+     */
+    @DataBoundSetter
+    public void setHoldOffline(boolean holdOffline) {
+        mHoldOffline = holdOffline;
+    }
+
+    /**
+     * Create the filter for captured variables
+     * @return filter
+     */
+    VariableFilter createFilter() {
+        return new VariableFilter(mAllowVariables, getDenyVariables());
+    }
+
+    void setTuning(ParallelTuning tuning) {
+        mTuning = tuning;
+    }
+
+    /**
+     * Retrieve the tuning to apply to builds
+     * @return tuning or null if disabled or not yet known
+     */
+    ParallelTuning getActiveTuning() {
+        return mTuneParallelism ? mTuning : null;
+    }
+
+    /**
+     * Retrieve the variables computed for the node, for display
+     * @return names and values or null if the node has not been probed
+     */
+    @SuppressWarnings("unused")
+    public Map<String, String> getTuningVariables() {
+        ParallelTuning tuning = mTuning;
+        return tuning == null || node == null ? null : tuning.getVariables(node.getNumExecutors());
+    }
+
+    private void applyTuning(Map<String, String> env, int executor) {
+        ParallelTuning tuning = getActiveTuning();
+        if (tuning != null && node != null) {
+            tuning.apply(env, node.getNumExecutors(), node.getNodeName(), executor);
+        }
     }
 
     @Override
     public Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-        return Environment.create(mEnvVars);
+        // The default toolchain is already applied through buildEnvVars, so
+        // it is taken off again before applying another one
+        String key = (String) build.getBuildVariables().get(TOOLCHAIN_PARAM);
+        final CapturedEnvironment environment = key == null ? null : getEnvironment(key);
+        if (key != null && environment == null) {
+            listener.getLogger().printf("No environment captured for toolchain %s\n", key);
+        }
+        final CapturedEnvironment defaultEnvironment = environment == null ? null : getEnvironment(null);
+        if (getActiveTuning() == null && defaultEnvironment == null) {
+            return environment == null ? EMPTY_ENVIRONMENT : environment.toEnvironment();
+        }
+
+        // The mspdbsrv endpoint depends on the executor
+        Executor executor = build.getExecutor();
+        final int number = executor == null ? -1 : executor.getNumber();
+        return new Environment() {
+            @Override
+            public void buildEnvVars(Map<String, String> env) {
+                if (environment != null) {
+                    if (defaultEnvironment != null) {
+                        defaultEnvironment.unapply(env);
+                    }
+                    environment.apply(env);
+                }
+                applyTuning(env, number);
+            }
+        };
     }
 
     @Override
     public void buildEnvVars(@Nonnull EnvVars env, @Nonnull TaskListener listener) {
-        env.putAll(mEnvVars);
+        CapturedEnvironment environment = getEnvironment(null);
+        if (environment != null) {
+            environment.apply(env);
+        }
+
+        // Pipeline builds do not go through setUp, but their node block
+        // builds the environment on the executor it runs on
+        Executor executor = Executor.currentExecutor();
+        boolean own = executor != null && node != null && executor.getOwner() == node.toComputer();
+        applyTuning(env, own ? executor.getNumber() : -1);
     }
 
     @Override
     public NodeProperty<?> reconfigure(StaplerRequest req, JSONObject form) throws Descriptor.FormException {
         NodeProperty<?> nodeProperty = super.reconfigure(req, form);
         if (nodeProperty != null) {
-            ((MsvcNodeProperty) nodeProperty).setEnvVars(mEnvVars);
+            ((MsvcNodeProperty) nodeProperty).setTuning(mTuning);
+        }
+        Map<String, String> fingerprints = mFingerprints;
+        if (nodeProperty != null && fingerprints != null) {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                ((MsvcNodeProperty) nodeProperty).setFingerprint(entry.getKey(), entry.getValue());
+            }
         }
         return nodeProperty;
     }
@@ -78,19 +387,86 @@ public class MsvcNodeProperty extends NodeProperty<Node> {
             return "Run vcvarsall.bat on startup";
         }
 
-        public ListBoxModel doFillVersionItems() {
-            ListBoxModel items = new ListBoxModel();
-            items.add("Visual Studio 2013", MSVC2013);
-            items.add("Visual Studio 2015", MSVC2015);
-            items.add("Visual Studio 2017", MSVC2017);
-            return items;
+        public String getDefaultDenyVariables() {
+            return VariableFilter.DEFAULT_DENY;
+        }
+
+        public FormValidation doCheckAllowVariables(@QueryParameter String value) {
+            return checkPatterns(value);
+        }
+
+        public FormValidation doCheckDenyVariables(@QueryParameter String value) {
+            return checkPatterns(value);
+        }
+
+        private static FormValidation checkPatterns(String value) {
+            try {
+                new VariableFilter(value, null);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e.getDescription() + ": " + e.getPattern());
+            }
         }
 
-        public ListBoxModel doFillArchItems() {
-            ListBoxModel items = new ListBoxModel();
-            items.add("x86", X86);
-            items.add("x86_64", X86_64);
-            return items;
+        /**
+         * Capture the default toolchain of the node without filtering and
+         * list what the filter would drop
+         */
+        @RequirePOST
+        public FormValidation doPreviewFilter(@AncestorInPath Computer computer,
+                                              @QueryParameter String allowVariables,
+                                              @QueryParameter String denyVariables,
+                                              @QueryParameter boolean compactPath) {
+            if (computer == null) {
+                return FormValidation.error("Save the node first");
+            }
+            computer.checkPermission(Computer.CONFIGURE);
+            Node node = computer.getNode();
+            VirtualChannel channel = computer.getChannel();
+            MsvcNodeProperty msvcNodeProperty = node == null ? null :
+                    node.getNodeProperties().get(MsvcNodeProperty.class);
+            if (channel == null || msvcNodeProperty == null || msvcNodeProperty.getToolchains().isEmpty()) {
+                return FormValidation.error("The node must be online with a toolchain configured");
+            }
+            VariableFilter filter;
+            try {
+                filter = new VariableFilter(allowVariables, denyVariables);
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e.getDescription() + ": " + e.getPattern());
+            }
+            Toolchain toolchain = msvcNodeProperty.getToolchains().get(0);
+            RunVcvarsallCallable callable = new RunVcvarsallCallable(
+                    toolchain.getVersion(),
+                    toolchain.getArch(),
+                    node.getRootPath() == null ? "" :
+                            node.getRootPath().child(ComputerListenerImpl.CACHE_DIR).getRemote(),
+                    ComputerListenerImpl.CAPTURE_TIMEOUT,
+                    msvcNodeProperty.isEmulate(),
+                    msvcNodeProperty.isValidateEmulation(),
+                    msvcNodeProperty.isPreferNativeHost(),
+                    new VariableFilter(null, null),
+                    false,
+                    msvcNodeProperty.isReuseShell(),
+                    Collections.<String>emptySet()
+            );
+            callable.setScript(ComputerListenerImpl.captureScript(node.getRootPath()));
+            List<String> dropped;
+            try {
+                dropped = channel.call(new FilterPreviewCallable(callable, filter, compactPath));
+            } catch (RuntimeException | IOException e) {
+                return FormValidation.error(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return FormValidation.error(e.getMessage());
+            }
+            if (dropped.isEmpty()) {
+                return FormValidation.ok("Nothing would be dropped from %s", toolchain.getKey());
+            }
+            StringBuilder message = new StringBuilder();
+            for (String line : dropped) {
+                message.append(line).append('\n');
+            }
+            return FormValidation.okWithMarkup(String.format("<pre>%s</pre>", Util.escape(message.toString())));
         }
     }
 }
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.util.jna.JnaException;
+import hudson.util.jna.RegistryKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry reader that calls the Win32 API directly through JNA
+ *
+ * Keys are opened once and kept open until the reader is closed.
+ */
+class NativeRegistryReader implements RegistryReader {
+
+    private final RegistryKey mRoot;
+    private final Map<String, RegistryKey> mKeys = new HashMap<>();
+
+    NativeRegistryReader() {
+        mRoot = RegistryKey.LOCAL_MACHINE;
+    }
+
+    /**
+     * Open a key, reusing the handle from an earlier lookup if possible
+     * @param key path of the key
+     * @return the key or null if it does not exist
+     */
+    private synchronized RegistryKey openKey(String key) {
+        if (mKeys.containsKey(key)) {
+            return mKeys.get(key);
+        }
+        RegistryKey registryKey;
+        try {
+            registryKey = mRoot.openReadonly(key);
+        } catch (JnaException e) {
+            registryKey = null;
+        }
+        mKeys.put(key, registryKey);
+        return registryKey;
+    }
+
+    @Override
+    public String readString(String key, String valueName) throws RuntimeException {
+        RegistryKey registryKey = openKey(key);
+        if (registryKey == null || !registryKey.valueExists(valueName)) {
+            return null;
+        }
+        return registryKey.getStringValue(valueName);
+    }
+
+    @Override
+    public List<String> readSubKeys(String key) throws RuntimeException {
+        RegistryKey registryKey = openKey(key);
+        if (registryKey == null) {
+            return null;
+        }
+        return new ArrayList<>(registryKey.getSubKeys());
+    }
+
+    @Override
+    public synchronized void close() {
+        for (RegistryKey registryKey : mKeys.values()) {
+            if (registryKey != null) {
+                registryKey.dispose();
+            }
+        }
+        mKeys.clear();
+    }
+}
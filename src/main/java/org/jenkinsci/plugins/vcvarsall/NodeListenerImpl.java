@@ -0,0 +1,26 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.Node;
+import jenkins.model.NodeListener;
+
+/**
+ * Forgets what was recorded for a node when it is deleted or renamed, so
+ * that short-lived cloud agents do not accumulate on the controller.
+ */
+@Extension
+@SuppressWarnings("unused")
+public class NodeListenerImpl extends NodeListener {
+
+    @Override
+    protected void onUpdated(Node oldOne, Node newOne) {
+        if (!oldOne.getNodeName().equals(newOne.getNodeName())) {
+            CaptureMetrics.remove(oldOne.getNodeName());
+        }
+    }
+
+    @Override
+    protected void onDeleted(Node node) {
+        CaptureMetrics.remove(node.getNodeName());
+    }
+}
@@ -0,0 +1,107 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import jenkins.util.SystemProperties;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Variables that let builds make use of the cores of a node
+ *
+ * The cores and memory of the node are shared evenly between its executors.
+ * Only MSBuild's MultiToolTask is used to run compilers in parallel; adding
+ * /MP or /m on top would multiply the processes each build starts. Each
+ * compiler process is assumed to need a fixed amount of memory, so nodes
+ * with little memory per core run fewer.
+ */
+class ParallelTuning implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Memory (in MB) to allow for each compiler process
+     */
+    private static final long MEMORY_PER_COMPILER = SystemProperties.getLong(
+            ParallelTuning.class.getName() + ".memoryPerCompiler", 2048L);
+
+    private final int mCores;
+    private final long mMemory;
+
+    ParallelTuning(int cores, long memory) {
+        mCores = cores;
+        mMemory = memory;
+    }
+
+    /**
+     * Determine the cores and memory of the host this runs on
+     * @return tuning for the host
+     */
+    static ParallelTuning probe() {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        long memory = 0;
+        if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+            memory = ((com.sun.management.OperatingSystemMXBean) bean).getTotalPhysicalMemorySize();
+        }
+        return new ParallelTuning(Runtime.getRuntime().availableProcessors(), memory);
+    }
+
+    int getCores() {
+        return mCores;
+    }
+
+    /**
+     * Retrieve the physical memory of the node
+     * @return memory in bytes or 0 if unknown
+     */
+    long getMemory() {
+        return mMemory;
+    }
+
+    /**
+     * Compute the number of compiler processes a single build should run
+     * @param executors number of executors on the node
+     * @return number of processes
+     */
+    int getProcesses(int executors) {
+        executors = Math.max(1, executors);
+        long processes = mCores / executors;
+        if (mMemory > 0) {
+            processes = Math.min(processes, mMemory / (1024L * 1024L) / executors / MEMORY_PER_COMPILER);
+        }
+        return (int) Math.max(1, processes);
+    }
+
+    /**
+     * Compute the variables for builds on the node
+     * @param executors number of executors on the node
+     * @return names and values of the variables
+     */
+    Map<String, String> getVariables(int executors) {
+        int processes = getProcesses(executors);
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("UseMultiToolTask", "true");
+        variables.put("CL_MPCount", Integer.toString(processes));
+        return variables;
+    }
+
+    /**
+     * Apply the variables to an environment
+     * @param env environment to modify
+     * @param executors number of executors on the node
+     * @param nodeName name of the node
+     * @param executor number of the executor running the build or -1
+     */
+    void apply(Map<String, String> env, int executors, String nodeName, int executor) {
+        env.putAll(getVariables(executors));
+
+        // Builds on different executors each get their own mspdbsrv instead
+        // of serializing on a single one
+        if (executor >= 0) {
+            env.put("_MSPDBSRV_ENDPOINT_",
+                    String.format("vcvarsall-%s-%d", nodeName.replaceAll("[^A-Za-z0-9_-]", "_"), executor));
+        }
+    }
+}
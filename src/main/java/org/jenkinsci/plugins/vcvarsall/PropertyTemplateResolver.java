@@ -0,0 +1,22 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Node;
+
+/**
+ * Uses the template named in the node property
+ *
+ * Cloud templates usually copy their node properties onto every node they
+ * provision, so naming the template there covers most clouds.
+ */
+@Extension(ordinal = -100)
+@SuppressWarnings("unused")
+public class PropertyTemplateResolver extends ToolchainTemplateResolver {
+
+    @Override
+    public String getTemplateId(Node node) {
+        MsvcNodeProperty msvcNodeProperty = node.getNodeProperties().get(MsvcNodeProperty.class);
+        return msvcNodeProperty == null ? null : Util.fixEmptyAndTrim(msvcNodeProperty.getTemplate());
+    }
+}
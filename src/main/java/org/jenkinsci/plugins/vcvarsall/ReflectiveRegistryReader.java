@@ -0,0 +1,35 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * Registry reader that goes through the internals of the JDK preferences API
+ *
+ * This only works on JDKs that still allow reflective access to
+ * java.util.prefs.WindowsPreferences and opens a key for every lookup.
+ */
+class ReflectiveRegistryReader implements RegistryReader {
+
+    @Override
+    public String readString(String key, String valueName) throws RuntimeException {
+        try {
+            return WinRegistry.readString(WinRegistry.HKEY_LOCAL_MACHINE, key, valueName);
+        } catch (IllegalAccessException|InvocationTargetException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Override
+    public List<String> readSubKeys(String key) throws RuntimeException {
+        try {
+            return WinRegistry.readStringSubKeys(WinRegistry.HKEY_LOCAL_MACHINE, key);
+        } catch (IllegalAccessException|InvocationTargetException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Read-only access to HKEY_LOCAL_MACHINE
+ *
+ * A reader is meant to live for the duration of a single probe, which allows
+ * implementations to keep key handles open between lookups. It must be
+ * closed once the probe is complete.
+ */
+interface RegistryReader extends Closeable {
+
+    /**
+     * Read a string value
+     * @param key path of the key
+     * @param valueName name of the value
+     * @return the value or null if the key or value does not exist
+     * @throws RuntimeException if the registry cannot be read
+     */
+    String readString(String key, String valueName) throws RuntimeException;
+
+    /**
+     * Read the names of the subkeys of a key
+     * @param key path of the key
+     * @return names of the subkeys or null if the key does not exist
+     * @throws RuntimeException if the registry cannot be read
+     */
+    List<String> readSubKeys(String key) throws RuntimeException;
+
+    @Override
+    void close();
+
+    /**
+     * Open the best reader available on this host
+     *
+     * The native reader is preferred; the reflective reader is only used
+     * when JNA cannot be loaded.
+     * @return a new reader
+     */
+    static RegistryReader open() {
+        try {
+            return new NativeRegistryReader();
+        } catch (LinkageError e) {
+            return new ReflectiveRegistryReader();
+        }
+    }
+}
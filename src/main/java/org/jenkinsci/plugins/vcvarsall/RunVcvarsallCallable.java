@@ -0,0 +1,603 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.remoting.Channel;
+import hudson.util.ProcessTree;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Run vcvarsall with the correct parameters
+ */
+class RunVcvarsallCallable extends MasterToSlaveCallable<VcvarsallResult, RuntimeException> {
+
+    /**
+     * Maximum number of characters of stderr to include in error messages
+     */
+    private static final int MAX_ERR_OUTPUT = 8192;
+
+    /**
+     * Time to wait for the output pumps to finish once the process has exited
+     */
+    private static final long PUMP_JOIN_MILLIS = 5000;
+
+    private String mVersion;
+    private String mArch;
+    private String mCacheDir;
+    private long mTimeoutSeconds;
+    private boolean mEmulate;
+    private boolean mValidateEmulation;
+    private boolean mPreferNativeHost;
+    private VariableFilter mFilter;
+    private boolean mCompactPath;
+    private boolean mReuseShell;
+    private Set<String> mKnownFingerprints;
+    private String mScript;
+    private boolean mCheckOnly;
+    private transient Channel mChannel;
+    private transient CaptureTimings mTimings;
+    private transient VsVersion mVsVersion;
+    private transient TargetArch mTarget;
+    private transient HostArch mToolsHost;
+
+    RunVcvarsallCallable(String version, String arch, String cacheDir, long timeoutSeconds,
+                         boolean emulate, boolean validateEmulation, boolean preferNativeHost,
+                         VariableFilter filter, boolean compactPath, boolean reuseShell,
+                         Set<String> knownFingerprints) {
+        mVersion = version;
+        mArch = arch;
+        mCacheDir = cacheDir;
+        mTimeoutSeconds = timeoutSeconds;
+        mEmulate = emulate;
+        mValidateEmulation = validateEmulation;
+        mPreferNativeHost = preferNativeHost;
+        mFilter = filter;
+        mCompactPath = compactPath;
+        mReuseShell = reuseShell;
+        mKnownFingerprints = knownFingerprints;
+    }
+
+    /**
+     * Run a shell script in place of vcvarsall, so that captures can be
+     * tested on agents without Visual Studio
+     *
+     * The script is run by <code>/bin/sh</code> with the parameter vcvarsall
+     * would be given and must print the environment the way
+     * <code>set</code> does. Locating Visual Studio is skipped.
+     * @param script absolute path to the script on the agent or null to run
+     *               vcvarsall
+     */
+    void setScript(String script) {
+        mScript = script;
+    }
+
+    /**
+     * Only fingerprint the toolchain, without capturing it when the
+     * fingerprint is not known
+     * @param checkOnly true to return just the fingerprint
+     */
+    void setCheckOnly(boolean checkOnly) {
+        mCheckOnly = checkOnly;
+    }
+
+    String getVersion() {
+        return mVersion;
+    }
+
+    String getArch() {
+        return mArch;
+    }
+
+    /**
+     * Determine if the host is running a 64-bit operating system
+     * @return true if the host is 64-bit
+     */
+    private static boolean isHost64Bit() {
+        return HostArch.detect(System.getenv()) != HostArch.X86;
+    }
+
+
+    /**
+     * Find the installation directory for Visual Studio
+     * @param registry reader for the registry
+     * @param store instance store of the host
+     * @param host architecture of the host
+     * @param version Visual Studio version
+     * @return absolute path to the installation directory or NULL if non-existent
+     */
+    static String findInstallDir(RegistryReader registry, VsInstanceStore store, HostArch host, String version) {
+
+        // Visual Studio 2017 and newer are found through the instance store
+        VsInstance instance = store.find(version);
+        if (instance != null) {
+            return instance.getInstallationPath();
+        }
+
+        // The SxS key is only written to the 32-bit view of the registry
+        String installKey;
+        if (host != HostArch.X86) {
+            installKey = "SOFTWARE\\Wow6432Node\\Microsoft\\VisualStudio\\SxS\\VS7";
+        } else {
+            installKey = "SOFTWARE\\Microsoft\\VisualStudio\\SxS\\VS7";
+        }
+        return registry.readString(installKey, version);
+    }
+
+    /**
+     * Find the root directory of the Windows 10 SDK
+     * @param registry reader for the registry
+     * @return absolute path to the SDK or null if it is not installed
+     */
+    private String findKitsRoot(RegistryReader registry) {
+        String kitsKey;
+        if (isHost64Bit()) {
+            kitsKey = "SOFTWARE\\Wow6432Node\\Microsoft\\Windows Kits\\Installed Roots";
+        } else {
+            kitsKey = "SOFTWARE\\Microsoft\\Windows Kits\\Installed Roots";
+        }
+        return registry.readString(kitsKey, "KitsRoot10");
+    }
+
+    /**
+     * Determine the build of the operating system
+     * @param registry reader for the registry
+     * @return OS version and build number
+     */
+    private String findOsBuild(RegistryReader registry) {
+        return System.getProperty("os.version") + "." + registry.readString(
+                "SOFTWARE\\Microsoft\\Windows NT\\CurrentVersion", "CurrentBuild");
+    }
+
+    /**
+     * Find the absolute path to vcvarsall.bat
+     * @param version Visual Studio version
+     * @param installDir Visual Studio installation directory
+     * @return absolute path to the vcvarsall script or null if it does not exist
+     */
+    static String findVcvarsall(VsVersion version, String installDir) {
+        String path = installDir + version.getVcvarsall();
+        return new File(path).exists() ? path : null;
+    }
+
+    /**
+     * Choose the host architecture of the toolset
+     *
+     * Native tools are preferred since the x86-hosted cross compilers are
+     * limited to a 4 GB address space and link large projects much more
+     * slowly. If they are not installed the x86-hosted tools are used.
+     * @param installDir Visual Studio installation directory
+     * @param warnings list to receive a warning when falling back
+     * @return host architecture of the toolset
+     */
+    private HostArch selectToolsHost(String installDir, List<String> warnings) {
+        if (!mPreferNativeHost) {
+            return HostArch.X86;
+        }
+        HostArch host = HostArch.detect(System.getenv());
+        HostArch toolsHost = mVsVersion.selectHost(host);
+        if (toolsHost != HostArch.X86 && !mVsVersion.hasToolset(installDir, toolsHost, mTarget)) {
+            warnings.add(String.format(
+                    "%s-hosted tools for %s are not installed, falling back to the x86-hosted cross compiler",
+                    toolsHost.getDirectory(), mTarget.getDisplayName()));
+            return HostArch.X86;
+        }
+        if (toolsHost != host) {
+            warnings.add(String.format("%s does not provide %s-hosted tools, using %s-hosted tools",
+                    mVsVersion.getDisplayName(), host.getDirectory(), toolsHost.getDirectory()));
+        }
+        return toolsHost;
+    }
+
+    /**
+     * Generate the parameter to pass to vcvarsall.bat
+     * @return parameter to pass
+     */
+    private String generateParam() {
+        return VsVersion.param(mToolsHost, mTarget);
+    }
+
+    /**
+     * Run the vcvarsall.bat script
+     * @param path absolute path to vcvarsall
+     * @param param parameter for passing to the script
+     * @param warnings list to receive a warning if the warm session failed
+     * @throws CaptureException for failure to run the script
+     */
+    private EnvVars runVcvarsall(String path, String param, List<String> warnings) throws RuntimeException {
+        if (mReuseShell) {
+            try {
+                return runInSession(path, param);
+            } catch (IOException e) {
+                warnings.add("warm shell session failed, running vcvarsall directly: " + e.getMessage());
+            }
+        }
+        if (mScript != null) {
+            return runCapture(new ProcessBuilder("/bin/sh", path, param), mTimeoutSeconds, mTimings, mFilter);
+        }
+        ProcessBuilder builder = new ProcessBuilder(
+                "cmd", "/c",
+                String.format("\"%s\" > NUL %s && set", path, param)
+        );
+        return runCapture(builder, mTimeoutSeconds, mTimings, mFilter);
+    }
+
+    /**
+     * Run the vcvarsall.bat script in a warm session from the pool
+     *
+     * A session that fails or times out is discarded rather than returned to
+     * the pool, so the next capture starts a fresh one.
+     * @param path absolute path to vcvarsall
+     * @param param parameter for passing to the script
+     * @return environment variables printed by the script
+     * @throws IOException if the session could not be used
+     * @throws CaptureException for failure of the script itself
+     */
+    private EnvVars runInSession(String path, String param) throws IOException, RuntimeException {
+        final EnvVars envVars = new EnvVars();
+        ShellSessionPool.Shell shell;
+        String command;
+        if (mScript != null) {
+            shell = ShellSessionPool.Shell.SH;
+            command = String.format("/bin/sh '%s' %s", path, param);
+        } else {
+            shell = ShellSessionPool.Shell.CMD;
+            command = ShellSessionPool.command(new File(mCacheDir), path, param);
+        }
+        ShellSession session = ShellSessionPool.acquire(shell, mTimings);
+        long start = System.nanoTime();
+        try {
+            int exitCode = session.run(command, TimeUnit.SECONDS.toMillis(mTimeoutSeconds), new ShellSession.Output() {
+                @Override
+                public void onLine(String line) {
+                    long start = System.nanoTime();
+                    parseLine(envVars, mFilter, line);
+                    mTimings.addParse(System.nanoTime() - start);
+                }
+            });
+            mTimings.addProcess(System.nanoTime() - start);
+            if (exitCode != 0) {
+                throw exitFailure(exitCode, session.getErrOutput());
+            }
+        } catch (TimeoutException e) {
+            throw new CaptureException(CaptureException.Kind.TIMEOUT, String.format(
+                    "vcvarsall did not finish within %d seconds", mTimeoutSeconds));
+        } catch (InterruptedException e) {
+            session.close();
+            Thread.currentThread().interrupt();
+            throw new CaptureException(CaptureException.Kind.IO_ERROR, "interrupted");
+        } finally {
+            ShellSessionPool.release(shell, session, mChannel);
+        }
+        return envVars;
+    }
+
+    /**
+     * Add a line printed by <code>set</code> to an environment
+     * @param envVars environment to add the variable to
+     * @param filter filter deciding which variables are kept
+     * @param line line of output
+     */
+    static void parseLine(EnvVars envVars, VariableFilter filter, String line) {
+        line = line.trim();
+        if (line.length() != 0 && filter.acceptsLine(line)) {
+            envVars.addLine(line);
+        }
+    }
+
+    /**
+     * Run a process that prints environment variables and parse its output
+     *
+     * Both output streams are drained concurrently so that neither pipe can
+     * fill up and stall the process. Lines from stdout are filtered and
+     * parsed directly into the environment as they arrive.
+     * @param builder process to run
+     * @param timeoutSeconds time after which the process tree is killed
+     * @param timings timings to add the time spent to
+     * @param filter filter deciding which variables are kept
+     * @return environment variables printed by the process
+     * @throws CaptureException for failure to run the process
+     */
+    static EnvVars runCapture(ProcessBuilder builder, long timeoutSeconds, final CaptureTimings timings,
+                              final VariableFilter filter) throws RuntimeException {
+        final EnvVars envVars = new EnvVars();
+        final StringBuilder errOutput = new StringBuilder();
+        long start = System.nanoTime();
+        Process process;
+        try {
+            process = builder.start();
+            process.getOutputStream().close();
+        } catch (IOException e) {
+            throw new CaptureException(CaptureException.Kind.IO_ERROR, e.getMessage());
+        }
+        timings.addSpawn(System.nanoTime() - start);
+        LinePump outPump = new LinePump("vcvarsall stdout", process.getInputStream()) {
+            @Override
+            protected void onLine(String line) {
+                long start = System.nanoTime();
+                parseLine(envVars, filter, line);
+                timings.addParse(System.nanoTime() - start);
+            }
+        };
+        LinePump errPump = new LinePump("vcvarsall stderr", process.getErrorStream()) {
+            @Override
+            protected void onLine(String line) {
+                synchronized (errOutput) {
+                    if (errOutput.length() < MAX_ERR_OUTPUT) {
+                        errOutput.append(line).append('\n');
+                    }
+                }
+            }
+        };
+        outPump.start();
+        errPump.start();
+        boolean finished = false;
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                throw new CaptureException(CaptureException.Kind.TIMEOUT, String.format(
+                        "vcvarsall did not finish within %d seconds", timeoutSeconds));
+            }
+            // The output is complete before it is looked at
+            outPump.join(PUMP_JOIN_MILLIS);
+            errPump.join(PUMP_JOIN_MILLIS);
+            finished = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CaptureException(CaptureException.Kind.IO_ERROR, "interrupted");
+        } finally {
+            // Whatever vcvarsall started goes too, however the wait ended
+            if (!finished) {
+                killTree(process);
+            }
+        }
+        timings.addProcess(System.nanoTime() - start);
+        if (outPump.isAlive()) {
+            throw new CaptureException(CaptureException.Kind.PARSE_ERROR, "output from vcvarsall was not closed");
+        }
+        if (outPump.getError() != null) {
+            throw new CaptureException(CaptureException.Kind.PARSE_ERROR, outPump.getError().getMessage());
+        }
+        if (process.exitValue() != 0) {
+            String error;
+            synchronized (errOutput) {
+                error = errOutput.toString().trim();
+            }
+            throw exitFailure(process.exitValue(), error);
+        }
+        return envVars;
+    }
+
+    /**
+     * Kill a process along with the processes it started
+     * @param process process to kill
+     */
+    private static void killTree(Process process) {
+        // Killing must not be cut short by the interrupt that ended the wait
+        boolean interrupted = Thread.interrupted();
+        try {
+            ProcessTree.OSProcess osProcess = ProcessTree.get().get(process);
+            if (osProcess != null) {
+                osProcess.killRecursively();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            process.destroy();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static CaptureException exitFailure(int exitCode, String errOutput) {
+        return new CaptureException(CaptureException.Kind.NONZERO_EXIT, errOutput.isEmpty() ?
+                String.format("vcvarsall exited with code %d", exitCode) : errOutput);
+    }
+
+    /**
+     * Compute the environment from the installation layout instead of
+     * running vcvarsall, optionally checking it against a real capture
+     * @param installDir Visual Studio installation directory
+     * @param kitsRoot Windows 10 SDK root directory
+     * @param path absolute path to vcvarsall
+     * @param warnings list to receive any differences found
+     * @return environment or null if emulation is not possible
+     * @throws CaptureException for failure to run the script
+     */
+    private EnvVars emulateVcvarsall(String installDir, String kitsRoot, String path, List<String> warnings)
+            throws RuntimeException {
+        Map<String, String> base = System.getenv();
+        EnvVars emulated = VcvarsallEmulator.compute(
+                new File(installDir),
+                new File(kitsRoot),
+                mVersion,
+                mToolsHost.getDirectory(),
+                mTarget.getDirectory(),
+                base
+        );
+        if (emulated == null) {
+            warnings.add("installation layout is not supported by emulation");
+            return null;
+        }
+        mFilter.apply(emulated);
+        if (!mValidateEmulation) {
+            return emulated;
+        }
+        EnvVars real = runVcvarsall(path, generateParam(), warnings);
+        List<String> differences = VcvarsallEmulator.verify(emulated, real, base);
+        if (!differences.isEmpty()) {
+            warnings.add("emulated environment differs from vcvarsall, using vcvarsall");
+            warnings.addAll(differences);
+            return real;
+        }
+        return emulated;
+    }
+
+    /**
+     * Compute the variables that differ from the agent environment
+     * @param envVars captured environment
+     * @return added or changed variables, with path variables compacted if
+     *         enabled
+     */
+    private CapturedEnvironment toEnvironment(EnvVars envVars) {
+        CapturedEnvironment environment = CapturedEnvironment.diff(System.getenv(), envVars);
+        return mCompactPath ? environment.compactPaths(new ArrayList<String>()) : environment;
+    }
+
+    @Override
+    public VcvarsallResult call() throws RuntimeException {
+        return call(Channel.current());
+    }
+
+    /**
+     * Capture the environment on a thread other than the one the request
+     * arrived on, where the connection is no longer known
+     * @param channel connection the request arrived on or null if unknown
+     * @return result of the capture
+     * @throws CaptureException for failure to capture the environment
+     */
+    VcvarsallResult call(Channel channel) throws RuntimeException {
+        mChannel = channel;
+        mTimings = new CaptureTimings();
+        long start = System.nanoTime();
+        try {
+            return capture();
+        } finally {
+            mTimings.setTotal(System.nanoTime() - start);
+        }
+    }
+
+    private VcvarsallResult capture() throws RuntimeException {
+        if (mScript == null && !System.getProperty("os.name").startsWith("Windows")) {
+            throw new CaptureException(CaptureException.Kind.UNSUPPORTED, "host is not running Windows");
+        }
+        mVsVersion = VsVersion.fromId(mVersion);
+        mTarget = TargetArch.fromId(mArch);
+        if (!mVsVersion.getTargets().contains(mTarget)) {
+            throw new CaptureException(CaptureException.Kind.UNSUPPORTED, String.format("%s does not support %s",
+                    mVsVersion.getDisplayName(), mTarget.getDisplayName()));
+        }
+        String installDir;
+        String path;
+        String osBuild;
+        String kitsRoot;
+        VsInstance instance;
+        if (mScript != null) {
+            installDir = new File(mScript).getParent();
+            osBuild = System.getProperty("os.version");
+            kitsRoot = null;
+            instance = null;
+        } else {
+            try (RegistryReader registry = RegistryReader.open()) {
+                long start = System.nanoTime();
+                VsInstanceStore store = VsInstanceStore.get(VsInstanceStore.getDefaultDir());
+                instance = store.find(mVersion);
+                installDir = findInstallDir(registry, store, HostArch.detect(System.getenv()), mVersion);
+                if (installDir == null) {
+                    throw new CaptureException(CaptureException.Kind.REGISTRY_MISS,
+                            "unable to find installation directory");
+                }
+                osBuild = findOsBuild(registry);
+                kitsRoot = findKitsRoot(registry);
+                mTimings.addRegistry(System.nanoTime() - start);
+            }
+        }
+        long start = System.nanoTime();
+        path = mScript != null ? mScript : findVcvarsall(mVsVersion, installDir);
+        if (path == null) {
+            throw new CaptureException(CaptureException.Kind.MISSING_SCRIPT, "vcvarsall.bat does not exist");
+        }
+        List<String> warnings = new ArrayList<>();
+        mToolsHost = mScript != null ? HostArch.detect(System.getenv()) : selectToolsHost(installDir, warnings);
+        String layout = ToolchainFingerprint.describeLayout(
+                instance == null ? null : instance.getInstallationVersion(),
+                new File(installDir), kitsRoot == null ? null : new File(kitsRoot));
+        ToolchainFingerprint fingerprint;
+        try {
+            fingerprint = ToolchainFingerprint.compute(
+                    mVersion, mArch, installDir, new File(path), generateParam(), layout, osBuild, mEmulate,
+                    mFilter.getSignature() + (mCompactPath ? "|compact" : ""));
+        } catch (IOException e) {
+            throw new CaptureException(CaptureException.Kind.IO_ERROR, e.getMessage());
+        }
+        ToolchainFingerprint baseFingerprint = fingerprint.withBase(System.getenv());
+        mTimings.addResolve(System.nanoTime() - start);
+
+        // Nothing needs to be sent if the controller already has the
+        // environment (from another agent with an identical toolchain)
+        if (mKnownFingerprints.contains(fingerprint.getId())) {
+            mTimings.setSource(CaptureTimings.Source.SHARED);
+            return VcvarsallResult.known(fingerprint, mTimings, warnings);
+        }
+        if (mKnownFingerprints.contains(baseFingerprint.getId())) {
+            mTimings.setSource(CaptureTimings.Source.SHARED);
+            return VcvarsallResult.known(baseFingerprint, mTimings, warnings);
+        }
+        if (mCheckOnly) {
+            return VcvarsallResult.known(fingerprint, mTimings, warnings);
+        }
+
+        // Environments captured earlier on this connection are kept in memory
+        CapturedEnvironment environment = CaptureMemo.get(fingerprint.getId());
+        if (environment != null) {
+            mTimings.setSource(CaptureTimings.Source.MEMORY);
+            return new VcvarsallResult(environment, select(fingerprint, baseFingerprint, environment), true,
+                    mTimings, warnings);
+        }
+
+        // Skip running the script entirely if the toolchain is unchanged
+        EnvVarsCache cache = new EnvVarsCache(new File(mCacheDir));
+        EnvVars envVars = cache.load(fingerprint.getId());
+        if (envVars != null) {
+            environment = toEnvironment(envVars);
+            CaptureMemo.put(fingerprint.getId(), environment, mChannel);
+            mTimings.setSource(CaptureTimings.Source.DISK);
+            return new VcvarsallResult(environment, select(fingerprint, baseFingerprint, environment), true,
+                    mTimings, warnings);
+        }
+
+        mTimings.setSource(CaptureTimings.Source.EMULATED);
+        if (mEmulate) {
+            if (kitsRoot == null) {
+                warnings.add("Windows 10 SDK not found, emulation is not possible");
+            } else {
+                envVars = emulateVcvarsall(installDir, kitsRoot, path, warnings);
+            }
+        }
+        if (envVars == null) {
+            mTimings.setSource(CaptureTimings.Source.VCVARSALL);
+            String param = generateParam();
+            envVars = runVcvarsall(path, param, warnings);
+        }
+        envVars.putAll(mTarget.getVariables());
+        try {
+            cache.store(fingerprint.getId(), envVars);
+        } catch (IOException e) {
+            // A cache that cannot be written is not fatal
+        }
+        environment = toEnvironment(envVars);
+        CaptureMemo.put(fingerprint.getId(), environment, mChannel);
+        return new VcvarsallResult(environment, select(fingerprint, baseFingerprint, environment), false,
+                mTimings, warnings);
+    }
+
+    /**
+     * Select the fingerprint an environment is shared under
+     * @param fingerprint fingerprint of the toolchain
+     * @param baseFingerprint fingerprint that also covers the agent environment
+     * @param environment captured environment
+     * @return fingerprint under which other agents may use the environment
+     */
+    private static ToolchainFingerprint select(ToolchainFingerprint fingerprint,
+                                               ToolchainFingerprint baseFingerprint,
+                                               CapturedEnvironment environment) {
+        return environment.isBaseDependent() ? baseFingerprint : fingerprint;
+    }
+}
@@ -0,0 +1,234 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.util.ProcessTree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Long-lived command interpreter that commands are pipelined into
+ *
+ * Each command is framed by two markers echoed before and after it, so the
+ * output belonging to it (and its exit code) can be picked out of the
+ * interpreter's stdout. The interpreter itself is not tied to cmd; the
+ * line separator and the expression for the last exit code are supplied
+ * by the caller. A session must only be used by one thread at a time.
+ */
+class ShellSession implements Closeable {
+
+    /**
+     * Receives the output of a command, line by line
+     */
+    interface Output {
+        void onLine(String line);
+    }
+
+    /**
+     * Maximum number of characters of stderr kept for error messages
+     */
+    private static final int MAX_ERR_OUTPUT = 8192;
+
+    /**
+     * Interval at which a waiting query checks if the interpreter died
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final Process mProcess;
+    private final Writer mStdin;
+    private final String mLineSeparator;
+    private final String mExitCode;
+    private final BlockingQueue<String> mLines = new LinkedBlockingQueue<>();
+    private final StringBuilder mErrOutput = new StringBuilder();
+    private final LinePump mOutPump;
+    private int mQueries;
+    private long mLastUsed;
+    private boolean mBroken;
+
+    /**
+     * Start an interpreter
+     * @param command command line of the interpreter, which must read
+     *                commands from stdin without echoing them
+     * @param lineSeparator separator to end each command with
+     * @param exitCode expression that expands to the exit code of the
+     *                 previous command
+     * @throws IOException if the interpreter cannot be started
+     */
+    ShellSession(List<String> command, String lineSeparator, String exitCode) throws IOException {
+        mLineSeparator = lineSeparator;
+        mExitCode = exitCode;
+        mProcess = new ProcessBuilder(command).start();
+        mStdin = new OutputStreamWriter(mProcess.getOutputStream(), Charset.defaultCharset());
+        mOutPump = new LinePump("shell session stdout", mProcess.getInputStream()) {
+            @Override
+            protected void onLine(String line) {
+                mLines.add(line);
+            }
+        };
+        LinePump errPump = new LinePump("shell session stderr", mProcess.getErrorStream()) {
+            @Override
+            protected void onLine(String line) {
+                synchronized (mErrOutput) {
+                    if (mErrOutput.length() < MAX_ERR_OUTPUT) {
+                        mErrOutput.append(line).append('\n');
+                    }
+                }
+            }
+        };
+        mOutPump.start();
+        errPump.start();
+        mLastUsed = System.nanoTime();
+    }
+
+    /**
+     * Run a command in the interpreter
+     * @param command command to run, on a single line
+     * @param timeoutMillis time after which the interpreter is killed
+     * @param output receiver for the lines the command prints to stdout
+     * @return exit code of the command
+     * @throws IOException if the interpreter is no longer usable
+     * @throws TimeoutException if the command did not finish in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    int run(String command, long timeoutMillis, Output output)
+            throws IOException, TimeoutException, InterruptedException {
+        if (mBroken) {
+            throw new IOException("shell session is no longer usable");
+        }
+        String marker = UUID.randomUUID().toString();
+        String begin = "SESSION-BEGIN-" + marker;
+        String end = "SESSION-END-" + marker;
+        synchronized (mErrOutput) {
+            mErrOutput.setLength(0);
+        }
+        mQueries++;
+        mLastUsed = System.nanoTime();
+        try {
+            mStdin.write("echo " + begin + mLineSeparator);
+            if (!command.isEmpty()) {
+                mStdin.write(command + mLineSeparator);
+            }
+            mStdin.write("echo " + end + " " + mExitCode + mLineSeparator);
+            mStdin.flush();
+        } catch (IOException e) {
+            mBroken = true;
+            throw e;
+        }
+
+        // Anything printed before the first marker (such as a banner) is
+        // left over from earlier and ignored
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean inside = false;
+        while (true) {
+            String line = next(deadline);
+            String trimmed = line.trim();
+            if (!inside) {
+                inside = trimmed.equals(begin);
+            } else if (trimmed.startsWith(end)) {
+                try {
+                    return Integer.parseInt(trimmed.substring(end.length()).trim());
+                } catch (NumberFormatException e) {
+                    mBroken = true;
+                    throw new IOException("unexpected end of output: " + trimmed);
+                }
+            } else {
+                output.onLine(line);
+            }
+        }
+    }
+
+    private String next(long deadline) throws IOException, TimeoutException, InterruptedException {
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                mBroken = true;
+                throw new TimeoutException();
+            }
+            String line = mLines.poll(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1, POLL_MILLIS),
+                    TimeUnit.MILLISECONDS);
+            if (line != null) {
+                return line;
+            }
+            if (!mOutPump.isAlive() && mLines.isEmpty()) {
+                mBroken = true;
+                throw new IOException("shell session exited");
+            }
+        }
+    }
+
+    /**
+     * Check that the interpreter still answers
+     *
+     * The exit code is left over from the previous command and ignored.
+     * @param timeoutMillis time to wait for the answer
+     * @return true if the session can be used
+     */
+    boolean ping(long timeoutMillis) {
+        try {
+            run("", timeoutMillis, new Output() {
+                @Override
+                public void onLine(String line) {
+                }
+            });
+            return true;
+        } catch (IOException|TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Retrieve what the last command printed to stderr
+     * @return error output
+     */
+    String getErrOutput() {
+        synchronized (mErrOutput) {
+            return mErrOutput.toString().trim();
+        }
+    }
+
+    boolean isBroken() {
+        return mBroken || !mOutPump.isAlive();
+    }
+
+    int getQueries() {
+        return mQueries;
+    }
+
+    /**
+     * Retrieve the time the session was last used
+     * @return value of {@link System#nanoTime()}
+     */
+    long getLastUsed() {
+        return mLastUsed;
+    }
+
+    @Override
+    public void close() {
+        mBroken = true;
+        try {
+            mStdin.close();
+        } catch (IOException e) {
+            // The interpreter is killed below either way
+        }
+        try {
+            ProcessTree.OSProcess osProcess = ProcessTree.get().get(mProcess);
+            if (osProcess != null) {
+                osProcess.killRecursively();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mProcess.destroy();
+    }
+}
@@ -0,0 +1,219 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.remoting.Channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm cmd sessions kept on the agent for running vcvarsall
+ *
+ * Sessions are handed out to one capture at a time and returned afterwards.
+ * Idle sessions are pinged before reuse and replaced when they do not
+ * answer, have been idle too long or have served many captures. The idle
+ * sessions are closed when the connection to the controller closes, since
+ * the agent JVM (and with it the interpreters) may outlive it.
+ */
+final class ShellSessionPool {
+
+    /**
+     * Name of the helper script written to the cache directory
+     */
+    static final String HELPER = "vcvarsall-session.cmd";
+
+    /**
+     * Runs vcvarsall in a local scope, so the session is unchanged
+     * afterwards, and prints the environment only if it succeeded
+     */
+    private static final String HELPER_SCRIPT = "@echo off\r\n"
+            + "setlocal\r\n"
+            + "call %1 %2 > NUL\r\n"
+            + "if errorlevel 1 exit /b %ERRORLEVEL%\r\n"
+            + "set\r\n"
+            + "endlocal\r\n";
+
+    /**
+     * Interpreter a session runs
+     */
+    enum Shell {
+        CMD(Arrays.asList("cmd", "/q", "/d", "/k"), "\r\n", "%ERRORLEVEL%"),
+        /**
+         * Used with a script standing in for vcvarsall
+         */
+        SH(Arrays.asList("/bin/sh"), "\n", "$?");
+
+        private final List<String> mCommand;
+        private final String mLineSeparator;
+        private final String mExitCode;
+
+        Shell(List<String> command, String lineSeparator, String exitCode) {
+            mCommand = command;
+            mLineSeparator = lineSeparator;
+            mExitCode = exitCode;
+        }
+    }
+
+    private static final int MAX_IDLE = 2;
+
+    private static final int MAX_QUERIES = 100;
+
+    private static final long MAX_IDLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private static final long PING_MILLIS = 5000;
+
+    private static final Deque<ShellSession> IDLE = new ArrayDeque<>();
+
+    /**
+     * Interpreter the idle sessions run
+     */
+    private static Shell sShell = Shell.CMD;
+
+    /**
+     * Connection whose closing closes the idle sessions
+     */
+    private static Channel sChannel;
+
+    private ShellSessionPool() {
+    }
+
+    /**
+     * Take a session from the pool, starting a new one if none is usable
+     * @param shell interpreter the session must run
+     * @param timings timings to add the time spent starting a session to
+     * @return session for the exclusive use of the caller
+     * @throws IOException if the interpreter cannot be started
+     */
+    static ShellSession acquire(Shell shell, CaptureTimings timings) throws IOException {
+        while (true) {
+            ShellSession session;
+            synchronized (IDLE) {
+                if (shell != sShell) {
+                    closeAll();
+                    sShell = shell;
+                }
+                closeExpired();
+                session = IDLE.pollFirst();
+            }
+            if (session == null) {
+                break;
+            }
+            if (session.ping(PING_MILLIS)) {
+                return session;
+            }
+            session.close();
+        }
+        long start = System.nanoTime();
+        ShellSession session = new ShellSession(shell.mCommand, shell.mLineSeparator, shell.mExitCode);
+        timings.addSpawn(System.nanoTime() - start);
+        return session;
+    }
+
+    /**
+     * Return a session to the pool
+     *
+     * The session is closed instead if there is no connection to close it
+     * along with, since nothing would close it otherwise.
+     * @param shell interpreter the session was acquired for
+     * @param session session obtained from {@link #acquire}
+     * @param channel connection the capture arrived on or null if unknown
+     */
+    static void release(Shell shell, ShellSession session, Channel channel) {
+        if (channel != null && !session.isBroken() && session.getQueries() < MAX_QUERIES) {
+            synchronized (IDLE) {
+                if (shell == sShell && IDLE.size() < MAX_IDLE && watchChannel(channel)) {
+                    IDLE.addFirst(session);
+                    return;
+                }
+            }
+        }
+        session.close();
+    }
+
+    /**
+     * Count the idle sessions
+     * @return number of sessions waiting to be reused
+     */
+    static int getIdleCount() {
+        synchronized (IDLE) {
+            return IDLE.size();
+        }
+    }
+
+    /**
+     * Close every idle session
+     */
+    static void closeAll() {
+        synchronized (IDLE) {
+            for (ShellSession session : IDLE) {
+                session.close();
+            }
+            IDLE.clear();
+        }
+    }
+
+    /**
+     * Make sure the idle sessions are closed along with a connection
+     * @param channel connection the capture arrived on
+     * @return false if that connection is already closing
+     */
+    private static boolean watchChannel(Channel channel) {
+        if (channel == sChannel) {
+            return true;
+        }
+        if (channel.isClosingOrClosed()) {
+            return false;
+        }
+        sChannel = channel;
+        channel.addListener(new Channel.Listener() {
+            @Override
+            public void onClosed(Channel channel, IOException cause) {
+                closeAll();
+            }
+        });
+        // The connection may have closed before the listener was added
+        if (channel.isClosingOrClosed()) {
+            closeAll();
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeExpired() {
+        long now = System.nanoTime();
+        for (Iterator<ShellSession> i = IDLE.iterator(); i.hasNext(); ) {
+            ShellSession session = i.next();
+            if (session.isBroken() || now - session.getLastUsed() > MAX_IDLE_NANOS) {
+                i.remove();
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Build the command that captures the environment in a session
+     * @param dir directory for the helper script
+     * @param path absolute path to vcvarsall
+     * @param param parameter for passing to the script
+     * @return command to run in the session
+     * @throws IOException if the helper script cannot be written
+     */
+    static synchronized String command(File dir, String path, String param) throws IOException {
+        File helper = new File(dir, HELPER);
+        byte[] script = HELPER_SCRIPT.getBytes(StandardCharsets.US_ASCII);
+        if (!helper.isFile() || !Arrays.equals(Files.readAllBytes(helper.toPath()), script)) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("unable to create " + dir);
+            }
+            Files.write(helper.toPath(), script);
+        }
+        return String.format("call \"%s\" \"%s\" %s", helper.getPath(), path, param);
+    }
+}
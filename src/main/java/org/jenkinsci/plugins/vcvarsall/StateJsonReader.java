@@ -0,0 +1,301 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Streaming reader for the few fields of a state.json file that are needed
+ *
+ * The file is read once, token by token, and everything but the
+ * installation path and version, the product ID and the IDs of the selected
+ * packages is skipped without being kept. The files list every package of
+ * the instance and run to hundreds of kilobytes, so building a tree of them
+ * only to look at a handful of values is avoided.
+ */
+final class StateJsonReader {
+
+    private final Reader mReader;
+    private int mPeeked = -2;
+
+    private String mInstallationPath;
+    private String mInstallationVersion;
+    private String mProductId;
+    private final Set<String> mPackages = new HashSet<>();
+
+    private StateJsonReader(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Read an instance from a state.json file
+     * @param id instance ID
+     * @param reader contents of the file
+     * @return instance or null if the file does not describe a usable instance
+     * @throws IOException if the file cannot be read or is not valid JSON
+     */
+    static VsInstance read(String id, Reader reader) throws IOException {
+        StateJsonReader state = new StateJsonReader(reader);
+        if (state.peek() == '\uFEFF') {
+            state.next();
+        }
+        state.readState();
+        if (state.mInstallationPath == null || state.mInstallationVersion == null) {
+            return null;
+        }
+        return new VsInstance(id, state.mInstallationPath, state.mInstallationVersion, state.mProductId,
+                state.mPackages);
+    }
+
+    private void readState() throws IOException {
+        expect('{');
+        if (skipWhitespaceAndPeek() == '}') {
+            next();
+            return;
+        }
+        do {
+            String name = readName();
+            switch (name) {
+                case "installationPath":
+                    mInstallationPath = readOptionalString();
+                    break;
+                case "installationVersion":
+                    mInstallationVersion = readOptionalString();
+                    break;
+                case "product":
+                    mProductId = readId();
+                    break;
+                case "selectedPackages":
+                    readPackages();
+                    break;
+                default:
+                    skipValue();
+                    break;
+            }
+        } while (nextMember('}'));
+    }
+
+    /**
+     * Read the "id" member of an object, skipping everything else
+     * @return ID or null if the value is not an object or has no ID
+     */
+    private String readId() throws IOException {
+        if (skipWhitespaceAndPeek() != '{') {
+            skipValue();
+            return null;
+        }
+        next();
+        String id = null;
+        if (skipWhitespaceAndPeek() == '}') {
+            next();
+            return null;
+        }
+        do {
+            if (readName().equals("id")) {
+                id = readOptionalString();
+            } else {
+                skipValue();
+            }
+        } while (nextMember('}'));
+        return id;
+    }
+
+    private void readPackages() throws IOException {
+        if (skipWhitespaceAndPeek() != '[') {
+            skipValue();
+            return;
+        }
+        next();
+        if (skipWhitespaceAndPeek() == ']') {
+            next();
+            return;
+        }
+        do {
+            String id = readId();
+            if (id != null) {
+                mPackages.add(id);
+            }
+        } while (nextMember(']'));
+    }
+
+    private String readName() throws IOException {
+        if (skipWhitespaceAndPeek() != '"') {
+            throw error("expected a member name");
+        }
+        String name = readString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Read a string value
+     * @return value or null if the value is not a string
+     */
+    private String readOptionalString() throws IOException {
+        if (skipWhitespaceAndPeek() != '"') {
+            skipValue();
+            return null;
+        }
+        return readString();
+    }
+
+    /**
+     * Move past the separator after a member or element
+     * @param end character closing the object or array
+     * @return true if another member or element follows
+     */
+    private boolean nextMember(char end) throws IOException {
+        int c = skipWhitespaceAndPeek();
+        next();
+        if (c == ',') {
+            return true;
+        }
+        if (c == end) {
+            return false;
+        }
+        throw error("expected ',' or '" + end + "'");
+    }
+
+    private void skipValue() throws IOException {
+        int c = skipWhitespaceAndPeek();
+        switch (c) {
+            case '"':
+                skipString();
+                break;
+            case '{':
+            case '[':
+                skipContainer();
+                break;
+            case -1:
+                throw error("unexpected end of input");
+            default:
+                // Numbers, true, false and null run up to the next separator
+                while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                    next();
+                    c = peek();
+                }
+                break;
+        }
+    }
+
+    /**
+     * Skip an object or array, including anything nested in it
+     */
+    private void skipContainer() throws IOException {
+        int depth = 0;
+        do {
+            int c = peek();
+            if (c == '"') {
+                skipString();
+                continue;
+            }
+            next();
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == -1) {
+                throw error("unexpected end of input");
+            }
+        } while (depth > 0);
+    }
+
+    private String readString() throws IOException {
+        StringBuilder value = new StringBuilder();
+        next();
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\') {
+                value.append(readEscape());
+            } else if (c == -1) {
+                throw error("unterminated string");
+            } else {
+                value.append((char) c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        next();
+        while (true) {
+            int c = next();
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                next();
+            } else if (c == -1) {
+                throw error("unterminated string");
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = next();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(next(), 16);
+                    if (digit == -1) {
+                        throw error("invalid unicode escape");
+                    }
+                    value = value * 16 + digit;
+                }
+                return (char) value;
+            default:
+                throw error("invalid escape");
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (skipWhitespaceAndPeek() != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        next();
+    }
+
+    private int skipWhitespaceAndPeek() throws IOException {
+        int c = peek();
+        while (c != -1 && Character.isWhitespace(c)) {
+            next();
+            c = peek();
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (mPeeked == -2) {
+            mPeeked = mReader.read();
+        }
+        return mPeeked;
+    }
+
+    private int next() throws IOException {
+        int c = peek();
+        mPeeked = -2;
+        return c;
+    }
+
+    private static IOException error(String message) {
+        return new IOException("invalid state.json: " + message);
+    }
+}
@@ -0,0 +1,92 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Architecture the compilers generate code for
+ */
+enum TargetArch {
+
+    X86("x86", "x86", "x86", "x86"),
+    X86_64("x86_64", "x86_64", "amd64", "x64"),
+    ARM64("arm64", "ARM64", "arm64", "arm64"),
+
+    /**
+     * ARM64EC is built by the ARM64 toolset with additional switches, which
+     * cl and link pick up from the _CL_ and _LINK_ variables
+     */
+    ARM64EC("arm64ec", "ARM64EC", "arm64", "arm64") {
+        @Override
+        Map<String, String> getVariables() {
+            Map<String, String> variables = new LinkedHashMap<>();
+            variables.put("_CL_", "/arm64EC");
+            variables.put("_LINK_", "/MACHINE:ARM64EC");
+            return variables;
+        }
+    };
+
+    private final String mId;
+    private final String mDisplayName;
+    private final String mParam;
+    private final String mDirectory;
+
+    TargetArch(String id, String displayName, String param, String directory) {
+        mId = id;
+        mDisplayName = displayName;
+        mParam = param;
+        mDirectory = directory;
+    }
+
+    /**
+     * Retrieve the value stored in the configuration
+     * @return architecture ID
+     */
+    String getId() {
+        return mId;
+    }
+
+    String getDisplayName() {
+        return mDisplayName;
+    }
+
+    /**
+     * Retrieve the name vcvarsall uses for the architecture
+     * @return target part of the vcvarsall parameter
+     */
+    String getParam() {
+        return mParam;
+    }
+
+    /**
+     * Retrieve the name used in the bin and lib directories
+     * @return directory name
+     */
+    String getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Retrieve variables to set in addition to those set by vcvarsall
+     * @return names and values of the variables
+     */
+    Map<String, String> getVariables() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Find an architecture by the value stored in the configuration
+     * @param id architecture ID
+     * @return architecture
+     * @throws RuntimeException for unknown architectures
+     */
+    static TargetArch fromId(String id) throws RuntimeException {
+        for (TargetArch arch : values()) {
+            if (arch.mId.equals(id)) {
+                return arch;
+            }
+        }
+        throw new RuntimeException("invalid architecture");
+    }
+}
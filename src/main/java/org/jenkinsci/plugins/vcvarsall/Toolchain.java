@@ -0,0 +1,136 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.remoting.VirtualChannel;
+import hudson.util.ListBoxModel;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Visual Studio version and target architecture to capture on a node
+ */
+public class Toolchain extends AbstractDescribableImpl<Toolchain> {
+
+    /**
+     * Time (in seconds) to wait for an agent to list its toolchains
+     */
+    private static final long DETECT_TIMEOUT = 10;
+
+    private String mVersion;
+    private String mArch;
+
+    @DataBoundConstructor
+    public Toolchain(String version, String arch) {
+        mVersion = version;
+        mArch = arch;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getArch() {
+        return mArch;
+    }
+
+    /**
+     * Retrieve the key identifying this toolchain on a node
+     *
+     * This is the value builds use to select the toolchain.
+     * @return key in the form "version/arch"
+     */
+    public String getKey() {
+        return key(mVersion, mArch);
+    }
+
+    static String key(String version, String arch) {
+        return version + "/" + arch;
+    }
+
+    /**
+     * Find the toolchains installed on a node
+     * @param computer node to check or null
+     * @return IDs of the installed targets of each version or null if unknown
+     */
+    static Map<String, Set<String>> detect(Computer computer) {
+        VirtualChannel channel = computer == null ? null : computer.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        try {
+            Map<String, Set<String>> installed = channel.callAsync(new DetectToolchainsCallable())
+                    .get(DETECT_TIMEOUT, TimeUnit.SECONDS);
+            return installed.isEmpty() ? null : installed;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * List the versions that can be selected
+     * @param installed versions installed on the node or null to list all
+     * @return items for a select control
+     */
+    static ListBoxModel versionItems(Map<String, Set<String>> installed) {
+        ListBoxModel items = new ListBoxModel();
+        for (VsVersion version : VsVersion.values()) {
+            if (installed == null || installed.containsKey(version.getId())) {
+                items.add(version.getDisplayName(), version.getId());
+            }
+        }
+        return items;
+    }
+
+    /**
+     * List the architectures that can be selected for a version
+     * @param version selected version or null
+     * @param installed versions installed on the node or null to list all
+     * @return items for a select control
+     */
+    static ListBoxModel archItems(String version, Map<String, Set<String>> installed) {
+        ListBoxModel items = new ListBoxModel();
+        Set<String> installedTargets = installed == null ? null : installed.get(version);
+        for (TargetArch target : TargetArch.values()) {
+            if (!VsVersion.ids().contains(version) || VsVersion.fromId(version).getTargets().contains(target)) {
+                if (installedTargets == null || installedTargets.contains(target.getId())) {
+                    items.add(target.getDisplayName(), target.getId());
+                }
+            }
+        }
+        return items;
+    }
+
+    @Extension
+    @SuppressWarnings("unused")
+    public static class DescriptorImpl extends Descriptor<Toolchain> {
+
+        @Override
+        public String getDisplayName() {
+            return "Toolchain";
+        }
+
+        public ListBoxModel doFillVersionItems(@AncestorInPath Computer computer) {
+            return versionItems(detect(computer));
+        }
+
+        public ListBoxModel doFillArchItems(@AncestorInPath Computer computer, @QueryParameter String version) {
+            return archItems(version, detect(computer));
+        }
+    }
+}
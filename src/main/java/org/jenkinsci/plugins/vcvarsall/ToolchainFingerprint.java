@@ -0,0 +1,160 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Identifies a toolchain installation independently of the node it is on
+ *
+ * Agents created from the same image produce the same fingerprint, which
+ * allows them to share a single captured environment. Environments that
+ * still depend on the environment of the agent they were captured on use
+ * a fingerprint that also covers the path variables of that agent.
+ */
+class ToolchainFingerprint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Variables of the agent environment that vcvarsall builds upon
+     */
+    private static final List<String> BASE_VARIABLES = Arrays.asList(
+            "PATH", "INCLUDE", "LIB", "LIBPATH", "EXTERNAL_INCLUDE"
+    );
+
+    private final String mVersion;
+    private final String mArch;
+    private final String mInstallDir;
+    private final String mVcvarsallHash;
+    private final String mOsBuild;
+    private final String mId;
+
+    private ToolchainFingerprint(String version, String arch, String installDir,
+                                 String vcvarsallHash, String osBuild, String id) {
+        mVersion = version;
+        mArch = arch;
+        mInstallDir = installDir;
+        mVcvarsallHash = vcvarsallHash;
+        mOsBuild = osBuild;
+        mId = id;
+    }
+
+    /**
+     * Generate a fingerprint for a toolchain
+     * @param version Visual Studio version
+     * @param arch target architecture
+     * @param installDir Visual Studio installation directory
+     * @param vcvarsall path to the vcvarsall script
+     * @param param parameter passed to vcvarsall (host and target toolset)
+     * @param layout description of the installation from {@link #describeLayout}
+     * @param osBuild build of the operating system
+     * @param emulated true if the environment is computed by emulation
+     * @param options description of the filtering applied to the environment
+     * @return fingerprint uniquely identifying the toolchain
+     * @throws IOException if the script cannot be read
+     */
+    static ToolchainFingerprint compute(String version, String arch, String installDir, File vcvarsall,
+                                        String param, String layout, String osBuild, boolean emulated,
+                                        String options) throws IOException {
+        String vcvarsallHash = Util.getDigestOf(vcvarsall);
+        String id = Util.getDigestOf(String.format(
+                "%s|%s|%s|%s|%d|%d|%s|%s|%s|%s|%s|%s",
+                version,
+                arch,
+                installDir,
+                vcvarsall.getAbsolutePath(),
+                vcvarsall.lastModified(),
+                vcvarsall.length(),
+                vcvarsallHash,
+                param,
+                layout,
+                osBuild,
+                emulated ? "emulated" : "vcvarsall",
+                options
+        ));
+        return new ToolchainFingerprint(version, arch, installDir, vcvarsallHash, osBuild, id);
+    }
+
+    /**
+     * Describe what vcvarsall picks from an installation
+     *
+     * Updates often install new MSVC tools or a new Windows SDK without
+     * touching vcvarsall.bat, so the installation version, the default
+     * MSVC tools version and the SDK version vcvarsall selects are covered
+     * by the fingerprint as well.
+     * @param installationVersion version of the Visual Studio instance or
+     *                            null if it is not in the instance store
+     * @param installDir Visual Studio installation directory
+     * @param kitsRoot root directory of the Windows 10 SDK or null
+     * @return description of the installation
+     */
+    static String describeLayout(String installationVersion, File installDir, File kitsRoot) {
+        String toolsVersion = VcvarsallEmulator.readVersionFile(VcvarsallEmulator.file(
+                installDir, "VC", "Auxiliary", "Build", "Microsoft.VCToolsVersion.default.txt"));
+        String sdkVersion = kitsRoot == null ? null : VcvarsallEmulator.findSdkVersion(kitsRoot);
+        return String.format("%s|%s|%s", Util.fixNull(installationVersion), Util.fixNull(toolsVersion),
+                Util.fixNull(sdkVersion));
+    }
+
+    /**
+     * Recreate a fingerprint from its components
+     * @return fingerprint with the given components
+     */
+    static ToolchainFingerprint restore(String version, String arch, String installDir,
+                                        String vcvarsallHash, String osBuild, String id) {
+        return new ToolchainFingerprint(version, arch, installDir, vcvarsallHash, osBuild, id);
+    }
+
+    /**
+     * Derive the fingerprint of a toolchain whose environment only applies
+     * to agents with the same path variables
+     * @param base environment of the agent
+     * @return fingerprint that also covers the path variables
+     */
+    ToolchainFingerprint withBase(Map<String, String> base) {
+        Map<String, String> env = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        env.putAll(base);
+        StringBuilder builder = new StringBuilder(mId);
+        for (String name : BASE_VARIABLES) {
+            String value = env.get(name);
+            builder.append('|').append(value == null ? "" : value);
+        }
+        return new ToolchainFingerprint(mVersion, mArch, mInstallDir, mVcvarsallHash, mOsBuild,
+                Util.getDigestOf(builder.toString()));
+    }
+
+    String getVersion() {
+        return mVersion;
+    }
+
+    String getArch() {
+        return mArch;
+    }
+
+    String getInstallDir() {
+        return mInstallDir;
+    }
+
+    String getVcvarsallHash() {
+        return mVcvarsallHash;
+    }
+
+    String getOsBuild() {
+        return mOsBuild;
+    }
+
+    /**
+     * Retrieve the digest of all fingerprint components
+     * @return fingerprint ID
+     */
+    String getId() {
+        return mId;
+    }
+}
@@ -0,0 +1,367 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Controller-wide store of captured environments addressed by fingerprint
+ *
+ * Nodes only keep the fingerprint of each of their toolchains and look the
+ * environment up here, so identical agents share one immutable copy.
+ *
+ * Every entry is also written to a file under JENKINS_HOME, and the files
+ * are read back the first time the store is used after a restart. Agents are
+ * told which fingerprints the controller has when they connect, so those
+ * with unchanged toolchains only need to compute their fingerprints instead
+ * of capturing them again.
+ */
+class ToolchainStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ToolchainStore.class.getName());
+
+    /**
+     * Directory (relative to JENKINS_HOME) containing the stored entries
+     */
+    private static final String STORE_DIR = "vcvarsall-store";
+
+    private static final int MAGIC = 0x56435653;
+    private static final int VERSION = 1;
+
+    /**
+     * Bytes taken by the magic number, version and payload length
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    private static final int CHECKSUM_LENGTH = 8;
+
+    /**
+     * Time after which entries no node refers to are removed
+     */
+    private static final long UNREFERENCED_LIFETIME = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Toolchain details along with the environment captured for it
+     */
+    static class Entry {
+
+        private final ToolchainFingerprint mFingerprint;
+        private final CapturedEnvironment mEnvironment;
+
+        Entry(ToolchainFingerprint fingerprint, CapturedEnvironment environment) {
+            mFingerprint = fingerprint;
+            mEnvironment = environment;
+        }
+
+        ToolchainFingerprint getFingerprint() {
+            return mFingerprint;
+        }
+
+        CapturedEnvironment getEnvironment() {
+            return mEnvironment;
+        }
+    }
+
+    private static final ToolchainStore INSTANCE = new ToolchainStore(null);
+
+    /**
+     * Directory containing the stored entries, or null for the one in
+     * JENKINS_HOME
+     */
+    private final File mDir;
+    private final ConcurrentMap<String, Entry> mEntries = new ConcurrentHashMap<>();
+    private volatile boolean mLoaded;
+
+    /**
+     * Fingerprints captured with differing environments since the
+     * controller started
+     */
+    private final Set<String> mDisputed = ConcurrentHashMap.newKeySet();
+
+    ToolchainStore(File dir) {
+        mDir = dir;
+    }
+
+    static ToolchainStore get() {
+        return INSTANCE;
+    }
+
+    private File getDir() {
+        return mDir != null ? mDir : new File(Jenkins.get().getRootDir(), STORE_DIR);
+    }
+
+    private static File entryFile(File dir, String id) {
+        return new File(dir, id + ".env");
+    }
+
+    /**
+     * Read the stored entries the first time the store is used
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mEntries.putAll(readAll(getDir()));
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Read the entries in a directory, deleting those that cannot be read
+     * @param dir directory containing the entries
+     * @return entries by fingerprint ID
+     */
+    static Map<String, Entry> readAll(File dir) {
+        Map<String, Entry> entries = new HashMap<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(".env")) {
+                continue;
+            }
+            try {
+                Entry entry = read(file);
+                entries.put(entry.getFingerprint().getId(), entry);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Discarding invalid stored environment " + file, e);
+                try {
+                    Util.deleteFile(file);
+                } catch (IOException ignored) {
+                    // Retried on the next start
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Read an entry, checking that it is complete and belongs to the
+     * fingerprint it is named after
+     *
+     * Lengths are checked against the data actually present before anything
+     * is allocated, so a damaged file cannot exhaust the heap.
+     */
+    private static Entry read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported format");
+            }
+            int length = in.readInt();
+            if (length != file.length() - HEADER_LENGTH - CHECKSUM_LENGTH) {
+                throw new IOException("entry is truncated or has trailing data");
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (in.readLong() != crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            ToolchainFingerprint fingerprint = ToolchainFingerprint.restore(
+                    data.readUTF(), data.readUTF(), data.readUTF(), data.readUTF(), data.readUTF(), data.readUTF());
+            if (!file.getName().equals(fingerprint.getId() + ".env")) {
+                throw new IOException("entry does not match its file name");
+            }
+            length = data.readInt();
+            if (length < 0 || length > data.available()) {
+                throw new IOException("environment does not fit in the entry");
+            }
+            byte[] environment = new byte[length];
+            data.readFully(environment);
+            return new Entry(fingerprint, CapturedEnvironment.decode(environment));
+        }
+    }
+
+    static void write(File dir, Entry entry) throws IOException {
+        ToolchainFingerprint fingerprint = entry.getFingerprint();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(payload)) {
+            data.writeUTF(fingerprint.getVersion());
+            data.writeUTF(fingerprint.getArch());
+            data.writeUTF(fingerprint.getInstallDir());
+            data.writeUTF(fingerprint.getVcvarsallHash());
+            data.writeUTF(fingerprint.getOsBuild());
+            data.writeUTF(fingerprint.getId());
+            byte[] environment = entry.getEnvironment().encode();
+            data.writeInt(environment.length);
+            data.write(environment);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+
+        // Write to a temporary file first so that a partially written entry
+        // is never read after a crash
+        File tmp = File.createTempFile(fingerprint.getId(), ".tmp", dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(payload.size());
+                payload.writeTo(out);
+                out.writeLong(crc.getValue());
+            }
+            File file = entryFile(dir, fingerprint.getId());
+            if (!tmp.renameTo(file)) {
+                Util.deleteFile(file);
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("unable to write " + file);
+                }
+            }
+        } finally {
+            if (tmp.exists()) {
+                Util.deleteFile(tmp);
+            }
+        }
+    }
+
+    /**
+     * Add an environment captured on a node to the store
+     *
+     * The fingerprint is computed by the agent, so an environment is only
+     * shared under it if it matches the one already stored. A differing
+     * environment is kept under an ID scoped to the node instead, and the
+     * fingerprint is no longer offered to agents as known, so every agent
+     * with it captures its own environment to be compared.
+     * @param fingerprint toolchain fingerprint
+     * @param environment captured environment
+     * @param nodeName name of the node the environment was captured on
+     * @return entry the node should use, whose fingerprint ID differs from
+     *         the one given if the environment was scoped to the node
+     */
+    Entry put(ToolchainFingerprint fingerprint, CapturedEnvironment environment, String nodeName) {
+        load();
+        Entry entry = new Entry(fingerprint, environment);
+        Entry existing = mEntries.putIfAbsent(fingerprint.getId(), entry);
+        if (existing != null) {
+            if (sameVariables(existing.getEnvironment(), environment)) {
+                return existing;
+            }
+            if (mDisputed.add(fingerprint.getId())) {
+                LOGGER.log(Level.WARNING, "Environment captured on {0} differs from the one stored for "
+                        + "fingerprint {1}, which is no longer shared", new Object[] {nodeName, fingerprint.getId()});
+            }
+            entry = new Entry(ToolchainFingerprint.restore(fingerprint.getVersion(), fingerprint.getArch(),
+                    fingerprint.getInstallDir(), fingerprint.getVcvarsallHash(), fingerprint.getOsBuild(),
+                    Util.getDigestOf(fingerprint.getId() + "|" + nodeName)), environment);
+            existing = mEntries.get(entry.getFingerprint().getId());
+            if (existing != null && sameVariables(existing.getEnvironment(), environment)) {
+                return existing;
+            }
+            mEntries.put(entry.getFingerprint().getId(), entry);
+        }
+        try {
+            write(getDir(), entry);
+        } catch (IOException e) {
+            // The entry is still usable until the controller restarts
+            LOGGER.log(Level.WARNING, "Unable to store environment " + entry.getFingerprint().getId(), e);
+        }
+        return entry;
+    }
+
+    private static boolean sameVariables(CapturedEnvironment a, CapturedEnvironment b) {
+        try {
+            return Arrays.equals(a.encode(), b.encode());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Look up an environment
+     * @param id fingerprint ID
+     * @return entry or null if the fingerprint is unknown
+     */
+    Entry get(String id) {
+        if (id == null) {
+            return null;
+        }
+        load();
+        return mEntries.get(id);
+    }
+
+    /**
+     * Retrieve the fingerprints of all stored environments
+     * @return fingerprint IDs
+     */
+    Set<String> getIds() {
+        load();
+        return new HashSet<>(mEntries.keySet());
+    }
+
+    /**
+     * Retrieve the fingerprints agents may reuse environments for without
+     * capturing them
+     * @return fingerprint IDs of environments no capture has contradicted
+     */
+    Set<String> getSharedIds() {
+        Set<String> ids = getIds();
+        ids.removeAll(mDisputed);
+        return ids;
+    }
+
+    /**
+     * Remove environments no node has referred to for some time
+     * @param referenced fingerprint IDs nodes currently refer to
+     * @return number of environments removed
+     */
+    int prune(Set<String> referenced) {
+        load();
+        File dir = getDir();
+        long cutoff = System.currentTimeMillis() - UNREFERENCED_LIFETIME;
+        int removed = 0;
+        for (String id : getIds()) {
+            if (referenced.contains(id)) {
+                // Mark the entry as recently used
+                if (!entryFile(dir, id).setLastModified(System.currentTimeMillis())) {
+                    LOGGER.log(Level.FINE, "Unable to touch stored environment {0}", id);
+                }
+                continue;
+            }
+            // Entries that could not be written disappear on restart anyway
+            File file = entryFile(dir, id);
+            if (!file.exists() || file.lastModified() > cutoff) {
+                continue;
+            }
+            mEntries.remove(id);
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to delete stored environment " + id, e);
+            }
+            removed++;
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Node;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Identifies the template (or image) a node was provisioned from
+ *
+ * Nodes from the same template are expected to have identical toolchains, so
+ * the environments captured on one of them are applied to the others as soon
+ * as they connect. Cloud plugins can implement this to supply the template
+ * automatically; otherwise the template named in the node property is used.
+ */
+public abstract class ToolchainTemplateResolver implements ExtensionPoint {
+
+    /**
+     * Identify the template of a node
+     * @param node node to identify
+     * @return template ID or null if this resolver does not know the node
+     */
+    @CheckForNull
+    public abstract String getTemplateId(Node node);
+
+    /**
+     * Identify the template of a node using the first resolver that knows it
+     * @param node node to identify
+     * @return template ID or null if the node is not from a template
+     */
+    @CheckForNull
+    static String resolve(Node node) {
+        for (ToolchainTemplateResolver resolver : ExtensionList.lookup(ToolchainTemplateResolver.class)) {
+            String templateId = resolver.getTemplateId(node);
+            if (templateId != null) {
+                return templateId;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fingerprints of the toolchains captured on the nodes of each template
+ *
+ * Every fingerprint seen for a toolchain is kept (up to a limit), so a node
+ * that differs from the rest of its template cannot displace theirs.
+ * Stored in JENKINS_HOME alongside the environments they refer to.
+ */
+class ToolchainTemplates {
+
+    private static final Logger LOGGER = Logger.getLogger(ToolchainTemplates.class.getName());
+
+    /**
+     * Number of fingerprints kept for each toolchain of a template, the
+     * oldest being dropped first
+     */
+    private static final int MAX_FINGERPRINTS = 8;
+
+    private static final ToolchainTemplates INSTANCE = new ToolchainTemplates();
+
+    /**
+     * Toolchain fingerprints (by toolchain key) of each template
+     */
+    private Map<String, Map<String, Set<String>>> mTemplates;
+
+    static ToolchainTemplates get() {
+        return INSTANCE;
+    }
+
+    private static XmlFile getFile() {
+        return new XmlFile(new File(Jenkins.get().getRootDir(), ToolchainTemplates.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Set<String>>> templates() {
+        if (mTemplates == null) {
+            mTemplates = new HashMap<>();
+            XmlFile file = getFile();
+            if (file.exists()) {
+                try {
+                    Map<String, Map<String, Object>> templates = (Map<String, Map<String, Object>>) file.read();
+                    for (Map.Entry<String, Map<String, Object>> template : templates.entrySet()) {
+                        Map<String, Set<String>> fingerprints = new HashMap<>();
+                        for (Map.Entry<String, Object> entry : template.getValue().entrySet()) {
+                            // Older versions kept a single fingerprint
+                            fingerprints.put(entry.getKey(), entry.getValue() instanceof String ?
+                                    new LinkedHashSet<>(Collections.singleton((String) entry.getValue())) :
+                                    new LinkedHashSet<>((Collection<String>) entry.getValue()));
+                        }
+                        mTemplates.put(template.getKey(), fingerprints);
+                    }
+                } catch (IOException | ClassCastException e) {
+                    LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+                }
+            }
+        }
+        return mTemplates;
+    }
+
+    /**
+     * Retrieve the fingerprints recorded for a template
+     * @param templateId template ID
+     * @return toolchain fingerprints by toolchain key
+     */
+    synchronized Map<String, Set<String>> getFingerprints(String templateId) {
+        Map<String, Set<String>> fingerprints = templates().get(templateId);
+        Map<String, Set<String>> copy = new HashMap<>();
+        if (fingerprints != null) {
+            for (Map.Entry<String, Set<String>> entry : fingerprints.entrySet()) {
+                copy.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Retrieve the fingerprints recorded for all templates
+     * @return fingerprint IDs
+     */
+    synchronized Set<String> getFingerprintIds() {
+        Set<String> ids = new HashSet<>();
+        for (Map<String, Set<String>> fingerprints : templates().values()) {
+            for (Set<String> values : fingerprints.values()) {
+                ids.addAll(values);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Record the fingerprint of a toolchain captured on a node of a template
+     * @param templateId template ID
+     * @param key toolchain key
+     * @param fingerprint fingerprint ID
+     */
+    synchronized void record(String templateId, String key, String fingerprint) {
+        Map<String, Set<String>> fingerprints = templates().get(templateId);
+        if (fingerprints == null) {
+            fingerprints = new HashMap<>();
+            templates().put(templateId, fingerprints);
+        }
+        Set<String> values = fingerprints.get(key);
+        if (values == null) {
+            values = new LinkedHashSet<>();
+            fingerprints.put(key, values);
+        }
+        if (!values.add(fingerprint)) {
+            return;
+        }
+        if (values.size() > MAX_FINGERPRINTS) {
+            Iterator<String> oldest = values.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+        try {
+            getFile().write(mTemplates);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save toolchain templates", e);
+        }
+    }
+}
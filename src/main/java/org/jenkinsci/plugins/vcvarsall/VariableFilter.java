@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which captured variables are kept
+ *
+ * A variable is kept if it matches one of the allow patterns (or there are
+ * none) and none of the deny patterns. Patterns are regular expressions
+ * matched case-insensitively against the whole name, one per line.
+ */
+class VariableFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Variables that differ between sessions without affecting the build
+     */
+    static final String DEFAULT_DENY = "PROMPT\nCLIENTNAME\nSESSIONNAME\nTMP\nTEMP";
+
+    private final String mAllow;
+    private final String mDeny;
+    private transient List<Pattern> mAllowPatterns;
+    private transient List<Pattern> mDenyPatterns;
+
+    /**
+     * Create a filter
+     * @param allow allow patterns or null to allow everything
+     * @param deny deny patterns or null to deny nothing
+     * @throws PatternSyntaxException for invalid patterns
+     */
+    VariableFilter(String allow, String deny) throws PatternSyntaxException {
+        mAllow = allow == null ? "" : allow.trim();
+        mDeny = deny == null ? "" : deny.trim();
+        parse();
+    }
+
+    private void parse() {
+        mAllowPatterns = compile(mAllow);
+        mDenyPatterns = compile(mDeny);
+    }
+
+    private static List<Pattern> compile(String patterns) throws PatternSyntaxException {
+        List<Pattern> compiled = new ArrayList<>();
+        for (String pattern : patterns.split("[\\r\\n]+")) {
+            pattern = pattern.trim();
+            if (!pattern.isEmpty()) {
+                compiled.add(Pattern.compile(pattern, Pattern.CASE_INSENSITIVE));
+            }
+        }
+        return Collections.unmodifiableList(compiled);
+    }
+
+    protected Object readResolve() {
+        parse();
+        return this;
+    }
+
+    /**
+     * Determine if a variable is kept
+     * @param name name of the variable
+     * @return true if the variable passes the filter
+     */
+    boolean accepts(String name) {
+        boolean allowed = mAllowPatterns.isEmpty();
+        for (Pattern pattern : mAllowPatterns) {
+            if (pattern.matcher(name).matches()) {
+                allowed = true;
+                break;
+            }
+        }
+        if (!allowed) {
+            return false;
+        }
+        for (Pattern pattern : mDenyPatterns) {
+            if (pattern.matcher(name).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determine if a line of "set" output is kept
+     * @param line line in the form name=value
+     * @return true if the variable passes the filter
+     */
+    boolean acceptsLine(String line) {
+        int index = line.indexOf('=', 1);
+        return index == -1 || accepts(line.substring(0, index));
+    }
+
+    /**
+     * Remove the variables that do not pass the filter
+     * @param env environment to filter
+     */
+    void apply(Map<String, String> env) {
+        for (String name : new ArrayList<>(env.keySet())) {
+            if (!accepts(name)) {
+                env.remove(name);
+            }
+        }
+    }
+
+    /**
+     * Describe the filter so that environments captured with different
+     * filters get different fingerprints
+     * @return patterns of the filter
+     */
+    String getSignature() {
+        return mAllow + "|" + mDeny;
+    }
+}
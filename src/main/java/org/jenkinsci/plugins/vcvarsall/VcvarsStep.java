@@ -0,0 +1,306 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.workflow.steps.BodyExecutionCallback;
+import org.jenkinsci.plugins.workflow.steps.EnvironmentExpander;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Pipeline step that runs its body with the environment of a toolchain
+ *
+ * <pre>
+ * withVcvars(version: '15.0', arch: 'x86_64') {
+ *     bat 'msbuild project.sln'
+ * }
+ * </pre>
+ */
+public class VcvarsStep extends Step {
+
+    /**
+     * Time (in seconds) allowed for the result to arrive after vcvarsall
+     * itself has timed out on the agent
+     */
+    private static final long TIMEOUT_MARGIN = SystemProperties.getLong(
+            VcvarsStep.class.getName() + ".timeoutMargin", 60L);
+
+    /**
+     * Threads waiting for captures started by the step, separate from the
+     * ones capturing connecting agents so that builds do not queue behind
+     * them (each thread only waits for its agent, bounded by the timeout)
+     */
+    private static final ExecutorService STEP_EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "vcvarsall step")
+    );
+
+    private final String mVersion;
+    private final String mArch;
+
+    @DataBoundConstructor
+    public VcvarsStep(String version, String arch) {
+        mVersion = version;
+        mArch = arch;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getVersion() {
+        return mVersion;
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public String getArch() {
+        return mArch;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new Execution(this, context);
+    }
+
+    /**
+     * Applies a captured environment to the steps in the body
+     */
+    private static class ExpanderImpl extends EnvironmentExpander {
+
+        private static final long serialVersionUID = 1L;
+
+        private final CapturedEnvironment mEnvironment;
+        private final CapturedEnvironment mDefault;
+        private final ParallelTuning mTuning;
+        private final int mExecutors;
+        private final String mNodeName;
+        private final int mExecutor;
+
+        ExpanderImpl(CapturedEnvironment environment, CapturedEnvironment defaultEnvironment,
+                     ParallelTuning tuning, int executors, String nodeName, int executor) {
+            mEnvironment = environment;
+            mDefault = defaultEnvironment;
+            mTuning = tuning;
+            mExecutors = executors;
+            mNodeName = nodeName;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void expand(@Nonnull EnvVars env) {
+            // The node already applies its default toolchain
+            if (mDefault != null) {
+                mDefault.unapply(env);
+            }
+            mEnvironment.apply(env);
+            if (mTuning != null) {
+                mTuning.apply(env, mExecutors, mNodeName, mExecutor);
+            }
+        }
+    }
+
+    /**
+     * Run a capture on an agent, giving up if no result arrives in time
+     * @param channel channel to the agent
+     * @param callable capture to run
+     * @param timeoutSeconds time to wait for the result
+     * @return result of the capture
+     * @throws AbortException if the capture failed or timed out
+     * @throws IOException if the agent could not be reached
+     * @throws InterruptedException if the step was stopped
+     */
+    static VcvarsallResult call(VirtualChannel channel, RunVcvarsallCallable callable, long timeoutSeconds)
+            throws IOException, InterruptedException {
+        Future<VcvarsallResult> future = channel.callAsync(callable);
+        try {
+            return future.get(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new AbortException(String.format("vcvarsall failed: no answer from the agent within %d seconds",
+                    timeoutSeconds));
+        } catch (ExecutionException e) {
+            throw new AbortException(String.format("vcvarsall failed: %s", e.getCause().getMessage()));
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private static class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient VcvarsStep mStep;
+        private transient volatile Future<?> mTask;
+
+        /**
+         * Whether the capture finished and the body was started, in which
+         * case the body survives a restart on its own
+         */
+        private volatile boolean mBodyStarted;
+
+        Execution(VcvarsStep step, StepContext context) {
+            super(context);
+            mStep = step;
+        }
+
+        @Override
+        public boolean start() throws Exception {
+            final Computer computer = getContext().get(Computer.class);
+            final VirtualChannel channel = computer.getChannel();
+            final Node node = computer.getNode();
+            if (channel == null || node == null) {
+                throw new AbortException(String.format("%s is offline", computer.getDisplayName()));
+            }
+            FilePath root = node.getRootPath();
+            if (root == null) {
+                throw new AbortException(String.format("%s has no root path", computer.getDisplayName()));
+            }
+            MsvcNodeProperty msvcNodeProperty = node.getNodeProperties().get(MsvcNodeProperty.class);
+            final RunVcvarsallCallable callable = new RunVcvarsallCallable(
+                    mStep.getVersion(),
+                    mStep.getArch(),
+                    root.child(ComputerListenerImpl.CACHE_DIR).getRemote(),
+                    ComputerListenerImpl.CAPTURE_TIMEOUT,
+                    msvcNodeProperty != null && msvcNodeProperty.isEmulate(),
+                    msvcNodeProperty != null && msvcNodeProperty.isValidateEmulation(),
+                    msvcNodeProperty == null || msvcNodeProperty.isPreferNativeHost(),
+                    msvcNodeProperty == null ? new VariableFilter(null, VariableFilter.DEFAULT_DENY) :
+                            msvcNodeProperty.createFilter(),
+                    msvcNodeProperty != null && msvcNodeProperty.isCompactPath(),
+                    msvcNodeProperty != null && msvcNodeProperty.isReuseShell(),
+                    ToolchainStore.get().getSharedIds()
+            );
+            callable.setScript(ComputerListenerImpl.captureScript(root));
+
+            final CapturedEnvironment defaultEnvironment = msvcNodeProperty == null ? null :
+                    msvcNodeProperty.getEnvironment(null);
+            final ParallelTuning tuning = msvcNodeProperty == null ? null : msvcNodeProperty.getActiveTuning();
+            final int executors = node.getNumExecutors();
+            final String nodeName = node.getNodeName();
+            Executor executor = getContext().get(Executor.class);
+            final int executorNumber = executor == null ? -1 : executor.getNumber();
+
+            // Capturing can take a while, so keep it off the CPS thread
+            mTask = STEP_EXECUTOR.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        CapturedEnvironment environment = capture(channel, callable);
+                        mBodyStarted = true;
+                        getContext().newBodyInvoker()
+                                .withContext(EnvironmentExpander.merge(
+                                        getContext().get(EnvironmentExpander.class),
+                                        new ExpanderImpl(environment, defaultEnvironment, tuning, executors,
+                                                nodeName, executorNumber)))
+                                .withCallback(BodyExecutionCallback.wrap(getContext()))
+                                .start();
+                    } catch (Throwable t) {
+                        getContext().onFailure(t);
+                    }
+                }
+            });
+            return false;
+        }
+
+        private CapturedEnvironment capture(VirtualChannel channel, RunVcvarsallCallable callable)
+                throws Exception {
+            VcvarsallResult result;
+            long start = System.nanoTime();
+            result = call(channel, callable, ComputerListenerImpl.CAPTURE_TIMEOUT + TIMEOUT_MARGIN);
+            Computer computer = getContext().get(Computer.class);
+            CaptureMetrics.record(computer.getName(), callable.getVersion(), callable.getArch(),
+                    result.getTimings(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            TaskListener listener = getContext().get(TaskListener.class);
+            for (String warning : result.getWarnings()) {
+                listener.getLogger().printf("WARNING: %s\n", warning);
+            }
+            ToolchainFingerprint fingerprint = result.getFingerprint();
+            if (result.getEnvironment() != null) {
+                return ToolchainStore.get().put(fingerprint, result.getEnvironment(), computer.getName())
+                        .getEnvironment();
+            }
+            ToolchainStore.Entry entry = ToolchainStore.get().get(fingerprint.getId());
+            if (entry == null) {
+                throw new AbortException("shared environment is no longer available");
+            }
+            return entry.getEnvironment();
+        }
+
+        @Override
+        public void stop(@Nonnull Throwable cause) throws Exception {
+            Future<?> task = mTask;
+            if (task != null) {
+                task.cancel(true);
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            // The capture does not survive a restart and the step has
+            // nothing to resume it with
+            if (!mBodyStarted) {
+                getContext().onFailure(new AbortException(
+                        "Jenkins was restarted while vcvarsall was running"));
+            }
+        }
+    }
+
+    @Extension
+    @SuppressWarnings("unused")
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "withVcvars";
+        }
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Run with the environment set up by vcvarsall";
+        }
+
+        @Override
+        public boolean takesImplicitBlockArgument() {
+            return true;
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<>(Arrays.asList(Computer.class, TaskListener.class));
+        }
+
+        public ListBoxModel doFillVersionItems() {
+            return Toolchain.versionItems(null);
+        }
+
+        public ListBoxModel doFillArchItems(@QueryParameter String version) {
+            return Toolchain.archItems(version, null);
+        }
+    }
+}
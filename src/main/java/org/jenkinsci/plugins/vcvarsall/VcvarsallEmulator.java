@@ -0,0 +1,500 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compute the environment vcvarsall would produce without running it
+ *
+ * Only the layout used by Visual Studio 2017 and newer (VC\Tools\MSVC) is
+ * supported. The computation depends on nothing but the directory trees it
+ * is given (the installation, the Windows Kits and their siblings under
+ * Program Files, and the Windows directory), which keeps it independent of
+ * the host it runs on. Like the extension scripts of VsDevCmd, optional
+ * components only contribute if their directories exist. Anything else
+ * VsDevCmd may add is not emulated, which {@link #verify} reports.
+ */
+class VcvarsallEmulator {
+
+    private static final String SEPARATOR = ";";
+
+    /**
+     * Variables whose values are lists of paths, compared segment by segment
+     */
+    private static final Set<String> PATH_VARIABLES = new HashSet<>(Arrays.asList(
+            "PATH", "INCLUDE", "EXTERNAL_INCLUDE", "LIB", "LIBPATH", "WINDOWSLIBPATH", "__VSCMD_PREINIT_PATH"
+    ));
+
+    private static final Pattern VSCMD_VER = Pattern.compile("set\\s+\"?VSCMD_VER=([^\"\\r\\n]*)",
+            Pattern.CASE_INSENSITIVE);
+
+    private VcvarsallEmulator() {
+    }
+
+    /**
+     * Resolve a path below a directory one child at a time, so that the
+     * result uses the separator of the host
+     * @param dir directory to start from
+     * @param names names of the children
+     * @return resulting path
+     */
+    static File file(File dir, String... names) {
+        File file = dir;
+        for (String name : names) {
+            file = new File(file, name);
+        }
+        return file;
+    }
+
+    /**
+     * Compute the environment for a toolchain
+     * @param installDir Visual Studio installation directory
+     * @param kitsRoot Windows 10 SDK root directory
+     * @param vsVersion Visual Studio version (e.g. "16.0")
+     * @param host host architecture ("x86", "x64" or "arm64")
+     * @param target target architecture ("x86", "x64" or "arm64")
+     * @param base environment to start from
+     * @return resulting environment or null if the layout is not supported
+     */
+    static EnvVars compute(File installDir, File kitsRoot, String vsVersion, String host, String target,
+                           Map<String, String> base) {
+        File vcDir = new File(installDir, "VC");
+        String toolsVersion = findToolsVersion(vcDir);
+        if (toolsVersion == null) {
+            return null;
+        }
+        String sdkVersion = findSdkVersion(kitsRoot);
+        if (sdkVersion == null) {
+            return null;
+        }
+        boolean host64 = !host.equalsIgnoreCase("x86");
+        File toolsDir = file(vcDir, "Tools", "MSVC", toolsVersion);
+        File ideDir = file(installDir, "Common7", "IDE");
+        File extensionsDir = file(ideDir, "CommonExtensions", "Microsoft");
+        File msbuildDir = file(installDir, "MSBuild", "Current", "Bin");
+        if (!msbuildDir.isDirectory()) {
+            msbuildDir = file(installDir, "MSBuild", vsVersion, "Bin");
+        }
+        File sdkInclude = file(kitsRoot, "Include", sdkVersion);
+        File sdkLib = file(kitsRoot, "Lib", sdkVersion);
+        File sdkBin = new File(kitsRoot, "bin");
+
+        // The .NET Framework SDK and tools live next to the Windows Kits
+        File kitsDir = kitsRoot.getAbsoluteFile().getParentFile();
+        File programFiles = kitsDir == null ? null : kitsDir.getParentFile();
+        File netfxSdk = null;
+        File netfxTools = null;
+        if (programFiles != null) {
+            File netfxSdkRoot = new File(kitsDir, "NETFXSDK");
+            String netfxVersion = newestVersion(netfxSdkRoot, null);
+            netfxSdk = netfxVersion == null ? null : new File(netfxSdkRoot, netfxVersion);
+            netfxTools = findNetfxTools(file(programFiles, "Microsoft SDKs", "Windows", "v10.0A", "bin"));
+        }
+
+        EnvVars env = new EnvVars(base);
+        String path = env.get("PATH");
+        env.put("__VSCMD_PREINIT_PATH", path == null ? "" : path);
+        env.put("VSINSTALLDIR", dir(installDir));
+        env.put("VCINSTALLDIR", dir(vcDir));
+        env.put("DevEnvDir", dir(ideDir));
+        env.put("VisualStudioVersion", vsVersion);
+        env.put("VS" + vsVersion.replace(".", "") + "COMNTOOLS", dir(file(installDir, "Common7", "Tools")));
+        putIfExists(env, "VCIDEInstallDir", file(ideDir, "VC"));
+        String vscmdVersion = findVscmdVersion(file(installDir, "Common7", "Tools", "VsDevCmd.bat"));
+        if (vscmdVersion != null) {
+            env.put("VSCMD_VER", vscmdVersion);
+        }
+        env.put("VSCMD_ARG_app_plat", "Desktop");
+        env.put("VSCMD_ARG_HOST_ARCH", host);
+        env.put("VSCMD_ARG_TGT_ARCH", target);
+        env.put("Platform", target);
+        env.put("CommandPromptType", host.equalsIgnoreCase(target) ? "Native" : "Cross");
+        env.put("VCToolsVersion", toolsVersion);
+        env.put("VCToolsInstallDir", dir(toolsDir));
+        String redistVersion = readVersionFile(
+                file(vcDir, "Auxiliary", "Build", "Microsoft.VCRedistVersion.default.txt"));
+        if (redistVersion != null) {
+            putIfExists(env, "VCToolsRedistDir", file(vcDir, "Redist", "MSVC", redistVersion));
+        }
+        File ifcDir = file(toolsDir, "ifc", target);
+        if (ifcDir.isDirectory()) {
+            env.put("IFCPATH", ifcDir.getPath());
+        }
+        env.put("WindowsSdkDir", dir(kitsRoot));
+        env.put("WindowsSDKVersion", sdkVersion + "\\");
+        env.put("WindowsSDKLibVersion", sdkVersion + "\\");
+        env.put("UniversalCRTSdkDir", dir(kitsRoot));
+        env.put("UCRTVersion", sdkVersion);
+        env.put("WindowsSdkBinPath", dir(sdkBin));
+        env.put("WindowsSdkVerBinPath", dir(new File(sdkBin, sdkVersion)));
+        env.put("WindowsLibPath", join(Arrays.asList(
+                file(kitsRoot, "UnionMetadata", sdkVersion).getPath(),
+                file(kitsRoot, "References", sdkVersion).getPath()
+        )));
+        if (programFiles != null) {
+            File extensionSdks = file(programFiles, "Microsoft SDKs", "Windows Kits", "10", "ExtensionSDKs");
+            if (extensionSdks.isDirectory()) {
+                env.put("ExtensionSdkDir", extensionSdks.getPath());
+            }
+            File htmlHelp = new File(programFiles, "HTML Help Workshop");
+            if (htmlHelp.isDirectory()) {
+                env.put("HTMLHelpDir", htmlHelp.getPath());
+            }
+        }
+        if (netfxSdk != null) {
+            env.put("NETFXSDKDir", dir(netfxSdk));
+        }
+        if (netfxTools != null) {
+            env.put("WindowsSDK_ExecutablePath_x86", dir(netfxTools));
+            putIfExists(env, "WindowsSDK_ExecutablePath_x64", new File(netfxTools, "x64"));
+        }
+        File framework = findFramework(env, host64);
+
+        List<String> include = existing(
+                file(toolsDir, "ATLMFC", "include"),
+                new File(toolsDir, "include"),
+                netfxSdk == null ? null : file(netfxSdk, "include", "um"),
+                new File(sdkInclude, "ucrt"),
+                new File(sdkInclude, "shared"),
+                new File(sdkInclude, "um"),
+                new File(sdkInclude, "winrt"),
+                new File(sdkInclude, "cppwinrt")
+        );
+        prepend(env, "INCLUDE", include);
+
+        // Headers for /external:env:EXTERNAL_INCLUDE, since the 14.29 tools
+        if (compareVersions(toolsVersion, "14.29") >= 0) {
+            prepend(env, "EXTERNAL_INCLUDE", include);
+        }
+        prepend(env, "LIB", existing(
+                file(toolsDir, "ATLMFC", "lib", target),
+                file(toolsDir, "lib", target),
+                netfxSdk == null ? null : file(netfxSdk, "lib", "um", target),
+                file(sdkLib, "ucrt", target),
+                file(sdkLib, "um", target)
+        ));
+        prepend(env, "LIBPATH", existing(
+                file(toolsDir, "ATLMFC", "lib", target),
+                file(toolsDir, "lib", target),
+                file(toolsDir, "lib", "x86", "store", "references"),
+                file(kitsRoot, "UnionMetadata", sdkVersion),
+                file(kitsRoot, "References", sdkVersion),
+                framework
+        ));
+        File perfTools = file(installDir, "Team Tools", "Performance Tools");
+        prepend(env, "PATH", existing(
+                file(toolsDir, "bin", "Host" + host, target),
+                file(toolsDir, "bin", "Host" + host, host),
+                file(ideDir, "VC", "VCPackages"),
+                file(extensionsDir, "TestWindow"),
+                file(extensionsDir, "TeamFoundation", "Team Explorer"),
+                new File(msbuildDir, "Roslyn"),
+                host64 ? new File(perfTools, "x64") : null,
+                perfTools,
+                netfxTools == null ? null : host64 ? new File(netfxTools, "x64") : netfxTools,
+                programFiles == null ? null : new File(programFiles, "HTML Help Workshop"),
+                file(sdkBin, sdkVersion, host),
+                new File(sdkBin, host),
+                msbuildDir,
+                framework,
+                ideDir,
+                file(installDir, "Common7", "Tools")
+        ));
+        append(env, "PATH", existing(
+                file(extensionsDir, "CMake", "CMake", "bin"),
+                file(extensionsDir, "CMake", "Ninja"),
+                file(ideDir, "VC", "Linux", "bin", "ConnectionManagerExe")
+        ));
+        return env;
+    }
+
+    /**
+     * Set the variables of the .NET Framework that VsDevCmd sets
+     * @return framework directory to add to the paths or null if not found
+     */
+    private static File findFramework(EnvVars env, boolean host64) {
+        String windir = env.get("SystemRoot");
+        if (windir == null) {
+            return null;
+        }
+        File frameworkDir = file(new File(windir), "Microsoft.NET", host64 ? "Framework64" : "Framework");
+        String frameworkVersion = newestVersion(frameworkDir, null, "v");
+        if (frameworkVersion == null) {
+            return null;
+        }
+        String bitness = host64 ? "64" : "32";
+        env.put("FrameworkDir", dir(frameworkDir));
+        env.put("FrameworkDir" + bitness, dir(frameworkDir));
+        env.put("FrameworkVersion", frameworkVersion);
+        env.put("FrameworkVersion" + bitness, frameworkVersion);
+        env.put("Framework40Version", "v4.0");
+        env.put("__DOTNET_ADD_" + bitness + "BIT", "1");
+        env.put("__DOTNET_PREFERRED_BITNESS", bitness);
+        return new File(frameworkDir, frameworkVersion);
+    }
+
+    /**
+     * Find the newest "NETFX x.y Tools" directory of the Windows SDK
+     */
+    private static File findNetfxTools(File binDir) {
+        String[] names = binDir.list();
+        if (names == null) {
+            return null;
+        }
+        String newest = null;
+        for (String name : names) {
+            if (name.startsWith("NETFX ") && name.endsWith(" Tools")) {
+                String version = name.substring(6, name.length() - 6);
+                if (newest == null || compareVersions(version, newest) > 0) {
+                    newest = version;
+                }
+            }
+        }
+        return newest == null ? null : new File(binDir, "NETFX " + newest + " Tools");
+    }
+
+    /**
+     * Compare an emulated environment with one captured by running vcvarsall
+     *
+     * The check goes both ways: every variable that either environment adds
+     * or changes must be added or changed by the other one with the same
+     * value. Path lists must contain the same segments, in any order.
+     * @param emulated environment computed by the emulator
+     * @param real environment captured from vcvarsall
+     * @param base environment both started from
+     * @return descriptions of the differences (empty if they match)
+     */
+    static List<String> verify(EnvVars emulated, EnvVars real, Map<String, String> base) {
+        List<String> differences = new ArrayList<>();
+        EnvVars original = new EnvVars(base);
+        Set<String> names = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        names.addAll(emulated.keySet());
+        names.addAll(real.keySet());
+        for (String name : names) {
+            String value = emulated.get(name);
+            String realValue = real.get(name);
+            String originalValue = original.get(name);
+            boolean emulatedChanged = value != null && !value.equals(originalValue);
+            boolean realChanged = realValue != null && !realValue.equals(originalValue);
+            if (!emulatedChanged && !realChanged) {
+                continue;
+            }
+            if (realValue == null) {
+                differences.add(name + " is not set by vcvarsall");
+            } else if (value == null) {
+                differences.add(name + " is set by vcvarsall but not emulated");
+            } else if (PATH_VARIABLES.contains(name.toUpperCase(Locale.ENGLISH))) {
+                Set<String> segments = normalizedSegments(value);
+                Set<String> realSegments = normalizedSegments(realValue);
+                for (String segment : value.split(SEPARATOR)) {
+                    if (!segment.isEmpty() && !realSegments.contains(normalize(segment))) {
+                        differences.add(String.format("%s does not contain %s", name, segment));
+                    }
+                }
+                for (String segment : realValue.split(SEPARATOR)) {
+                    if (!segment.isEmpty() && !segments.contains(normalize(segment))) {
+                        differences.add(String.format("%s contains %s, which is not emulated", name, segment));
+                    }
+                }
+            } else if (!normalize(value).equals(normalize(realValue))) {
+                differences.add(String.format("%s is %s instead of %s", name, realValue, value));
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Determine the version of the MSVC tools vcvarsall selects by default
+     * @param vcDir VC directory of the installation
+     * @return version or null if no tools are installed
+     */
+    static String findToolsVersion(File vcDir) {
+        String version = readVersionFile(file(vcDir, "Auxiliary", "Build", "Microsoft.VCToolsVersion.default.txt"));
+        if (version != null && file(vcDir, "Tools", "MSVC", version).isDirectory()) {
+            return version;
+        }
+        return newestVersion(file(vcDir, "Tools", "MSVC"), null);
+    }
+
+    /**
+     * Determine the version of the Windows 10 SDK vcvarsall selects
+     * @param kitsRoot Windows 10 SDK root directory
+     * @return version or null if no SDK is installed
+     */
+    static String findSdkVersion(File kitsRoot) {
+        return newestVersion(new File(kitsRoot, "Include"), new String[]{"um", "Windows.h"});
+    }
+
+    private static String findVscmdVersion(File vsDevCmd) {
+        try {
+            Matcher matcher = VSCMD_VER.matcher(new String(Files.readAllBytes(vsDevCmd.toPath()),
+                    StandardCharsets.UTF_8));
+            return matcher.find() ? matcher.group(1).trim() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a file containing a single version number
+     * @return version or null if the file cannot be read
+     */
+    static String readVersionFile(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            String version = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            return version.isEmpty() ? null : version;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the subdirectory with the highest version number
+     * @param dir directory containing version-numbered subdirectories
+     * @param required path of a file that must exist in the subdirectory or
+     *                 null
+     * @return name of the subdirectory or null if there is none
+     */
+    private static String newestVersion(File dir, String[] required) {
+        return newestVersion(dir, required, "");
+    }
+
+    private static String newestVersion(File dir, String[] required, String prefix) {
+        String[] names = dir.list();
+        if (names == null) {
+            return null;
+        }
+        String newest = null;
+        for (String name : names) {
+            if (!name.startsWith(prefix) || name.length() == prefix.length()) {
+                continue;
+            }
+            char first = name.charAt(prefix.length());
+            if (!Character.isDigit(first)) {
+                continue;
+            }
+            if (required != null && !file(new File(dir, name), required).exists()) {
+                continue;
+            }
+            if (newest == null || compareVersions(name.substring(prefix.length()),
+                    newest.substring(prefix.length())) > 0) {
+                newest = name;
+            }
+        }
+        return newest;
+    }
+
+    static int compareVersions(String a, String b) {
+        String[] aParts = a.split("\\.");
+        String[] bParts = b.split("\\.");
+        for (int i = 0; i < Math.max(aParts.length, bParts.length); i++) {
+            long aPart = i < aParts.length ? parsePart(aParts[i]) : 0;
+            long bPart = i < bParts.length ? parsePart(bParts[i]) : 0;
+            if (aPart != bPart) {
+                return aPart < bPart ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    private static long parsePart(String part) {
+        try {
+            return Long.parseLong(part);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String dir(File file) {
+        String path = file.getPath();
+        return path.endsWith(File.separator) ? path : path + File.separator;
+    }
+
+    private static void putIfExists(EnvVars env, String name, File dir) {
+        if (dir.isDirectory()) {
+            env.put(name, dir(dir));
+        }
+    }
+
+    private static List<String> existing(File... dirs) {
+        List<String> paths = new ArrayList<>();
+        for (File dir : dirs) {
+            if (dir != null && dir.isDirectory() && !paths.contains(dir.getPath())) {
+                paths.add(dir.getPath());
+            }
+        }
+        return paths;
+    }
+
+    private static String join(List<String> segments) {
+        StringBuilder value = new StringBuilder();
+        for (String segment : segments) {
+            if (value.length() != 0) {
+                value.append(SEPARATOR);
+            }
+            value.append(segment);
+        }
+        return value.toString();
+    }
+
+    private static void prepend(EnvVars env, String name, List<String> segments) {
+        String existing = env.get(name);
+        List<String> value = new ArrayList<>(segments);
+        if (existing != null && !existing.isEmpty()) {
+            value.add(existing);
+        }
+        env.put(name, join(value));
+    }
+
+    private static void append(EnvVars env, String name, List<String> segments) {
+        if (segments.isEmpty()) {
+            return;
+        }
+        String existing = env.get(name);
+        List<String> value = new ArrayList<>();
+        if (existing != null && !existing.isEmpty()) {
+            value.add(existing);
+        }
+        value.addAll(segments);
+        env.put(name, join(value));
+    }
+
+    /**
+     * Normalize a path for comparison: case, repeated separators and
+     * trailing separators do not matter
+     */
+    private static String normalize(String path) {
+        String normalized = path.trim().toLowerCase(Locale.ENGLISH).replaceAll("[\\\\/]+", "/");
+        while (normalized.length() > 1 && normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private static Set<String> normalizedSegments(String value) {
+        Set<String> segments = new HashSet<>();
+        for (String segment : value.split(SEPARATOR)) {
+            if (!segment.isEmpty()) {
+                segments.add(normalize(segment));
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Variables captured on the agent along with details of how they were obtained
+ */
+class VcvarsallResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CapturedEnvironment mEnvironment;
+    private final ToolchainFingerprint mFingerprint;
+    private final boolean mCacheHit;
+    private final CaptureTimings mTimings;
+    private final List<String> mWarnings;
+    private final String mError;
+    private final CaptureException.Kind mFailureKind;
+
+    VcvarsallResult(CapturedEnvironment environment, ToolchainFingerprint fingerprint, boolean cacheHit,
+                    CaptureTimings timings) {
+        this(environment, fingerprint, cacheHit, timings, Collections.<String>emptyList());
+    }
+
+    VcvarsallResult(CapturedEnvironment environment, ToolchainFingerprint fingerprint, boolean cacheHit,
+                    CaptureTimings timings, List<String> warnings) {
+        this(environment, fingerprint, cacheHit, timings, warnings, null, null);
+    }
+
+    private VcvarsallResult(CapturedEnvironment environment, ToolchainFingerprint fingerprint, boolean cacheHit,
+                            CaptureTimings timings, List<String> warnings, String error,
+                            CaptureException.Kind failureKind) {
+        mEnvironment = environment;
+        mFingerprint = fingerprint;
+        mCacheHit = cacheHit;
+        mTimings = timings;
+        mWarnings = warnings;
+        mError = error;
+        mFailureKind = failureKind;
+    }
+
+    /**
+     * Create a result for a toolchain whose environment the controller
+     * already has
+     * @param fingerprint toolchain fingerprint
+     * @param timings time spent on the agent
+     * @param warnings problems that did not prevent the capture
+     * @return result without an environment
+     */
+    static VcvarsallResult known(ToolchainFingerprint fingerprint, CaptureTimings timings, List<String> warnings) {
+        return new VcvarsallResult(null, fingerprint, true, timings, warnings);
+    }
+
+    /**
+     * Create a result for a capture that failed
+     * @param kind reason for the failure
+     * @param error description of the failure
+     * @return failed result
+     */
+    static VcvarsallResult failure(CaptureException.Kind kind, String error) {
+        return new VcvarsallResult(null, null, false, null, Collections.<String>emptyList(), error, kind);
+    }
+
+    /**
+     * Retrieve the captured environment
+     * @return environment or null if the controller already has it
+     */
+    CapturedEnvironment getEnvironment() {
+        return mEnvironment;
+    }
+
+    ToolchainFingerprint getFingerprint() {
+        return mFingerprint;
+    }
+
+    boolean isCacheHit() {
+        return mCacheHit;
+    }
+
+    /**
+     * Retrieve the time spent in each phase on the agent
+     * @return timings or null if the capture failed
+     */
+    CaptureTimings getTimings() {
+        return mTimings;
+    }
+
+    /**
+     * Retrieve problems that did not prevent the capture from succeeding
+     * @return warnings to show in the log
+     */
+    List<String> getWarnings() {
+        return mWarnings;
+    }
+
+    /**
+     * Retrieve the reason the capture failed
+     * @return description of the failure or null if the capture succeeded
+     */
+    String getError() {
+        return mError;
+    }
+
+    /**
+     * Retrieve the reason the capture failed
+     * @return classification of the failure or null if the capture succeeded
+     */
+    CaptureException.Kind getFailureKind() {
+        return mFailureKind;
+    }
+}
@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Visual Studio 2017 (or newer) instance registered with Setup Configuration
+ */
+class VsInstance {
+
+    private final String mId;
+    private final String mInstallationPath;
+    private final String mInstallationVersion;
+    private final String mProductId;
+    private final Set<String> mPackages;
+
+    VsInstance(String id, String installationPath, String installationVersion,
+               String productId, Set<String> packages) {
+        mId = id;
+        mInstallationPath = installationPath;
+        mInstallationVersion = installationVersion;
+        mProductId = productId;
+        mPackages = Collections.unmodifiableSet(packages);
+    }
+
+    String getId() {
+        return mId;
+    }
+
+    /**
+     * Retrieve the installation directory
+     * @return absolute path ending with a separator
+     */
+    String getInstallationPath() {
+        return mInstallationPath.endsWith("\\") ? mInstallationPath : mInstallationPath + "\\";
+    }
+
+    String getInstallationVersion() {
+        return mInstallationVersion;
+    }
+
+    /**
+     * Retrieve the version in the form used for the SxS registry values
+     * @return major version followed by ".0" (e.g. "15.0")
+     */
+    String getMajorVersion() {
+        int index = mInstallationVersion.indexOf('.');
+        return (index == -1 ? mInstallationVersion : mInstallationVersion.substring(0, index)) + ".0";
+    }
+
+    String getProductId() {
+        return mProductId;
+    }
+
+    /**
+     * Retrieve the IDs of the selected workloads and components
+     * @return package IDs
+     */
+    Set<String> getPackages() {
+        return mPackages;
+    }
+}
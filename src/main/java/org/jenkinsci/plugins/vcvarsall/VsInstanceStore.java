@@ -0,0 +1,180 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the instances in the Setup Configuration instance store
+ *
+ * Visual Studio 2017 and newer record each installation in a state.json file
+ * under ProgramData instead of fully populating the SxS registry key. Reading
+ * these files directly (like vswhere does) avoids probing the filesystem for
+ * each version. Only the fields that are needed are read from each file, and
+ * the index (including the instance picked for each version) is kept in
+ * memory until the store changes.
+ */
+class VsInstanceStore {
+
+    /**
+     * Package that provides the C++ compilers
+     */
+    static final String VC_TOOLS_PACKAGE = "Microsoft.VisualStudio.Component.VC.Tools.x86.x64";
+
+    private static final String STATE_FILE = "state.json";
+
+    private static final Map<File, VsInstanceStore> CACHE = new HashMap<>();
+
+    private final long mStamp;
+    private final Map<String, List<VsInstance>> mByVersion = new HashMap<>();
+    private final Map<String, List<VsInstance>> mByPackage = new HashMap<>();
+    private final Map<String, List<VsInstance>> mByProduct = new HashMap<>();
+
+    /**
+     * Instance used for building C++ code, by version
+     */
+    private final Map<String, VsInstance> mBest = new HashMap<>();
+
+    private VsInstanceStore(long stamp, List<VsInstance> instances) {
+        mStamp = stamp;
+        for (VsInstance instance : instances) {
+            index(mByVersion, instance.getMajorVersion(), instance);
+            index(mByProduct, instance.getProductId(), instance);
+            for (String id : instance.getPackages()) {
+                index(mByPackage, id, instance);
+            }
+        }
+        for (Map.Entry<String, List<VsInstance>> entry : mByVersion.entrySet()) {
+            VsInstance best = entry.getValue().get(0);
+            for (VsInstance instance : entry.getValue()) {
+                if (instance.getPackages().contains(VC_TOOLS_PACKAGE)) {
+                    best = instance;
+                    break;
+                }
+            }
+            mBest.put(entry.getKey(), best);
+        }
+    }
+
+    private static void index(Map<String, List<VsInstance>> map, String key, VsInstance instance) {
+        if (key == null) {
+            return;
+        }
+        List<VsInstance> instances = map.get(key);
+        if (instances == null) {
+            instances = new ArrayList<>();
+            map.put(key, instances);
+        }
+        instances.add(instance);
+    }
+
+    /**
+     * Determine the location of the instance store on this host
+     * @return directory containing one subdirectory per instance
+     */
+    static File getDefaultDir() {
+        String programData = System.getenv("ProgramData");
+        if (programData == null) {
+            programData = "C:\\ProgramData";
+        }
+        return new File(new File(new File(new File(programData, "Microsoft"), "VisualStudio"), "Packages"),
+                "_Instances");
+    }
+
+    /**
+     * Compute a stamp that changes whenever an instance is added, removed or
+     * modified
+     */
+    private static long stamp(File dir, File[] instanceDirs) {
+        long stamp = dir.lastModified();
+        for (File instanceDir : instanceDirs) {
+            stamp = 31 * stamp + new File(instanceDir, STATE_FILE).lastModified();
+        }
+        return stamp;
+    }
+
+    /**
+     * Retrieve the index for an instance store
+     * @param dir instance store directory
+     * @return index (empty if the store does not exist)
+     */
+    static VsInstanceStore get(File dir) {
+        File[] instanceDirs = dir.listFiles();
+        if (instanceDirs == null) {
+            return new VsInstanceStore(0, Collections.<VsInstance>emptyList());
+        }
+        long stamp = stamp(dir, instanceDirs);
+        synchronized (CACHE) {
+            VsInstanceStore store = CACHE.get(dir);
+            if (store == null || store.mStamp != stamp) {
+                store = new VsInstanceStore(stamp, load(instanceDirs));
+                CACHE.put(dir, store);
+            }
+            return store;
+        }
+    }
+
+    private static List<VsInstance> load(File[] instanceDirs) {
+        List<VsInstance> instances = new ArrayList<>();
+        for (File instanceDir : instanceDirs) {
+            File stateFile = new File(instanceDir, STATE_FILE);
+            if (!stateFile.isFile()) {
+                continue;
+            }
+            try (Reader reader = Files.newBufferedReader(stateFile.toPath(), StandardCharsets.UTF_8)) {
+                VsInstance instance = StateJsonReader.read(instanceDir.getName(), reader);
+                if (instance != null) {
+                    instances.add(instance);
+                }
+            } catch (IOException e) {
+                // An unreadable instance is skipped just like vswhere does
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Parse the contents of a state.json file
+     * @param id instance ID
+     * @param json file contents
+     * @return instance or null if the file does not describe a usable instance
+     * @throws IOException if the contents are not valid JSON
+     */
+    static VsInstance parse(String id, String json) throws IOException {
+        return StateJsonReader.read(id, new StringReader(json));
+    }
+
+    private static List<VsInstance> lookup(Map<String, List<VsInstance>> map, String key) {
+        List<VsInstance> instances = map.get(key);
+        return instances == null ? Collections.<VsInstance>emptyList() : Collections.unmodifiableList(instances);
+    }
+
+    List<VsInstance> byVersion(String version) {
+        return lookup(mByVersion, version);
+    }
+
+    List<VsInstance> byPackage(String packageId) {
+        return lookup(mByPackage, packageId);
+    }
+
+    List<VsInstance> byProduct(String productId) {
+        return lookup(mByProduct, productId);
+    }
+
+    /**
+     * Find the best instance of a version for building C++ code
+     * @param version version in the form used for the SxS registry values
+     * @return instance or null if the version is not installed
+     */
+    VsInstance find(String version) {
+        return mBest.get(version);
+    }
+}
@@ -0,0 +1,170 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Visual Studio versions along with the toolsets they provide
+ *
+ * Adding support for a new version only requires a new entry here.
+ */
+enum VsVersion {
+
+    VS2013("12.0", "Visual Studio 2013", "VC\\vcvarsall.bat",
+            EnumSet.of(HostArch.X86, HostArch.X64),
+            EnumSet.of(TargetArch.X86, TargetArch.X86_64)),
+    VS2015("14.0", "Visual Studio 2015", "VC\\vcvarsall.bat",
+            EnumSet.of(HostArch.X86, HostArch.X64),
+            EnumSet.of(TargetArch.X86, TargetArch.X86_64)),
+    VS2017("15.0", "Visual Studio 2017", "VC\\Auxiliary\\Build\\vcvarsall.bat",
+            EnumSet.of(HostArch.X86, HostArch.X64),
+            EnumSet.of(TargetArch.X86, TargetArch.X86_64, TargetArch.ARM64)),
+    VS2019("16.0", "Visual Studio 2019", "VC\\Auxiliary\\Build\\vcvarsall.bat",
+            EnumSet.of(HostArch.X86, HostArch.X64),
+            EnumSet.of(TargetArch.X86, TargetArch.X86_64, TargetArch.ARM64, TargetArch.ARM64EC)),
+    VS2022("17.0", "Visual Studio 2022", "VC\\Auxiliary\\Build\\vcvarsall.bat",
+            EnumSet.of(HostArch.X86, HostArch.X64, HostArch.ARM64),
+            EnumSet.of(TargetArch.X86, TargetArch.X86_64, TargetArch.ARM64, TargetArch.ARM64EC));
+
+    private final String mId;
+    private final String mDisplayName;
+    private final String mVcvarsall;
+    private final Set<HostArch> mHosts;
+    private final Set<TargetArch> mTargets;
+
+    VsVersion(String id, String displayName, String vcvarsall, Set<HostArch> hosts, Set<TargetArch> targets) {
+        mId = id;
+        mDisplayName = displayName;
+        mVcvarsall = vcvarsall;
+        mHosts = Collections.unmodifiableSet(hosts);
+        mTargets = Collections.unmodifiableSet(targets);
+    }
+
+    /**
+     * Retrieve the value stored in the configuration (and used for the SxS
+     * registry values)
+     * @return version ID
+     */
+    String getId() {
+        return mId;
+    }
+
+    String getDisplayName() {
+        return mDisplayName;
+    }
+
+    /**
+     * Retrieve the location of vcvarsall.bat
+     * @return path relative to the installation directory
+     */
+    String getVcvarsall() {
+        return mVcvarsall;
+    }
+
+    /**
+     * Retrieve the architectures for which native (rather than cross-hosted)
+     * tools are provided
+     * @return host architectures
+     */
+    Set<HostArch> getHosts() {
+        return mHosts;
+    }
+
+    Set<TargetArch> getTargets() {
+        return mTargets;
+    }
+
+    /**
+     * Choose the toolset to run on a host
+     * @param host architecture of the host
+     * @return host architecture of the toolset to use
+     */
+    HostArch selectHost(HostArch host) {
+        if (mHosts.contains(host)) {
+            return host;
+        }
+
+        // ARM64 hosts run x64 (where supported) or x86 tools under emulation
+        if (host == HostArch.ARM64 && mHosts.contains(HostArch.X64)) {
+            return HostArch.X64;
+        }
+        return HostArch.X86;
+    }
+
+    /**
+     * Determine if the compiler for a toolset is installed
+     *
+     * Native tools are an optional part of some editions (Visual Studio 2013
+     * Express only has the x86-hosted compilers, for example).
+     * @param installDir Visual Studio installation directory
+     * @param host host architecture of the toolset
+     * @param target target architecture
+     * @return true if the compiler exists
+     */
+    boolean hasToolset(String installDir, HostArch host, TargetArch target) {
+        File vcDir = new File(installDir, "VC");
+        if (mVcvarsall.startsWith("VC\\Auxiliary")) {
+            File msvcDir = VcvarsallEmulator.file(vcDir, "Tools", "MSVC");
+            String[] versions = msvcDir.list();
+            if (versions != null) {
+                for (String version : versions) {
+                    if (VcvarsallEmulator.file(msvcDir, version, "bin", "Host" + host.getDirectory(),
+                            target.getDirectory(), "cl.exe").isFile()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        File binDir = new File(vcDir, "bin");
+        if (!host.getParam().equals(target.getParam())) {
+            binDir = new File(binDir, param(host, target));
+        } else if (host != HostArch.X86) {
+            binDir = new File(binDir, host.getParam());
+        }
+        return new File(binDir, "cl.exe").isFile();
+    }
+
+    /**
+     * Generate the parameter to pass to vcvarsall.bat
+     * @param host host architecture of the toolset
+     * @param target target architecture
+     * @return parameter to pass
+     */
+    static String param(HostArch host, TargetArch target) {
+        if (host.getParam().equals(target.getParam())) {
+            return target.getParam();
+        }
+        return host.getParam() + "_" + target.getParam();
+    }
+
+    /**
+     * Find a version by the value stored in the configuration
+     * @param id version ID
+     * @return version
+     * @throws RuntimeException for unknown versions
+     */
+    static VsVersion fromId(String id) throws RuntimeException {
+        for (VsVersion version : values()) {
+            if (version.mId.equals(id)) {
+                return version;
+            }
+        }
+        throw new RuntimeException("invalid Visual Studio version");
+    }
+
+    /**
+     * Retrieve the IDs of all known versions
+     * @return version IDs
+     */
+    static Set<String> ids() {
+        Set<String> ids = new LinkedHashSet<>();
+        for (VsVersion version : values()) {
+            ids.add(version.mId);
+        }
+        return ids;
+    }
+}
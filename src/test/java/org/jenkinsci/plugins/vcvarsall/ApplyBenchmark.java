@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applying a captured environment to the environment of a build, compared
+ * with copying the whole agent environment over it as was done before
+ * environments were stored as overlays
+ *
+ * Every benchmark starts from a copy of the build environment, which
+ * {@link #copy} measures on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ApplyBenchmark {
+
+    @Param({"0", "200", "1000"})
+    public int padding;
+
+    private EnvVars mBuild;
+    private EnvVars mAgent;
+    private CapturedEnvironment mEnvironment;
+
+    @Setup
+    public void setUp() throws IOException {
+        mBuild = BenchmarkFixture.environment("base.txt", padding);
+        mAgent = BenchmarkFixture.environment("vs2019-buildtools-x64.txt", padding);
+        mEnvironment = BenchmarkFixture.captured(padding);
+        // Build the overlay outside of the measurement
+        mEnvironment.apply(new EnvVars(mBuild));
+    }
+
+    @Benchmark
+    public EnvVars copy() {
+        return new EnvVars(mBuild);
+    }
+
+    @Benchmark
+    public EnvVars apply() {
+        EnvVars env = new EnvVars(mBuild);
+        mEnvironment.apply(env);
+        return env;
+    }
+
+    @Benchmark
+    public EnvVars putAll() {
+        EnvVars env = new EnvVars(mBuild);
+        env.putAll(mAgent);
+        return env;
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Environments used by the benchmarks
+ *
+ * The toolchain is the VS 2019 Build Tools capture used by the emulator
+ * tests. Agents usually have a lot more in their environment than that
+ * fixture, so it can be padded with variables vcvarsall does not touch.
+ */
+final class BenchmarkFixture {
+
+    private BenchmarkFixture() {
+    }
+
+    /**
+     * Read a fixture as printed by <code>set</code>
+     * @param name name of the fixture
+     * @param padding number of unrelated variables to add
+     * @return lines of output
+     * @throws IOException if the fixture cannot be read
+     */
+    static List<String> lines(String name, int padding) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = BenchmarkFixture.class.getResourceAsStream("VcvarsallEmulatorTest/" + name);
+             Scanner scanner = new Scanner(in, "UTF-8")) {
+            while (scanner.hasNextLine()) {
+                lines.add(scanner.nextLine());
+            }
+        }
+        for (int i = 0; i < padding; i++) {
+            lines.add(String.format("BENCHMARK_VARIABLE_%d=C:\\Tools\\benchmark\\%d\\bin;C:\\Tools\\benchmark\\%d\\lib",
+                    i, i, i));
+        }
+        return lines;
+    }
+
+    /**
+     * Read a fixture into an environment
+     * @param name name of the fixture
+     * @param padding number of unrelated variables to add
+     * @return environment
+     * @throws IOException if the fixture cannot be read
+     */
+    static EnvVars environment(String name, int padding) throws IOException {
+        EnvVars envVars = new EnvVars();
+        for (String line : lines(name, padding)) {
+            envVars.addLine(line);
+        }
+        return envVars;
+    }
+
+    /**
+     * Capture the toolchain on top of an agent environment
+     * @param padding number of unrelated variables on the agent
+     * @return environment vcvarsall added or changed
+     * @throws IOException if the fixtures cannot be read
+     */
+    static CapturedEnvironment captured(int padding) throws IOException {
+        return CapturedEnvironment.diff(environment("base.txt", padding),
+                environment("vs2019-buildtools-x64.txt", padding));
+    }
+}
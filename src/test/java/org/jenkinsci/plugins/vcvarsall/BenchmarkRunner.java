@@ -0,0 +1,68 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Run the JMH benchmarks of the plugin
+ *
+ * This is not picked up by a normal build. Run it with
+ * <code>mvn test -Dbenchmark</code>, which selects this class only; the
+ * results are written to <code>target/jmh-report.json</code>.
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Number of nodes with the same toolchain in the footprint report
+     */
+    private static final int NODES = 100;
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(getClass().getPackage().getName() + "\\..*Benchmark")
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json")
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+    }
+
+    /**
+     * Print the heap used by the environments of many nodes with the same
+     * toolchain, each received separately, compared with keeping the whole
+     * agent environment of every node
+     */
+    @Test
+    public void reportFootprint() throws Exception {
+        byte[] encoded = BenchmarkFixture.captured(200).encode();
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(BenchmarkFixture.environment("vs2019-buildtools-x64.txt", 200));
+        }
+
+        List<CapturedEnvironment> environments = new ArrayList<>();
+        List<EnvVars> agentEnvironments = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            environments.add(CapturedEnvironment.decode(encoded));
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized.toByteArray()))) {
+                agentEnvironments.add((EnvVars) in.readObject());
+            }
+        }
+        System.out.printf("%d nodes: captured environments %d bytes, agent environments %d bytes%n", NODES,
+                GraphLayout.parseInstance(environments).totalSize(),
+                GraphLayout.parseInstance(agentEnvironments).totalSize());
+    }
+}
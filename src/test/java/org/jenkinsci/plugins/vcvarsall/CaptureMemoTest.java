@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import hudson.slaves.DumbSlave;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Keeps captures in memory for the lifetime of an in-JVM agent connection
+ */
+public class CaptureMemoTest {
+
+    private static final long DEADLINE_SECONDS = 30;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        assumeFalse(Functions.isWindows());
+        CaptureMemo.clear();
+    }
+
+    @After
+    public void tearDown() {
+        CaptureMemo.clear();
+    }
+
+    private RunVcvarsallCallable callable() throws Exception {
+        File script = tmp.newFile("vcvarsall.sh");
+        Files.write(script.toPath(), "echo \"VCINSTALLDIR=/opt/vc\"\n".getBytes(StandardCharsets.UTF_8));
+        RunVcvarsallCallable callable = new RunVcvarsallCallable("16.0", "x86_64", tmp.newFolder("cache").getPath(),
+                60, false, false, true, new VariableFilter(null, null), false, false,
+                Collections.<String>emptySet());
+        callable.setScript(script.getPath());
+        return callable;
+    }
+
+    @Test
+    public void keepsNothingWithoutConnection() throws Exception {
+        assertNotNull(callable().call().getEnvironment());
+        assertEquals(0, CaptureMemo.size());
+    }
+
+    @Test
+    public void clearedWithConnection() throws Exception {
+        DumbSlave agent = new DumbSlave("agent", tmp.newFolder().getPath(), new InJvmAgentLauncher());
+        j.jenkins.addNode(agent);
+        agent.toComputer().connect(false).get(DEADLINE_SECONDS, TimeUnit.SECONDS);
+
+        assertNotNull(agent.toComputer().getChannel().call(callable()).getEnvironment());
+        assertTrue(CaptureMemo.size() > 0);
+
+        agent.toComputer().disconnect(null).get(DEADLINE_SECONDS, TimeUnit.SECONDS);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DEADLINE_SECONDS);
+        while (CaptureMemo.size() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, CaptureMemo.size());
+    }
+}
@@ -0,0 +1,15 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CaptureMetricsTest {
+
+    @Test
+    public void versionIsSingleComponent() {
+        assertEquals("vcvarsall.15_0.x64.total", CaptureMetrics.name("15.0", "x64", "total"));
+        assertEquals("vcvarsall.16_0.x86.failure.timeout",
+                CaptureMetrics.name("16.0", "x86", "failure", "timeout"));
+    }
+}
@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+public class CaptureToolchainsCallableTest {
+
+    private static RunVcvarsallCallable toolchain(String version, String arch) {
+        return new RunVcvarsallCallable(version, arch, "cache", 60, false, false, false,
+                new VariableFilter("", ""), false, false, Collections.<String>emptySet());
+    }
+
+    @Test
+    public void returnsTuningWithoutToolchains() {
+        CaptureToolchainsCallable.Results results =
+                new CaptureToolchainsCallable(new LinkedHashMap<String, RunVcvarsallCallable>()).call();
+        assertTrue(results.getResults().isEmpty());
+        assertEquals(Runtime.getRuntime().availableProcessors(), results.getTuning().getCores());
+    }
+
+    @Test
+    public void returnsEveryFailure() {
+        assumeFalse(Functions.isWindows());
+        Map<String, RunVcvarsallCallable> callables = new LinkedHashMap<>();
+        callables.put("15.0-x64", toolchain("15.0", "x64"));
+        callables.put("16.0-x86", toolchain("16.0", "x86"));
+        CaptureToolchainsCallable.Results results = new CaptureToolchainsCallable(callables).call();
+        assertEquals(callables.keySet(), results.getResults().keySet());
+        for (VcvarsallResult result : results.getResults().values()) {
+            assertNull(result.getEnvironment());
+            assertEquals(CaptureException.Kind.UNSUPPORTED, result.getFailureKind());
+        }
+        assertTrue(results.getTuning().getCores() > 0);
+    }
+}
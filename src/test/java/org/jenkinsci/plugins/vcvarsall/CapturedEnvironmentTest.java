@@ -0,0 +1,141 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CapturedEnvironmentTest {
+
+    private static Map<String, String> env(String... pairs) {
+        Map<String, String> env = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < pairs.length; i += 2) {
+            env.put(pairs[i], pairs[i + 1]);
+        }
+        return env;
+    }
+
+    private static final Map<String, String> BASE = env(
+            "Path", "C:\\Windows\\system32;C:\\Windows",
+            "OS", "Windows_NT"
+    );
+
+    private static CapturedEnvironment vs2015() {
+        return CapturedEnvironment.diff(BASE, env(
+                "Path", "C:\\VS14\\VC\\bin;C:\\Windows\\system32;C:\\Windows",
+                "INCLUDE", "C:\\VS14\\VC\\include",
+                "VS140COMNTOOLS", "C:\\VS14\\Common7\\Tools\\",
+                "OS", "Windows_NT"
+        ));
+    }
+
+    private static CapturedEnvironment vs2017() {
+        return CapturedEnvironment.diff(BASE, env(
+                "Path", "C:\\VS15\\bin;C:\\VS15\\IDE;C:\\Windows\\system32;C:\\Windows",
+                "INCLUDE", "C:\\VS15\\include",
+                "VSCMD_VER", "15.9.0",
+                "OS", "Windows_NT"
+        ));
+    }
+
+    @Test
+    public void diffKeepsOnlyChanges() {
+        CapturedEnvironment environment = vs2015();
+        assertEquals(3, environment.size());
+        assertFalse(environment.getNames().contains("OS"));
+    }
+
+    @Test
+    public void applyPrependsToPath() {
+        Map<String, String> env = env("PATH", "C:\\Agent\\bin;C:\\Windows");
+        vs2015().apply(env);
+        assertEquals("C:\\VS14\\VC\\bin;C:\\Agent\\bin;C:\\Windows", env.get("PATH"));
+        assertEquals("C:\\VS14\\VC\\include", env.get("INCLUDE"));
+    }
+
+    @Test
+    public void unapplyRestoresPath() {
+        Map<String, String> env = env("PATH", "C:\\Agent\\bin;C:\\Windows", "JOB", "1");
+        Map<String, String> original = new TreeMap<>(env);
+        CapturedEnvironment environment = vs2015();
+        environment.apply(env);
+        environment.unapply(env);
+        assertEquals(original, env);
+    }
+
+    @Test
+    public void switchingToolchainsDoesNotStack() {
+        Map<String, String> env = env("PATH", "C:\\Agent\\bin");
+        vs2015().apply(env);
+        vs2015().unapply(env);
+        vs2017().apply(env);
+        assertEquals("C:\\VS15\\bin;C:\\VS15\\IDE;C:\\Agent\\bin", env.get("PATH"));
+        assertEquals("C:\\VS15\\include", env.get("INCLUDE"));
+        assertEquals("15.9.0", env.get("VSCMD_VER"));
+        assertFalse(env.containsKey("VS140COMNTOOLS"));
+    }
+
+    @Test
+    public void unapplyKeepsValuesChangedSince() {
+        Map<String, String> env = env("PATH", "C:\\Agent\\bin");
+        CapturedEnvironment environment = vs2015();
+        environment.apply(env);
+        env.put("INCLUDE", "C:\\Other");
+        env.put("PATH", "C:\\Build;" + env.get("PATH"));
+        environment.unapply(env);
+        assertEquals("C:\\Other", env.get("INCLUDE"));
+        assertEquals("C:\\Build;C:\\VS14\\VC\\bin;C:\\Agent\\bin", env.get("PATH"));
+    }
+
+    private static CapturedEnvironment vs2019() {
+        return CapturedEnvironment.diff(BASE, env(
+                "Path", "C:\\VS16\\bin;C:\\Windows\\system32;C:\\Windows;C:\\VS16\\CMake\\bin",
+                "__VSCMD_PREINIT_PATH", "C:\\Windows\\system32;C:\\Windows",
+                "VSCMD_VER", "16.11.5",
+                "OS", "Windows_NT"
+        ));
+    }
+
+    @Test
+    public void dropsSnapshotOfBase() {
+        CapturedEnvironment environment = vs2019();
+        assertFalse(environment.getNames().contains("__VSCMD_PREINIT_PATH"));
+        assertFalse(environment.isBaseDependent());
+    }
+
+    @Test
+    public void appliesAppendsToOtherBase() {
+        Map<String, String> env = env("PATH", "C:\\Agent\\bin");
+        vs2019().apply(env);
+        assertEquals("C:\\VS16\\bin;C:\\Agent\\bin;C:\\VS16\\CMake\\bin", env.get("PATH"));
+        assertFalse(env.containsKey("__VSCMD_PREINIT_PATH"));
+
+        vs2019().unapply(env);
+        assertEquals("C:\\Agent\\bin", env.get("PATH"));
+    }
+
+    @Test
+    public void appendsToEmptyBase() {
+        CapturedEnvironment environment = CapturedEnvironment.diff(env("INCLUDE", ""),
+                env("INCLUDE", "C:\\VS16\\include"));
+        Map<String, String> env = env();
+        environment.apply(env);
+        assertEquals("C:\\VS16\\include", env.get("INCLUDE"));
+        assertFalse(environment.isBaseDependent());
+    }
+
+    @Test
+    public void reorderedBaseIsNotShared() {
+        CapturedEnvironment environment = CapturedEnvironment.diff(BASE, env(
+                "Path", "C:\\Windows;C:\\VS16\\bin;C:\\Windows\\system32"
+        ));
+        assertTrue(environment.isBaseDependent());
+
+        // Replacing a value without keeping any of it is still shared
+        assertFalse(CapturedEnvironment.diff(BASE, env("Path", "C:\\VS16\\bin")).isBaseDependent());
+    }
+}
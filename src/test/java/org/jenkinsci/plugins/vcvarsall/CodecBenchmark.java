@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a captured environment compared with Java serialization of the
+ * whole agent environment, which is what went over the channel before
+ *
+ * The sizes of both forms are printed when the benchmark is set up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CodecBenchmark {
+
+    @Param({"0", "200"})
+    public int padding;
+
+    private CapturedEnvironment mEnvironment;
+    private EnvVars mAgent;
+    private byte[] mEncoded;
+    private byte[] mSerialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        mEnvironment = BenchmarkFixture.captured(padding);
+        mAgent = BenchmarkFixture.environment("vs2019-buildtools-x64.txt", padding);
+        mEncoded = mEnvironment.encode();
+        mSerialized = serialize(mAgent);
+        System.out.printf("encoded %d bytes, serialized environment %d bytes, serialized agent environment %d bytes%n",
+                mEncoded.length, serialize(mEnvironment).length, mSerialized.length);
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(out)) {
+            objectOut.writeObject(object);
+        }
+        return out.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return mEnvironment.encode();
+    }
+
+    @Benchmark
+    public CapturedEnvironment decode() throws IOException {
+        return CapturedEnvironment.decode(mEncoded);
+    }
+
+    @Benchmark
+    public byte[] serializeAgentEnvironment() throws IOException {
+        return serialize(mAgent);
+    }
+
+    @Benchmark
+    public Object deserializeAgentEnvironment() throws IOException, ClassNotFoundException {
+        return deserialize(mSerialized);
+    }
+}
@@ -0,0 +1,188 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import hudson.slaves.DumbSlave;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Connect many agents at once and report how the controller copes
+ *
+ * The agents run in this JVM and a shell script stands in for vcvarsall.
+ * The connect time percentiles, thread usage and heap growth are printed.
+ * The number of agents and the time the script takes can be raised to
+ * match a real fleet, for example
+ * <code>-Dorg.jenkinsci.plugins.vcvarsall.ConnectStressTest.agents=300</code>
+ * (and <code>.latency</code> in milliseconds).
+ */
+public class ConnectStressTest {
+
+    private static final int AGENTS = Integer.getInteger(ConnectStressTest.class.getName() + ".agents", 20);
+
+    private static final int LATENCY = Integer.getInteger(ConnectStressTest.class.getName() + ".latency", 200);
+
+    private static final long DEADLINE_MINUTES = 10;
+
+    private static final String SCRIPT = "vcvarsall.sh";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void unixOnly() {
+        assumeFalse(Functions.isWindows());
+    }
+
+    @After
+    public void tearDown() {
+        ComputerListenerImpl.sCaptureScript = null;
+    }
+
+    private static void writeScript(File file) throws IOException {
+        Files.write(file.toPath(), String.format(
+                "sleep %d.%03d\n"
+                        + "echo \"VCVARSALL_PARAM=$1\"\n"
+                        + "echo \"VCINSTALLDIR=/opt/vc\"\n"
+                        + "echo \"PATH=/opt/vc/bin;$PATH\"\n",
+                LATENCY / 1000, LATENCY % 1000).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.max(0, (sorted.length * percent + 99) / 100 - 1)];
+    }
+
+    /**
+     * Create agents with a toolchain, each with a root directory of its own
+     * @param script true to give each agent its own copy of the stand-in
+     */
+    private List<DumbSlave> createAgents(boolean script) throws Exception {
+        List<DumbSlave> agents = new ArrayList<>();
+        for (int i = 0; i < AGENTS; i++) {
+            File root = tmp.newFolder();
+            if (script) {
+                writeScript(new File(root, SCRIPT));
+            }
+            DumbSlave agent = new DumbSlave("agent-" + i, root.getPath(), new InJvmAgentLauncher());
+            agent.getNodeProperties().add(new MsvcNodeProperty(
+                    Collections.singletonList(new Toolchain("16.0", "x86_64"))));
+            agents.add(agent);
+        }
+        return agents;
+    }
+
+    /**
+     * Connect the agents at the same time and wait until builds are no
+     * longer held back from any of them
+     * @return fingerprints of the environments the agents use
+     */
+    private Set<String> connect(List<DumbSlave> agents) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+
+        long start = System.nanoTime();
+        for (DumbSlave agent : agents) {
+            j.jenkins.addNode(agent);
+            agent.toComputer().connect(false);
+        }
+
+        long[] connectMillis = new long[agents.size()];
+        int ready = 0;
+        int captureThreads = 0;
+        long deadline = start + TimeUnit.MINUTES.toNanos(DEADLINE_MINUTES);
+        while (ready < agents.size() && System.nanoTime() < deadline) {
+            captureThreads = Math.max(captureThreads, countThreads("vcvarsall capture"));
+            for (int i = 0; i < agents.size(); i++) {
+                DumbSlave agent = agents.get(i);
+                if (connectMillis[i] == 0 && agent.toComputer().isOnline()
+                        && !ComputerListenerImpl.isCapturePending(agent)
+                        && agent.getNodeProperties().get(MsvcNodeProperty.class).getEnvironment(null) != null) {
+                    connectMillis[i] = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    ready++;
+                }
+            }
+            Thread.sleep(10);
+        }
+        assertEquals("agents ready", agents.size(), ready);
+
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+        Arrays.sort(connectMillis);
+        System.out.printf("%d agents (stand-in takes %d ms): connected in p50 %d ms, p90 %d ms, p99 %d ms, "
+                        + "max %d ms; threads %d, peak %d (%d capturing); heap grew by %d KB%n",
+                agents.size(), LATENCY, percentile(connectMillis, 50), percentile(connectMillis, 90),
+                percentile(connectMillis, 99), connectMillis[agents.size() - 1], threadsBefore,
+                threads.getPeakThreadCount(), captureThreads, (heapAfter - heapBefore) / 1024);
+
+        // Captures wait for a thread from the pool instead of taking one each
+        assertTrue(captureThreads <= ComputerListenerImpl.CAPTURE_THREADS);
+
+        Set<String> fingerprints = new HashSet<>();
+        for (DumbSlave agent : agents) {
+            fingerprints.addAll(agent.getNodeProperties().get(MsvcNodeProperty.class).getFingerprintIds());
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Every agent runs its own copy of the stand-in, as agents do when
+     * connecting for the first time
+     */
+    @Test
+    public void capturesEveryAgent() throws Exception {
+        ComputerListenerImpl.sCaptureScript = SCRIPT;
+        List<DumbSlave> agents = createAgents(true);
+        assertEquals(AGENTS, connect(agents).size());
+    }
+
+    /**
+     * Agents with an identical toolchain end up sharing one environment
+     */
+    @Test
+    public void sharesIdenticalToolchains() throws Exception {
+        File script = tmp.newFile(SCRIPT);
+        writeScript(script);
+        ComputerListenerImpl.sCaptureScript = script.getPath();
+        List<DumbSlave> agents = createAgents(false);
+        assertEquals(1, connect(agents).size());
+    }
+}
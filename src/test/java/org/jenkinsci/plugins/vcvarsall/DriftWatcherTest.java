@@ -0,0 +1,121 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.Functions;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import hudson.util.StreamTaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Checks in-JVM agents for changed toolchains, each agent with its own
+ * stand-in for vcvarsall
+ */
+public class DriftWatcherTest {
+
+    private static final String SCRIPT = "vcvarsall.sh";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        assumeFalse(Functions.isWindows());
+        ComputerListenerImpl.sCaptureScript = SCRIPT;
+    }
+
+    @After
+    public void tearDown() {
+        ComputerListenerImpl.sCaptureScript = null;
+    }
+
+    /**
+     * Write the stand-in, which also counts how often it runs
+     */
+    private static void writeScript(File root, String installDir) throws IOException {
+        Files.write(new File(root, SCRIPT).toPath(), ("echo run >> \"$(dirname \"$0\")/runs\"\n"
+                + "echo VCINSTALLDIR=" + installDir + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int countRuns(File root) throws IOException {
+        File runs = new File(root, "runs");
+        return runs.exists() ? Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size() : 0;
+    }
+
+    /**
+     * Connect an agent and wait for its first capture to finish
+     */
+    private DumbSlave connect(File root) throws Exception {
+        DumbSlave agent = new DumbSlave(root.getName(), root.getPath(), new InJvmAgentLauncher());
+        agent.getNodeProperties().add(new MsvcNodeProperty(
+                Collections.singletonList(new Toolchain("16.0", "x86_64"))));
+        j.jenkins.addNode(agent);
+        agent.toComputer().connect(false).get();
+        while (ComputerListenerImpl.isCapturePending(agent)) {
+            Thread.sleep(10);
+        }
+        return agent;
+    }
+
+    private static List<String> fingerprints(Node node) {
+        return new ArrayList<>(node.getNodeProperties().get(MsvcNodeProperty.class).getFingerprintIds());
+    }
+
+    private static String installDir(Node node) {
+        EnvVars env = new EnvVars();
+        node.getNodeProperties().get(MsvcNodeProperty.class).getEnvironment(null).apply(env);
+        return env.get("VCINSTALLDIR");
+    }
+
+    @Test
+    public void recapturesOnlyChangedToolchains() throws Exception {
+        File changedRoot = tmp.newFolder("changed");
+        writeScript(changedRoot, "/opt/vc");
+        File unchangedRoot = tmp.newFolder("unchanged");
+        writeScript(unchangedRoot, "/opt/vc");
+        DumbSlave changed = connect(changedRoot);
+        DumbSlave unchanged = connect(unchangedRoot);
+        List<String> before = fingerprints(unchanged);
+        String changedBefore = fingerprints(changed).get(0);
+        assertEquals(1, countRuns(changedRoot));
+        assertEquals(1, countRuns(unchangedRoot));
+
+        // An update on one agent
+        writeScript(changedRoot, "/opt/vc2");
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        DriftWatcher.refresh(new StreamTaskListener(log));
+
+        String output = new String(log.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(output, output.contains("Refreshed 1 toolchain(s) on changed\n"));
+        assertNotEquals(changedBefore, fingerprints(changed).get(0));
+        assertEquals("/opt/vc2", installDir(changed));
+        assertEquals(2, countRuns(changedRoot));
+
+        // The other agent was only fingerprinted
+        assertEquals(before, fingerprints(unchanged));
+        assertEquals("/opt/vc", installDir(unchanged));
+        assertEquals(1, countRuns(unchangedRoot));
+    }
+}
@@ -0,0 +1,233 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvironmentCodecTest {
+
+    private static final String VS = "C:\\Program Files (x86)\\Microsoft Visual Studio\\2019\\BuildTools\\";
+    private static final String TOOLS = VS + "VC\\Tools\\MSVC\\14.29.30133\\";
+    private static final String KITS = "C:\\Program Files (x86)\\Windows Kits\\10\\";
+
+    private Map<String, String> mVariables;
+    private Map<String, List<String>> mPathValues;
+    private Map<String, List<String>> mPathPrepends;
+    private Map<String, List<String>> mPathAppends;
+
+    @Before
+    public void setUp() {
+        mVariables = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mVariables.put("VSINSTALLDIR", VS);
+        mVariables.put("VCINSTALLDIR", VS + "VC\\");
+        mVariables.put("VCToolsInstallDir", TOOLS);
+        mVariables.put("VCToolsVersion", "14.29.30133");
+        mVariables.put("VisualStudioVersion", "16.0");
+        mVariables.put("Platform", "x64");
+        mVariables.put("VSCMD_ARG_HOST_ARCH", "x64");
+        mVariables.put("VSCMD_ARG_TGT_ARCH", "x64");
+        mVariables.put("WindowsSdkDir", KITS);
+        mVariables.put("WindowsSDKVersion", "10.0.19041.0\\");
+        mVariables.put("UCRTVersion", "10.0.19041.0");
+        // A name the dictionary does not know, with a non-ASCII value
+        mVariables.put("VCVARSALL_TEST", "caf\u00e9 \u4e2d\u6587");
+
+        mPathValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathValues.put("INCLUDE", Arrays.asList(
+                TOOLS + "ATLMFC\\include", TOOLS + "include",
+                KITS + "include\\10.0.19041.0\\ucrt", KITS + "include\\10.0.19041.0\\shared",
+                KITS + "include\\10.0.19041.0\\um", KITS + "include\\10.0.19041.0\\winrt",
+                KITS + "include\\10.0.19041.0\\cppwinrt"));
+        mPathValues.put("LIB", Arrays.asList(
+                TOOLS + "ATLMFC\\lib\\x64", TOOLS + "lib\\x64",
+                KITS + "lib\\10.0.19041.0\\ucrt\\x64", KITS + "lib\\10.0.19041.0\\um\\x64"));
+
+        mPathPrepends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathPrepends.put("PATH", Arrays.asList(
+                TOOLS + "bin\\HostX64\\x64", VS + "Common7\\IDE\\VC\\VCPackages",
+                VS + "MSBuild\\Current\\bin\\Roslyn", KITS + "bin\\10.0.19041.0\\x64", KITS + "bin\\x64",
+                VS + "MSBuild\\Current\\Bin", "C:\\Windows\\Microsoft.NET\\Framework64\\v4.0.30319",
+                VS + "Common7\\IDE\\", VS + "Common7\\Tools\\"));
+
+        mPathAppends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        mPathAppends.put("PATH", Arrays.asList(
+                VS + "Common7\\IDE\\CommonExtensions\\Microsoft\\CMake\\CMake\\bin",
+                VS + "Common7\\IDE\\CommonExtensions\\Microsoft\\CMake\\Ninja"));
+    }
+
+    private byte[] encode(boolean deflate) throws IOException {
+        return EnvironmentCodec.encode(mVariables, mPathValues, mPathPrepends, mPathAppends, deflate);
+    }
+
+    private void assertRoundTrip(byte[] data) throws IOException {
+        Map<String, String> variables = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, List<String>> pathValues = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, List<String>> pathPrepends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        Map<String, List<String>> pathAppends = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        EnvironmentCodec.decode(data, variables, pathValues, pathPrepends, pathAppends);
+        assertEquals(mVariables, variables);
+        assertEquals(mPathValues, pathValues);
+        assertEquals(mPathPrepends, pathPrepends);
+        assertEquals(mPathAppends, pathAppends);
+    }
+
+    private static void decode(byte[] data) throws IOException {
+        EnvironmentCodec.decode(data, new TreeMap<String, String>(), new TreeMap<String, List<String>>(),
+                new TreeMap<String, List<String>>(), new TreeMap<String, List<String>>());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        byte[] plain = encode(false);
+        assertEquals(0, plain[1]);
+        assertRoundTrip(plain);
+
+        byte[] deflated = encode(true);
+        assertEquals(1, deflated[1]);
+        assertRoundTrip(deflated);
+        assertArrayEquals(deflated, encode(true));
+    }
+
+    @Test
+    public void roundTripEmpty() throws IOException {
+        mVariables.clear();
+        mPathValues.clear();
+        mPathPrepends.clear();
+        mPathAppends.clear();
+        byte[] data = encode(true);
+        assertEquals(0, data[1]);
+        assertRoundTrip(data);
+    }
+
+    @Test
+    public void smallerThanSerializedMaps() throws IOException {
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(serialized)) {
+            out.writeObject(mVariables);
+            out.writeObject(mPathValues);
+            out.writeObject(mPathPrepends);
+            out.writeObject(mPathAppends);
+        }
+        assertTrue(encode(false).length < serialized.size() / 2);
+        assertTrue(encode(true).length < encode(false).length);
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] data = encode(deflate);
+            for (int length = 0; length < data.length; length++) {
+                try {
+                    decode(Arrays.copyOf(data, length));
+                    fail("decoded " + length + " of " + data.length + " bytes");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsTrailingData() throws IOException {
+        byte[] data = encode(false);
+        try {
+            decode(Arrays.copyOf(data, data.length + 1));
+            fail();
+        } catch (IOException e) {
+            assertEquals("unexpected data after environment", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsOtherVersions() {
+        try {
+            decode(new byte[]{3, 0, 0, 0, 0, 0, 0});
+            fail();
+        } catch (IOException e) {
+            assertEquals("unsupported environment encoding", e.getMessage());
+        }
+    }
+
+    @Test
+    public void decodesWithoutAppends() throws IOException {
+        // Version 1 ends after the prepended path variables
+        byte[] data = {1, 0, 0, 1, 45, 46, 0, 1, 0, 1, 44};
+        Map<String, String> variables = new TreeMap<>();
+        Map<String, List<String>> pathPrepends = new TreeMap<>();
+        Map<String, List<String>> pathAppends = new TreeMap<>();
+        EnvironmentCodec.decode(data, variables, new TreeMap<String, List<String>>(), pathPrepends, pathAppends);
+        assertEquals("arm", variables.get("x64"));
+        assertEquals(Arrays.asList("x86"), pathPrepends.get("PATH"));
+        assertTrue(pathAppends.isEmpty());
+    }
+
+    @Test
+    public void rejectsNegativeIntegers() {
+        // No strings, then a variable count of -1 (five bytes, top bit set)
+        byte[] data = {1, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f};
+        try {
+            decode(data);
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid integer", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidReferences() {
+        // No strings, one variable referring to a string past the dictionary
+        byte[] data = {1, 0, 0, 1, 0, 0x7f, 0, 0};
+        try {
+            decode(data);
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid string reference", e.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidPrefix() {
+        // The first string cannot share a prefix with the empty string
+        byte[] data = {1, 0, 1, 3, 0, 1, 'A', 0, 0, 0};
+        try {
+            decode(data);
+            fail();
+        } catch (IOException e) {
+            assertEquals("invalid string table", e.getMessage());
+        }
+    }
+
+    /**
+     * Every single corrupt byte either decodes to something or is reported
+     * as invalid data, but never fails any other way
+     */
+    @Test
+    public void corruptDataFailsCleanly() throws IOException {
+        for (boolean deflate : new boolean[]{false, true}) {
+            byte[] data = encode(deflate);
+            for (int i = 2; i < data.length; i++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    byte[] corrupt = data.clone();
+                    corrupt[i] ^= 1 << bit;
+                    try {
+                        decode(corrupt);
+                    } catch (IOException e) {
+                        // expected
+                    }
+                }
+            }
+        }
+    }
+}
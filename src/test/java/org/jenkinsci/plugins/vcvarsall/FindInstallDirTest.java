@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests {@link RunVcvarsallCallable#findInstallDir} against a registry held
+ * in memory
+ */
+public class FindInstallDirTest {
+
+    private static final String SXS_KEY = "SOFTWARE\\Microsoft\\VisualStudio\\SxS\\VS7";
+    private static final String SXS_KEY_64 = "SOFTWARE\\Wow6432Node\\Microsoft\\VisualStudio\\SxS\\VS7";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private VsInstanceStore mEmptyStore;
+
+    @Before
+    public void setUp() throws IOException {
+        mEmptyStore = VsInstanceStore.get(tmp.newFolder("empty"));
+    }
+
+    @Test
+    public void readsThe32BitViewOn64BitHosts() {
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY_64, "14.0", "C:\\VS14\\")
+                .put(SXS_KEY, "14.0", "C:\\Wrong\\");
+        assertEquals("C:\\VS14\\", RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.X64, "14.0"));
+        assertEquals("C:\\VS14\\", RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.ARM64, "14.0"));
+    }
+
+    @Test
+    public void readsTheNativeViewOn32BitHosts() {
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY, "12.0", "C:\\VS12\\");
+        assertEquals("C:\\VS12\\", RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.X86, "12.0"));
+        assertNull(RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.X64, "12.0"));
+    }
+
+    @Test
+    public void lookupIsCaseInsensitive() {
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY_64.toUpperCase(), "14.0", "C:\\VS14\\");
+        assertEquals("C:\\VS14\\", RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.X64, "14.0"));
+    }
+
+    @Test
+    public void missingVersion() {
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY_64, "14.0", "C:\\VS14\\");
+        assertNull(RunVcvarsallCallable.findInstallDir(registry, mEmptyStore, HostArch.X64, "12.0"));
+        assertNull(RunVcvarsallCallable.findInstallDir(new MemoryRegistryReader(), mEmptyStore, HostArch.X64, "14.0"));
+    }
+
+    @Test
+    public void prefersTheInstanceStore() throws IOException {
+        File instance = tmp.newFolder("store", "a1b2c3d4");
+        Files.write(new File(instance, "state.json").toPath(), ("{\"installationPath\": "
+                + "\"C:\\\\Program Files (x86)\\\\Microsoft Visual Studio\\\\2017\\\\BuildTools\", "
+                + "\"installationVersion\": \"15.9.28307.1321\"}").getBytes(StandardCharsets.UTF_8));
+        VsInstanceStore store = VsInstanceStore.get(instance.getParentFile());
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY_64, "15.0", "C:\\Stale\\");
+        assertEquals("C:\\Program Files (x86)\\Microsoft Visual Studio\\2017\\BuildTools\\",
+                RunVcvarsallCallable.findInstallDir(registry, store, HostArch.X64, "15.0"));
+        assertEquals(0, registry.getReads());
+    }
+
+    @Test
+    public void listsSubKeys() {
+        MemoryRegistryReader registry = new MemoryRegistryReader()
+                .put(SXS_KEY_64, "14.0", "C:\\VS14\\")
+                .put("SOFTWARE\\Wow6432Node\\Microsoft\\VisualStudio\\14.0\\Setup", "Dir", "C:\\VS14\\");
+        assertEquals(Arrays.asList("14.0", "SxS"),
+                registry.readSubKeys("SOFTWARE\\Wow6432Node\\Microsoft\\VisualStudio"));
+        assertNull(registry.readSubKeys("SOFTWARE\\Missing"));
+    }
+}
@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.CLICommandInvoker;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Refreshes in-JVM agents, each with its own stand-in for vcvarsall
+ */
+public class FleetCaptureTest {
+
+    private static final String SCRIPT = "vcvarsall.sh";
+
+    private static final String FAILURE = "16.0/x86_64: vcvarsall broke (NONZERO_EXIT)";
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        assumeFalse(Functions.isWindows());
+        ComputerListenerImpl.sCaptureScript = SCRIPT;
+    }
+
+    @After
+    public void tearDown() {
+        ComputerListenerImpl.sCaptureScript = null;
+    }
+
+    /**
+     * Connect an agent and wait for its first capture to finish
+     * @param script stand-in for vcvarsall on the agent
+     */
+    private DumbSlave connect(String name, String script) throws Exception {
+        File root = tmp.newFolder(name);
+        Files.write(new File(root, SCRIPT).toPath(), script.getBytes(StandardCharsets.UTF_8));
+        DumbSlave agent = new DumbSlave(name, root.getPath(), new InJvmAgentLauncher());
+        agent.getNodeProperties().add(new MsvcNodeProperty(
+                Collections.singletonList(new Toolchain("16.0", "x86_64"))));
+        j.jenkins.addNode(agent);
+        agent.toComputer().connect(false).get();
+        awaitCapture(agent);
+        return agent;
+    }
+
+    private static void awaitCapture(Node node) throws InterruptedException {
+        while (ComputerListenerImpl.isCapturePending(node)) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void connectFleet() throws Exception {
+        connect("good", "echo VCINSTALLDIR=/opt/vc\n");
+        connect("bad", "echo 'vcvarsall broke' >&2; exit 1\n");
+    }
+
+    @Test
+    public void reportsFailedToolchains() throws Exception {
+        connectFleet();
+        FleetCapture fleetCapture = FleetCapture.run(2, 60);
+        fleetCapture.await();
+
+        Map<String, FleetCapture.NodeResult> results = new HashMap<>();
+        for (FleetCapture.NodeResult result : fleetCapture.getResults()) {
+            results.put(result.getNodeName(), result);
+        }
+        assertEquals(2, results.size());
+        assertEquals(FleetCapture.State.SUCCEEDED, results.get("good").getState());
+        assertEquals(Collections.<String>emptyList(), results.get("good").getFailures());
+        assertEquals(FleetCapture.State.FAILED, results.get("bad").getState());
+        assertEquals(Collections.singletonList(FAILURE), results.get("bad").getFailures());
+        assertEquals(1, fleetCapture.countFailures());
+    }
+
+    @Test
+    public void commandFailsWithFailedToolchains() throws Exception {
+        connectFleet();
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, "vcvarsall-fleet-capture")
+                .invokeWithArgs("-timeout", "60");
+        assertEquals(1, result.returnCode());
+        assertTrue(result.stdout(), result.stdout().contains("  failed " + FAILURE + "\n"));
+        assertTrue(result.stdout(), result.stdout().contains(
+                "0 toolchain(s) refreshed, 1 toolchain(s) failed, 1 node(s) failed\n"));
+    }
+
+    @Test
+    public void commandSucceedsWhenEveryToolchainIsCaptured() throws Exception {
+        connect("good", "echo VCINSTALLDIR=/opt/vc\n");
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, "vcvarsall-fleet-capture")
+                .invokeWithArgs("-timeout", "60");
+        assertEquals(result.stdout(), 0, result.returnCode());
+    }
+}
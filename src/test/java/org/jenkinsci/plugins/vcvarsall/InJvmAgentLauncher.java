@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.remoting.ChannelBuilder;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.jenkinsci.remoting.Role;
+import org.jenkinsci.remoting.RoleChecker;
+import org.jenkinsci.remoting.RoleSensitive;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Launch agents as remoting channels inside the test JVM
+ *
+ * The two ends of each connection are joined by pipes, so an agent costs a
+ * few threads rather than a process and hundreds of them can be connected
+ * at once. Agents share the file system, environment and static state of
+ * the controller, which makes them suitable for exercising the controller
+ * side only - agent-side caches such as {@link CaptureMemo} are shared by
+ * all of them.
+ */
+public class InJvmAgentLauncher extends ComputerLauncher {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "in-JVM agent")
+    );
+
+    /**
+     * The agent end accepts callables from the controller, which is all a
+     * real agent needs to check
+     */
+    private static class AgentRoleChecker extends RoleChecker {
+
+        @Override
+        public void check(RoleSensitive subject, Collection<Role> expected) {
+        }
+    }
+
+    @Override
+    public boolean isLaunchSupported() {
+        return true;
+    }
+
+    @Override
+    public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final FastPipedInputStream controllerIn = new FastPipedInputStream();
+        final FastPipedInputStream agentIn = new FastPipedInputStream();
+        final FastPipedOutputStream controllerOut = new FastPipedOutputStream(agentIn);
+        final FastPipedOutputStream agentOut = new FastPipedOutputStream(controllerIn);
+        final String name = computer.getName();
+
+        // Each end waits for the other during the handshake
+        EXECUTOR.submit(new Callable<Channel>() {
+            @Override
+            public Channel call() throws IOException {
+                return new ChannelBuilder(name, EXECUTOR)
+                        .withMode(Channel.Mode.BINARY)
+                        .withRoleChecker(new AgentRoleChecker())
+                        .build(agentIn, agentOut);
+            }
+        });
+        computer.setChannel(controllerIn, controllerOut, listener, null);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
+
+        @Override
+        public String getDisplayName() {
+            return "In-JVM agent";
+        }
+    }
+}
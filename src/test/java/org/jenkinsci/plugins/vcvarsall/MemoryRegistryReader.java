@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Registry held in memory, so that registry lookups can be tested on any host
+ *
+ * Like the real registry, key paths and value names are case-insensitive.
+ */
+class MemoryRegistryReader implements RegistryReader {
+
+    private final Map<String, Map<String, String>> mKeys = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private int mReads;
+    private boolean mClosed;
+
+    /**
+     * Add a string value, creating the key (and its parents) as needed
+     * @param key path of the key
+     * @param valueName name of the value
+     * @param value value
+     * @return this reader
+     */
+    MemoryRegistryReader put(String key, String valueName, String value) {
+        for (int index = key.indexOf('\\'); index != -1; index = key.indexOf('\\', index + 1)) {
+            createKey(key.substring(0, index));
+        }
+        createKey(key).put(valueName, value);
+        return this;
+    }
+
+    private Map<String, String> createKey(String key) {
+        Map<String, String> values = mKeys.get(key);
+        if (values == null) {
+            values = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            mKeys.put(key, values);
+        }
+        return values;
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("reader is closed");
+        }
+        mReads++;
+    }
+
+    @Override
+    public String readString(String key, String valueName) {
+        checkOpen();
+        Map<String, String> values = mKeys.get(key);
+        return values == null ? null : values.get(valueName);
+    }
+
+    @Override
+    public List<String> readSubKeys(String key) {
+        checkOpen();
+        if (!mKeys.containsKey(key)) {
+            return null;
+        }
+        String prefix = key + "\\";
+        Set<String> subKeys = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        for (String path : mKeys.keySet()) {
+            if (path.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                String rest = path.substring(prefix.length());
+                int index = rest.indexOf('\\');
+                subKeys.add(index == -1 ? rest : rest.substring(0, index));
+            }
+        }
+        return new ArrayList<>(subKeys);
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    int getReads() {
+        return mReads;
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+}
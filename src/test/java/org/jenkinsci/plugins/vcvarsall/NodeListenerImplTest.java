@@ -0,0 +1,29 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.slaves.DumbSlave;
+import jenkins.metrics.api.Metrics;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NodeListenerImplTest {
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Test
+    public void deletingNodeForgetsTimings() throws Exception {
+        DumbSlave deleted = j.createSlave();
+        DumbSlave kept = j.createSlave();
+        CaptureMetrics.record(deleted.getNodeName(), "15.0", "x64", new CaptureTimings(), 5);
+        CaptureMetrics.record(kept.getNodeName(), "15.0", "x64", new CaptureTimings(), 5);
+        assertTrue(Metrics.metricRegistry().getNames().contains("vcvarsall.15_0.x64.total"));
+
+        j.jenkins.removeNode(deleted);
+        assertEquals(0, CaptureMetrics.getLatest(deleted.getNodeName()).size());
+        assertEquals(1, CaptureMetrics.getLatest(kept.getNodeName()).size());
+    }
+}
@@ -0,0 +1,61 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the output of <code>set</code> and reducing it to what vcvarsall
+ * changed
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParseBenchmark {
+
+    @Param({"0", "200"})
+    public int padding;
+
+    private List<String> mLines;
+    private VariableFilter mFilter;
+    private EnvVars mBefore;
+    private EnvVars mAfter;
+
+    @Setup
+    public void setUp() throws IOException {
+        mLines = BenchmarkFixture.lines("vs2019-buildtools-x64.txt", padding);
+        mFilter = new VariableFilter(null, VariableFilter.DEFAULT_DENY);
+        mBefore = BenchmarkFixture.environment("base.txt", padding);
+        mAfter = BenchmarkFixture.environment("vs2019-buildtools-x64.txt", padding);
+    }
+
+    @Benchmark
+    public EnvVars parse() {
+        EnvVars envVars = new EnvVars();
+        for (String line : mLines) {
+            RunVcvarsallCallable.parseLine(envVars, mFilter, line);
+        }
+        return envVars;
+    }
+
+    @Benchmark
+    public CapturedEnvironment diff() {
+        return CapturedEnvironment.diff(mBefore, mAfter);
+    }
+}
@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.Functions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs {@link RunVcvarsallCallable#runCapture} against shell scripts standing
+ * in for vcvarsall
+ */
+public class RunVcvarsallCallableTest {
+
+    /**
+     * Number of lines written to each stream, enough to fill a pipe many
+     * times over
+     */
+    private static final int LINES = 20000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void unixOnly() {
+        assumeFalse(Functions.isWindows());
+    }
+
+    private static ProcessBuilder sh(String script) {
+        return new ProcessBuilder("/bin/sh", "-c", script);
+    }
+
+    private static EnvVars capture(ProcessBuilder builder, long timeoutSeconds) {
+        return RunVcvarsallCallable.runCapture(builder, timeoutSeconds, new CaptureTimings(),
+                new VariableFilter(null, null));
+    }
+
+    @Test
+    public void drainsBothStreams() {
+        EnvVars envVars = capture(sh("i=0; while [ $i -lt " + LINES + " ]; do "
+                + "echo \"VAR$i=value $i\"; echo \"progress $i\" >&2; i=$((i+1)); done"), 60);
+        assertEquals(LINES, envVars.size());
+        assertEquals("value 0", envVars.get("VAR0"));
+        assertEquals("value " + (LINES - 1), envVars.get("VAR" + (LINES - 1)));
+    }
+
+    @Test
+    public void reportsErrorOutput() {
+        try {
+            capture(sh("i=0; while [ $i -lt " + LINES + " ]; do "
+                    + "echo \"error $i\" >&2; i=$((i+1)); done; exit 3"), 60);
+            fail();
+        } catch (CaptureException e) {
+            assertEquals(CaptureException.Kind.NONZERO_EXIT, e.getKind());
+            assertTrue(e.getMessage().startsWith("error 0\n"));
+            assertTrue(e.getMessage().length() < 2 * 8192);
+        }
+    }
+
+    @Test
+    public void reportsExitCode() {
+        try {
+            capture(sh("echo A=B; exit 2"), 60);
+            fail();
+        } catch (CaptureException e) {
+            assertEquals(CaptureException.Kind.NONZERO_EXIT, e.getKind());
+            assertEquals("vcvarsall exited with code 2", e.getMessage());
+            // vcvarsall reports the same error when it runs again, so it is not retried
+            assertFalse(e.getKind().isTransient());
+        }
+    }
+
+    @Test
+    public void killsHungProcess() {
+        long start = System.nanoTime();
+        try {
+            capture(sh("echo A=B; sleep 60; echo C=D"), 1);
+            fail();
+        } catch (CaptureException e) {
+            assertEquals(CaptureException.Kind.TIMEOUT, e.getKind());
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+    }
+
+    @Test
+    public void killsProcessWhenInterrupted() throws Exception {
+        final File pidFile = new File(tmp.getRoot(), "pid");
+        final CaptureException[] failure = new CaptureException[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    capture(sh("echo $$ > '" + pidFile + "'; exec sleep 60"), 60);
+                } catch (CaptureException e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (pidFile.length() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        File proc = new File("/proc", new String(Files.readAllBytes(pidFile.toPath()), StandardCharsets.UTF_8).trim());
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(30));
+        assertFalse(thread.isAlive());
+        assertEquals("interrupted", failure[0].getMessage());
+
+        // The process is gone rather than left running after the capture
+        // gave up on it
+        while (proc.exists() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(proc.exists());
+    }
+
+    @Test
+    public void filtersVariables() {
+        EnvVars envVars = RunVcvarsallCallable.runCapture(sh("echo KEEP=1; echo DROP=2; echo; echo '  '"), 60,
+                new CaptureTimings(), new VariableFilter(null, "DROP"));
+        assertEquals(1, envVars.size());
+        assertEquals("1", envVars.get("KEEP"));
+    }
+
+    private RunVcvarsallCallable scriptCallable(String arch, String script) throws IOException {
+        File file = tmp.newFile("vcvarsall.sh");
+        Files.write(file.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        RunVcvarsallCallable callable = new RunVcvarsallCallable("16.0", arch, tmp.newFolder("cache").getPath(),
+                60, false, false, true, new VariableFilter(null, null), false, false,
+                Collections.<String>emptySet());
+        callable.setScript(file.getPath());
+        return callable;
+    }
+
+    @Test
+    public void capturesWithScript() throws IOException {
+        RunVcvarsallCallable callable = scriptCallable("x86", "echo \"VCVARSALL_PARAM=$1\"\n"
+                + "echo \"VCINSTALLDIR=/opt/vc\"\n"
+                + "echo \"PATH=/opt/vc/bin;$PATH\"\n");
+        VcvarsallResult result = callable.call();
+        assertNotNull(result.getFingerprint());
+        assertFalse(result.isCacheHit());
+
+        EnvVars env = new EnvVars("PATH", System.getenv("PATH"));
+        result.getEnvironment().apply(env);
+        assertEquals("/opt/vc", env.get("VCINSTALLDIR"));
+        assertEquals("/opt/vc/bin;" + System.getenv("PATH"), env.get("PATH"));
+        assertTrue(env.get("VCVARSALL_PARAM").endsWith("x86"));
+
+        // The capture is served from the cache on the agent
+        VcvarsallResult again = callable.call();
+        assertTrue(again.isCacheHit());
+        assertEquals(result.getFingerprint().getId(), again.getFingerprint().getId());
+    }
+
+    @Test
+    public void reportsScriptFailure() throws IOException {
+        try {
+            scriptCallable("x86_64", "echo 'not installed' >&2; exit 1\n").call();
+            fail();
+        } catch (CaptureException e) {
+            assertEquals(CaptureException.Kind.NONZERO_EXIT, e.getKind());
+            assertEquals("not installed", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import hudson.slaves.DumbSlave;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs captures in warm sessions on an in-JVM agent, with
+ * <code>/bin/sh</code> standing in for cmd and a shell script for vcvarsall
+ */
+public class ShellSessionPoolTest {
+
+    private static final long DEADLINE_SECONDS = 30;
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void unixOnly() {
+        assumeFalse(Functions.isWindows());
+    }
+
+    @After
+    public void tearDown() {
+        ShellSessionPool.closeAll();
+    }
+
+    private CaptureToolchainsCallable sessionCallable(String... archs) throws Exception {
+        File script = tmp.newFile("vcvarsall.sh");
+        Files.write(script.toPath(), ("echo \"VCVARSALL_PARAM=$1\"\n"
+                + "echo \"VCINSTALLDIR=/opt/vc\"\n").getBytes(StandardCharsets.UTF_8));
+        String cacheDir = tmp.newFolder("cache").getPath();
+        Map<String, RunVcvarsallCallable> callables = new LinkedHashMap<>();
+        for (String arch : archs) {
+            RunVcvarsallCallable callable = new RunVcvarsallCallable("16.0", arch, cacheDir, 60,
+                    false, false, true, new VariableFilter(null, null), false, true,
+                    Collections.<String>emptySet());
+            callable.setScript(script.getPath());
+            callables.put(arch, callable);
+        }
+        return new CaptureToolchainsCallable(callables);
+    }
+
+    /**
+     * The captures run on threads of their own, yet the sessions they leave
+     * behind are still closed along with the connection
+     */
+    @Test
+    public void closesIdleSessionsWithConnection() throws Exception {
+        DumbSlave agent = new DumbSlave("agent", tmp.newFolder().getPath(), new InJvmAgentLauncher());
+        j.jenkins.addNode(agent);
+        agent.toComputer().connect(false).get(DEADLINE_SECONDS, TimeUnit.SECONDS);
+
+        CaptureToolchainsCallable.Results results =
+                agent.toComputer().getChannel().call(sessionCallable("x86", "x86_64"));
+        for (VcvarsallResult result : results.getResults().values()) {
+            assertNotNull(result.getEnvironment());
+        }
+        assertTrue(ShellSessionPool.getIdleCount() > 0);
+
+        agent.toComputer().disconnect(null).get(DEADLINE_SECONDS, TimeUnit.SECONDS);
+        assertNull(agent.toComputer().getChannel());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DEADLINE_SECONDS);
+        while (ShellSessionPool.getIdleCount() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, ShellSessionPool.getIdleCount());
+    }
+}
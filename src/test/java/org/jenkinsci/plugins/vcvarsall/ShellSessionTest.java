@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.Functions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Runs a session on /bin/sh, which reads commands from stdin the same way
+ * cmd /q /k does
+ */
+public class ShellSessionTest {
+
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    private ShellSession mSession;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeFalse(Functions.isWindows());
+        mSession = new ShellSession(Arrays.asList("/bin/sh"), "\n", "$?");
+    }
+
+    @After
+    public void tearDown() {
+        if (mSession != null) {
+            mSession.close();
+        }
+    }
+
+    private static class Lines implements ShellSession.Output {
+
+        final List<String> mLines = new ArrayList<>();
+
+        @Override
+        public void onLine(String line) {
+            mLines.add(line);
+        }
+    }
+
+    @Test
+    public void runsCommands() throws Exception {
+        Lines lines = new Lines();
+        assertEquals(0, mSession.run("echo A=B; echo C=D", TIMEOUT_MILLIS, lines));
+        assertEquals(Arrays.asList("A=B", "C=D"), lines.mLines);
+
+        lines = new Lines();
+        assertEquals(0, mSession.run("echo E=F", TIMEOUT_MILLIS, lines));
+        assertEquals(Arrays.asList("E=F"), lines.mLines);
+        assertEquals(2, mSession.getQueries());
+        assertFalse(mSession.isBroken());
+    }
+
+    @Test
+    public void reportsExitCodeAndErrors() throws Exception {
+        Lines lines = new Lines();
+        assertEquals(3, mSession.run("echo failed >&2; (exit 3)", TIMEOUT_MILLIS, lines));
+        assertTrue(lines.mLines.isEmpty());
+        // stderr is read on its own thread and may lag behind stdout
+        for (int i = 0; i < 50 && mSession.getErrOutput().isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("failed", mSession.getErrOutput());
+
+        // The session is still usable and the error output is reset
+        assertEquals(0, mSession.run("true", TIMEOUT_MILLIS, lines));
+        assertEquals("", mSession.getErrOutput());
+    }
+
+    @Test
+    public void keepsStateBetweenCommands() throws Exception {
+        Lines lines = new Lines();
+        mSession.run("X=1", TIMEOUT_MILLIS, lines);
+        mSession.run("echo X=$X", TIMEOUT_MILLIS, lines);
+        assertEquals(Arrays.asList("X=1"), lines.mLines);
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        long start = System.nanoTime();
+        try {
+            mSession.run("sleep 60", 500, new Lines());
+            fail();
+        } catch (TimeoutException e) {
+            assertTrue(mSession.isBroken());
+            assertTrue(System.nanoTime() - start < 30000000000L);
+        }
+        try {
+            mSession.run("true", TIMEOUT_MILLIS, new Lines());
+            fail();
+        } catch (IOException e) {
+            assertEquals("shell session is no longer usable", e.getMessage());
+        }
+    }
+
+    @Test
+    public void detectsExit() throws Exception {
+        try {
+            mSession.run("exit 3", TIMEOUT_MILLIS, new Lines());
+            fail();
+        } catch (IOException e) {
+            assertTrue(mSession.isBroken());
+        }
+        assertFalse(mSession.ping(1000));
+    }
+
+    @Test
+    public void ping() throws Exception {
+        assertTrue(mSession.ping(TIMEOUT_MILLIS));
+        mSession.close();
+        assertTrue(mSession.isBroken());
+        assertFalse(mSession.ping(1000));
+    }
+
+    @Test
+    public void poolClosesSessionsWithoutConnection() throws Exception {
+        // Nothing would close the session if it were kept
+        ShellSessionPool.release(ShellSessionPool.Shell.SH, mSession, null);
+        assertTrue(mSession.isBroken());
+        assertEquals(0, ShellSessionPool.getIdleCount());
+        assertFalse(mSession.ping(1000));
+    }
+}
@@ -0,0 +1,119 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ToolchainFingerprintTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mInstallDir;
+    private File mKitsRoot;
+    private File mVcvarsall;
+
+    @Before
+    public void setUp() throws IOException {
+        mInstallDir = tmp.newFolder("BuildTools");
+        mKitsRoot = tmp.newFolder("10");
+        mVcvarsall = write(VcvarsallEmulator.file(mInstallDir, "VC", "Auxiliary", "Build", "vcvarsall.bat"),
+                "@echo off\r\n");
+        write(VcvarsallEmulator.file(mInstallDir, "VC", "Auxiliary", "Build",
+                "Microsoft.VCToolsVersion.default.txt"), "14.29.30133\r\n");
+        write(VcvarsallEmulator.file(mKitsRoot, "Include", "10.0.19041.0", "um", "Windows.h"), "");
+    }
+
+    private static File write(File file, String content) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("unable to create " + dir);
+        }
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private String layout() {
+        return ToolchainFingerprint.describeLayout("16.11.31727.386", mInstallDir, mKitsRoot);
+    }
+
+    private ToolchainFingerprint compute(String layout) throws IOException {
+        return ToolchainFingerprint.compute("16.0", "x64", mInstallDir.getPath(), mVcvarsall, "x64",
+                layout, "10.0.19041", false, "");
+    }
+
+    private ToolchainFingerprint compute() throws IOException {
+        return compute(layout());
+    }
+
+    private static Map<String, String> env(String... pairs) {
+        Map<String, String> env = new TreeMap<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            env.put(pairs[i], pairs[i + 1]);
+        }
+        return env;
+    }
+
+    @Test
+    public void describesLayout() {
+        assertEquals("16.11.31727.386|14.29.30133|10.0.19041.0", layout());
+        assertEquals("||", ToolchainFingerprint.describeLayout(null, tmp.getRoot(), null));
+    }
+
+    @Test
+    public void sameInstallationSameId() throws IOException {
+        assertEquals(compute().getId(), compute().getId());
+    }
+
+    @Test
+    public void newInstanceVersionChangesId() throws IOException {
+        String id = compute().getId();
+        assertNotEquals(id, compute(ToolchainFingerprint.describeLayout("16.11.32106.194", mInstallDir,
+                mKitsRoot)).getId());
+    }
+
+    @Test
+    public void newDefaultToolsChangeId() throws IOException {
+        String id = compute().getId();
+        write(VcvarsallEmulator.file(mInstallDir, "VC", "Auxiliary", "Build",
+                "Microsoft.VCToolsVersion.default.txt"), "14.29.30145\r\n");
+        assertNotEquals(id, compute().getId());
+    }
+
+    @Test
+    public void newSdkChangesId() throws IOException {
+        String id = compute().getId();
+
+        // An SDK without headers is not selected by vcvarsall
+        assertTrue(VcvarsallEmulator.file(mKitsRoot, "Include", "10.0.22000.0").mkdirs());
+        assertEquals(id, compute().getId());
+
+        write(VcvarsallEmulator.file(mKitsRoot, "Include", "10.0.22000.0", "um", "Windows.h"), "");
+        assertNotEquals(id, compute().getId());
+    }
+
+    @Test
+    public void withBaseCoversPathVariables() throws IOException {
+        ToolchainFingerprint fingerprint = compute();
+        String id = fingerprint.withBase(env("Path", "C:\\Windows", "INCLUDE", "C:\\inc")).getId();
+        assertNotEquals(fingerprint.getId(), id);
+        assertEquals(id, compute().withBase(env("PATH", "C:\\Windows", "include", "C:\\inc", "TEMP", "C:\\t"))
+                .getId());
+        assertNotEquals(id, fingerprint.withBase(env("Path", "C:\\Windows;C:\\Git", "INCLUDE", "C:\\inc"))
+                .getId());
+        assertNotEquals(id, fingerprint.withBase(env("Path", "C:\\Windows", "LIB", "C:\\inc")).getId());
+        assertEquals(fingerprint.getInstallDir(), fingerprint.withBase(env()).getInstallDir());
+    }
+}
@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores environments and reads them back, including damaged ones
+ */
+public class ToolchainStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = tmp.newFolder("vcvarsall-store");
+    }
+
+    private static ToolchainFingerprint fingerprint(String id) {
+        return ToolchainFingerprint.restore("16.0", "x86_64", "C:\\BuildTools", "hash", "10.0.19041", id);
+    }
+
+    private static CapturedEnvironment environment(String installDir) {
+        return CapturedEnvironment.diff(Collections.<String, String>emptyMap(),
+                Collections.singletonMap("VCINSTALLDIR", installDir));
+    }
+
+    private static String installDir(ToolchainStore.Entry entry) {
+        Map<String, String> env = new HashMap<>();
+        entry.getEnvironment().apply(env);
+        return env.get("VCINSTALLDIR");
+    }
+
+    /**
+     * Store an entry
+     * @return file the entry was written to
+     */
+    private File write(String id) throws IOException {
+        ToolchainStore.write(mDir, new ToolchainStore.Entry(fingerprint(id), environment("C:\\BuildTools\\VC\\")));
+        return new File(mDir, id + ".env");
+    }
+
+    private static void overwriteInt(File file, long offset, int value) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(offset);
+            out.writeInt(value);
+        }
+    }
+
+    @Test
+    public void readsEntries() throws IOException {
+        write("toolchain-a");
+        write("toolchain-b");
+        Map<String, ToolchainStore.Entry> entries = ToolchainStore.readAll(mDir);
+        assertEquals(2, entries.size());
+        assertEquals("C:\\BuildTools\\VC\\", installDir(entries.get("toolchain-a")));
+    }
+
+    @Test
+    public void discardsTruncatedEntry() throws IOException {
+        write("good");
+        File file = write("truncated");
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length / 2));
+
+        assertEquals(Collections.singleton("good"), ToolchainStore.readAll(mDir).keySet());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void discardsEntryWithInvalidLengths() throws IOException {
+        write("good");
+        File negative = write("negative");
+        overwriteInt(negative, 8, -1);
+        File huge = write("huge");
+        overwriteInt(huge, 8, Integer.MAX_VALUE);
+        File empty = write("empty");
+        Files.write(empty.toPath(), new byte[0]);
+
+        assertEquals(Collections.singleton("good"), ToolchainStore.readAll(mDir).keySet());
+        assertFalse(negative.exists());
+        assertFalse(huge.exists());
+        assertFalse(empty.exists());
+        assertTrue(new File(mDir, "good.env").exists());
+    }
+
+    @Test
+    public void sharesMatchingEnvironments() {
+        ToolchainStore store = new ToolchainStore(mDir);
+        ToolchainStore.Entry first = store.put(fingerprint("toolchain"), environment("C:\\VC"), "agent-1");
+        ToolchainStore.Entry second = store.put(fingerprint("toolchain"), environment("C:\\VC"), "agent-2");
+        assertSame(first, second);
+        assertEquals(Collections.singleton("toolchain"), store.getSharedIds());
+        assertEquals(Collections.singleton("toolchain"), ToolchainStore.readAll(mDir).keySet());
+    }
+
+    /**
+     * An agent reporting the fingerprint of another toolchain neither
+     * replaces its environment nor gets it shared any further
+     */
+    @Test
+    public void scopesDifferingEnvironments() {
+        ToolchainStore store = new ToolchainStore(mDir);
+        store.put(fingerprint("toolchain"), environment("C:\\VC"), "agent-1");
+        ToolchainStore.Entry other = store.put(fingerprint("toolchain"), environment("C:\\Other"), "agent-2");
+        assertNotEquals("toolchain", other.getFingerprint().getId());
+        assertEquals("C:\\Other", installDir(store.get(other.getFingerprint().getId())));
+        assertEquals("C:\\VC", installDir(store.get("toolchain")));
+        assertEquals(2, store.getIds().size());
+        assertFalse(store.getSharedIds().contains("toolchain"));
+
+        // The node keeps using its own entry when it captures again
+        assertSame(other, store.put(fingerprint("toolchain"), environment("C:\\Other"), "agent-2"));
+        assertEquals(store.getIds(), ToolchainStore.readAll(mDir).keySet());
+    }
+}
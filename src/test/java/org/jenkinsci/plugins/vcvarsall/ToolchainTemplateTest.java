@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.Functions;
+import hudson.model.Node;
+import hudson.slaves.DumbSlave;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Provisions in-JVM agents from a fake cloud template sharing one stand-in
+ * for vcvarsall
+ */
+public class ToolchainTemplateTest {
+
+    private static final String KEY = "16.0/x86_64";
+
+    /**
+     * Template of the nodes named cloud-*, fresh for each test since the
+     * recorded templates outlive the Jenkins instance
+     */
+    private static volatile String sTemplate;
+
+    @TestExtension
+    public static class CloudTemplateResolver extends ToolchainTemplateResolver {
+
+        @Override
+        public String getTemplateId(Node node) {
+            return node.getNodeName().startsWith("cloud-") ? sTemplate : null;
+        }
+    }
+
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mScript;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeFalse(Functions.isWindows());
+        sTemplate = "image-" + UUID.randomUUID();
+        mScript = tmp.newFile("vcvarsall.sh");
+        writeScript("/opt/vc");
+        ComputerListenerImpl.sCaptureScript = mScript.getPath();
+    }
+
+    @After
+    public void tearDown() {
+        ComputerListenerImpl.sCaptureScript = null;
+    }
+
+    /**
+     * Write the stand-in, which also counts how often it runs
+     */
+    private void writeScript(String installDir) throws IOException {
+        Files.write(mScript.toPath(), ("echo run >> \"$(dirname \"$0\")/runs\"\n"
+                + "echo VCINSTALLDIR=" + installDir + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int countRuns() throws IOException {
+        File runs = new File(mScript.getParentFile(), "runs");
+        return runs.exists() ? Files.readAllLines(runs.toPath(), StandardCharsets.UTF_8).size() : 0;
+    }
+
+    /**
+     * Provision a node from the template and wait until it can take builds
+     */
+    private DumbSlave provision(String name) throws Exception {
+        DumbSlave agent = new DumbSlave(name, tmp.newFolder(name).getPath(), new InJvmAgentLauncher());
+        agent.getNodeProperties().add(new MsvcNodeProperty(
+                Collections.singletonList(new Toolchain("16.0", "x86_64"))));
+        j.jenkins.addNode(agent);
+        agent.toComputer().connect(false).get();
+        while (ComputerListenerImpl.isCapturePending(agent)) {
+            Thread.sleep(10);
+        }
+        return agent;
+    }
+
+    private static List<String> fingerprints(Node node) {
+        return new ArrayList<>(node.getNodeProperties().get(MsvcNodeProperty.class).getFingerprintIds());
+    }
+
+    private static String installDir(Node node) {
+        EnvVars env = new EnvVars();
+        node.getNodeProperties().get(MsvcNodeProperty.class).getEnvironment(null).apply(env);
+        return env.get("VCINSTALLDIR");
+    }
+
+    /**
+     * Provision the first node of the template
+     * @return fingerprint recorded for the template
+     */
+    private String provisionFirst() throws Exception {
+        DumbSlave first = provision("cloud-1");
+        Set<String> recorded = ToolchainTemplates.get().getFingerprints(sTemplate).get(KEY);
+        assertEquals(1, recorded.size());
+        assertEquals(new ArrayList<>(recorded), fingerprints(first));
+        assertEquals(1, countRuns());
+        return recorded.iterator().next();
+    }
+
+    @Test
+    public void appliesTemplateToNewNodes() throws Exception {
+        String fingerprint = provisionFirst();
+
+        // The fingerprint is confirmed on the agent before builds can start,
+        // without running the stand-in again
+        DumbSlave second = provision("cloud-2");
+        assertEquals(Collections.singletonList(fingerprint), fingerprints(second));
+        assertEquals("/opt/vc", installDir(second));
+        assertEquals(1, countRuns());
+    }
+
+    @Test
+    public void recapturesNodesFromChangedImage() throws Exception {
+        String fingerprint = provisionFirst();
+        long modified = mScript.lastModified();
+        writeScript("/opt/vc2");
+
+        // Builds never see the environment of the old image
+        DumbSlave second = provision("cloud-2");
+        assertFalse(fingerprints(second).contains(fingerprint));
+        assertEquals("/opt/vc2", installDir(second));
+        assertEquals(2, countRuns());
+
+        // Nodes from either image keep matching the template
+        Set<String> recorded = ToolchainTemplates.get().getFingerprints(sTemplate).get(KEY);
+        assertEquals(new HashSet<>(Arrays.asList(fingerprint, fingerprints(second).get(0))), recorded);
+        writeScript("/opt/vc");
+        assertTrue(mScript.setLastModified(modified));
+        DumbSlave third = provision("cloud-3");
+        assertEquals(Collections.singletonList(fingerprint), fingerprints(third));
+        assertEquals(2, countRuns());
+    }
+}
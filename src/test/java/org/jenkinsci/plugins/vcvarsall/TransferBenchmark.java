@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import hudson.remoting.Channel;
+import hudson.remoting.ChannelBuilder;
+import hudson.remoting.FastPipedInputStream;
+import hudson.remoting.FastPipedOutputStream;
+import jenkins.security.MasterToSlaveCallable;
+import org.jenkinsci.remoting.Role;
+import org.jenkinsci.remoting.RoleChecker;
+import org.jenkinsci.remoting.RoleSensitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Returning a capture over a remoting channel, compared with returning the
+ * whole agent environment
+ *
+ * Both ends of the channel are in this JVM, connected by a pair of pipes,
+ * so this measures serialization and the channel rather than a network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TransferBenchmark {
+
+    /**
+     * Returned by the callables on the agent end (the same JVM)
+     */
+    private static volatile VcvarsallResult sResult;
+    private static volatile EnvVars sAgent;
+
+    private static class ResultCallable extends MasterToSlaveCallable<VcvarsallResult, RuntimeException> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public VcvarsallResult call() {
+            return sResult;
+        }
+    }
+
+    private static class AgentEnvironmentCallable extends MasterToSlaveCallable<EnvVars, RuntimeException> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public EnvVars call() {
+            return sAgent;
+        }
+    }
+
+    /**
+     * Both ends are trusted, so every callable may run
+     */
+    private static class AnyRoleChecker extends RoleChecker {
+
+        @Override
+        public void check(RoleSensitive subject, Collection<Role> expected) {
+        }
+    }
+
+    @Param({"0", "200"})
+    public int padding;
+
+    private ExecutorService mExecutor;
+    private Channel mController;
+    private Channel mAgent;
+
+    @Setup
+    public void setUp() throws Exception {
+        sResult = new VcvarsallResult(BenchmarkFixture.captured(padding), null, false, new CaptureTimings());
+        sAgent = BenchmarkFixture.environment("vs2019-buildtools-x64.txt", padding);
+
+        mExecutor = Executors.newCachedThreadPool();
+        final FastPipedInputStream controllerIn = new FastPipedInputStream();
+        final FastPipedInputStream agentIn = new FastPipedInputStream();
+        final FastPipedOutputStream controllerOut = new FastPipedOutputStream(agentIn);
+        final FastPipedOutputStream agentOut = new FastPipedOutputStream(controllerIn);
+
+        // Each end waits for the other during the handshake, and only one
+        // end may negotiate the mode
+        Future<Channel> agent = mExecutor.submit(new Callable<Channel>() {
+            @Override
+            public Channel call() throws IOException {
+                return new ChannelBuilder("agent", mExecutor)
+                        .withMode(Channel.Mode.BINARY)
+                        .withRoleChecker(new AnyRoleChecker())
+                        .build(agentIn, agentOut);
+            }
+        });
+        mController = new ChannelBuilder("controller", mExecutor)
+                .withRoleChecker(new AnyRoleChecker())
+                .build(controllerIn, controllerOut);
+        mAgent = agent.get();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mController.close();
+        mAgent.close();
+        mExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public VcvarsallResult result() throws Exception {
+        return mController.call(new ResultCallable());
+    }
+
+    @Benchmark
+    public EnvVars agentEnvironment() throws Exception {
+        return mController.call(new AgentEnvironmentCallable());
+    }
+}
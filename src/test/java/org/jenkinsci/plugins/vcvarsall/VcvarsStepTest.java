@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.AbortException;
+import hudson.remoting.VirtualChannel;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VcvarsStepTest {
+
+    private static final RunVcvarsallCallable CALLABLE = new RunVcvarsallCallable("15.0", "x64", "cache", 60,
+            false, false, false, new VariableFilter("", ""), false, false, Collections.<String>emptySet());
+
+    /**
+     * Create a channel whose calls complete with the given future
+     */
+    private static VirtualChannel channel(final CompletableFuture<VcvarsallResult> future) {
+        final hudson.remoting.Future<?> remote = (hudson.remoting.Future<?>) Proxy.newProxyInstance(
+                VcvarsStepTest.class.getClassLoader(), new Class<?>[]{hudson.remoting.Future.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        try {
+                            return method.invoke(future, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        return (VirtualChannel) Proxy.newProxyInstance(
+                VcvarsStepTest.class.getClassLoader(), new Class<?>[]{VirtualChannel.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("callAsync")) {
+                            return remote;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void returnsResult() throws Exception {
+        VcvarsallResult result = VcvarsallResult.failure(CaptureException.Kind.UNSUPPORTED, "unsupported");
+        assertSame(result, VcvarsStep.call(channel(CompletableFuture.completedFuture(result)), CALLABLE, 1));
+    }
+
+    @Test
+    public void abortsOnFailure() throws Exception {
+        CompletableFuture<VcvarsallResult> future = new CompletableFuture<>();
+        future.completeExceptionally(new CaptureException(CaptureException.Kind.NONZERO_EXIT, "exit code 1"));
+        try {
+            VcvarsStep.call(channel(future), CALLABLE, 1);
+            fail();
+        } catch (AbortException e) {
+            assertEquals("vcvarsall failed: exit code 1", e.getMessage());
+        }
+    }
+
+    @Test
+    public void abortsAndCancelsOnTimeout() throws Exception {
+        CompletableFuture<VcvarsallResult> future = new CompletableFuture<>();
+        try {
+            VcvarsStep.call(channel(future), CALLABLE, 1);
+            fail();
+        } catch (AbortException e) {
+            assertEquals("vcvarsall failed: no answer from the agent within 1 seconds", e.getMessage());
+        }
+        assertTrue(future.isCancelled());
+    }
+}
@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import hudson.EnvVars;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Emulates vcvarsall on a copy of the directory layout of a Windows agent
+ * and compares the result with the environment vcvarsall printed there
+ *
+ * The layout (tree.txt) and the environments before (base.txt) and after
+ * running "vcvarsall x64" (vs2019-buildtools-x64.txt) are kept in the test
+ * resources. Paths below C:\ are moved into a temporary directory, so the
+ * test runs on any host.
+ */
+public class VcvarsallEmulatorTest {
+
+    private static final String ROOT = "C:\\";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mRoot;
+    private File mInstallDir;
+    private File mKitsRoot;
+    private EnvVars mBase;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = tmp.newFolder("C");
+        for (String line : resource("tree.txt")) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int index = line.indexOf(" = ");
+            if (index == -1) {
+                File dir = toLocal(ROOT + line);
+                assertTrue(dir.isDirectory() || dir.mkdirs());
+            } else {
+                File file = toLocal(ROOT + line.substring(0, index));
+                assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+                Files.write(file.toPath(), line.substring(index + 3).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        mInstallDir = toLocal("C:\\Program Files (x86)\\Microsoft Visual Studio\\2019\\BuildTools");
+        mKitsRoot = toLocal("C:\\Program Files (x86)\\Windows Kits\\10");
+        mBase = environment("base.txt");
+    }
+
+    private List<String> resource(String name) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (InputStream in = getClass().getResourceAsStream("VcvarsallEmulatorTest/" + name);
+             Scanner scanner = new Scanner(in, "UTF-8")) {
+            while (scanner.hasNextLine()) {
+                lines.add(scanner.nextLine().trim());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Move a Windows path below C:\ into the temporary directory
+     */
+    private File toLocal(String path) {
+        File file = mRoot;
+        for (String name : path.substring(ROOT.length()).split("\\\\")) {
+            if (!name.isEmpty()) {
+                file = new File(file, name);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Read an environment, moving every path below C:\ into the temporary
+     * directory
+     */
+    private EnvVars environment(String name) throws IOException {
+        EnvVars env = new EnvVars();
+        for (String line : resource(name)) {
+            int index = line.indexOf('=');
+            StringBuilder value = new StringBuilder();
+            for (String segment : line.substring(index + 1).split(";", -1)) {
+                if (value.length() != 0) {
+                    value.append(';');
+                }
+                if (segment.regionMatches(true, 0, ROOT, 0, ROOT.length())) {
+                    String local = toLocal(segment).getPath();
+                    value.append(segment.endsWith("\\") ? local + File.separator : local);
+                } else {
+                    value.append(segment);
+                }
+            }
+            env.put(line.substring(0, index), value.toString());
+        }
+        return env;
+    }
+
+    private EnvVars emulate(String host, String target) {
+        return VcvarsallEmulator.compute(mInstallDir, mKitsRoot, "16.0", host, target, mBase);
+    }
+
+    @Test
+    public void matchesRecordedCapture() throws IOException {
+        EnvVars real = environment("vs2019-buildtools-x64.txt");
+        EnvVars emulated = emulate("x64", "x64");
+        assertEquals(Collections.<String>emptyList(), VcvarsallEmulator.verify(emulated, real, mBase));
+        assertEquals(real.keySet(), emulated.keySet());
+    }
+
+    @Test
+    public void selectsDefaultToolsAndCompleteSdk() {
+        EnvVars emulated = emulate("x64", "x64");
+        assertEquals("14.29.30133", emulated.get("VCToolsVersion"));
+        assertEquals("10.0.19041.0", emulated.get("UCRTVersion"));
+        assertEquals("16.11.5", emulated.get("VSCMD_VER"));
+        assertEquals("x64", emulated.get("Platform"));
+        assertEquals("Native", emulated.get("CommandPromptType"));
+    }
+
+    @Test
+    public void crossCompiler() {
+        EnvVars emulated = emulate("x64", "x86");
+        assertEquals("Cross", emulated.get("CommandPromptType"));
+        assertEquals("x86", emulated.get("Platform"));
+        String[] path = emulated.get("PATH").split(";");
+        File bin = VcvarsallEmulator.file(mInstallDir, "VC", "Tools", "MSVC", "14.29.30133", "bin", "Hostx64");
+        assertEquals(new File(bin, "x86").getPath(), path[0]);
+        assertEquals(new File(bin, "x64").getPath(), path[1]);
+        assertTrue(emulated.get("LIB").contains(VcvarsallEmulator.file(mInstallDir, "VC", "Tools", "MSVC",
+                "14.29.30133", "ATLMFC", "lib", "x86").getPath()));
+    }
+
+    @Test
+    public void unsupportedLayout() throws IOException {
+        assertNull(VcvarsallEmulator.compute(tmp.newFolder("VS14"), mKitsRoot, "14.0", "x64", "x64", mBase));
+        assertNull(VcvarsallEmulator.compute(mInstallDir, tmp.newFolder("Kits"), "16.0", "x64", "x64", mBase));
+    }
+
+    @Test
+    public void verifyReportsMissingVariables() throws IOException {
+        EnvVars real = environment("vs2019-buildtools-x64.txt");
+        real.remove("DevEnvDir");
+        List<String> differences = VcvarsallEmulator.verify(emulate("x64", "x64"), real, mBase);
+        assertEquals(Collections.singletonList("DevEnvDir is not set by vcvarsall"), differences);
+    }
+
+    @Test
+    public void verifyReportsVariablesNotEmulated() throws IOException {
+        EnvVars real = environment("vs2019-buildtools-x64.txt");
+        real.put("HTMLHelpDir", "C:\\Program Files (x86)\\HTML Help Workshop");
+        real.put("PATH", real.get("PATH") + ";C:\\Program Files (x86)\\HTML Help Workshop");
+        List<String> differences = VcvarsallEmulator.verify(emulate("x64", "x64"), real, mBase);
+        assertEquals(2, differences.size());
+        assertTrue(differences.contains("HTMLHelpDir is set by vcvarsall but not emulated"));
+        assertTrue(differences.contains(
+                "Path contains C:\\Program Files (x86)\\HTML Help Workshop, which is not emulated"));
+    }
+
+    @Test
+    public void verifyReportsChangedValues() throws IOException {
+        EnvVars real = environment("vs2019-buildtools-x64.txt");
+        real.put("VisualStudioVersion", "16.1");
+        assertEquals(Collections.singletonList("VisualStudioVersion is 16.1 instead of 16.0"),
+                VcvarsallEmulator.verify(emulate("x64", "x64"), real, mBase));
+    }
+
+    @Test
+    public void hasToolset() {
+        String installDir = mInstallDir.getPath();
+        assertTrue(VsVersion.VS2019.hasToolset(installDir, HostArch.X64, TargetArch.X86_64));
+        assertTrue(VsVersion.VS2019.hasToolset(installDir, HostArch.X64, TargetArch.X86));
+        assertTrue(VsVersion.VS2019.hasToolset(installDir, HostArch.X86, TargetArch.X86));
+        assertFalse(VsVersion.VS2019.hasToolset(installDir, HostArch.X86, TargetArch.X86_64));
+        assertFalse(VsVersion.VS2019.hasToolset(installDir, HostArch.X64, TargetArch.ARM64));
+    }
+}
@@ -0,0 +1,160 @@
+package org.jenkinsci.plugins.vcvarsall;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads the instance store fixture in the test resources, which holds two
+ * Visual Studio 2017 instances (one without the C++ tools), one Visual
+ * Studio 2019 instance, a truncated state.json and a directory left behind
+ * without one
+ */
+public class VsInstanceStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File mFixture;
+
+    @Before
+    public void setUp() throws URISyntaxException {
+        mFixture = new File(getClass().getResource("VsInstanceStoreTest/_Instances").toURI());
+    }
+
+    private static Set<String> ids(Iterable<VsInstance> instances) {
+        Set<String> ids = new HashSet<>();
+        for (VsInstance instance : instances) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void parse() throws IOException {
+        String json = new String(Files.readAllBytes(new File(new File(mFixture, "1a2b3c4d"), "state.json").toPath()),
+                StandardCharsets.UTF_8);
+        VsInstance instance = VsInstanceStore.parse("1a2b3c4d", json);
+        assertEquals("1a2b3c4d", instance.getId());
+        assertEquals("C:\\Program Files (x86)\\Microsoft Visual Studio\\2017\\BuildTools\\",
+                instance.getInstallationPath());
+        assertEquals("15.9.28307.586", instance.getInstallationVersion());
+        assertEquals("15.0", instance.getMajorVersion());
+        assertEquals("Microsoft.VisualStudio.Product.BuildTools", instance.getProductId());
+        assertEquals(3, instance.getPackages().size());
+        assertTrue(instance.getPackages().contains(VsInstanceStore.VC_TOOLS_PACKAGE));
+    }
+
+    @Test
+    public void parseWithoutInstallation() throws IOException {
+        assertNull(VsInstanceStore.parse("x", "{\"installationVersion\": \"16.0.28729.10\"}"));
+        assertNull(VsInstanceStore.parse("x", "{\"installationPath\": \"C:\\\\VS\"}"));
+        VsInstance instance = VsInstanceStore.parse("x",
+                "{\"installationPath\": \"C:\\\\VS\\\\\", \"installationVersion\": \"17.4.33103.184\"}");
+        assertEquals("C:\\VS\\", instance.getInstallationPath());
+        assertEquals("17.0", instance.getMajorVersion());
+        assertNull(instance.getProductId());
+        assertEquals(Collections.<String>emptySet(), instance.getPackages());
+    }
+
+    @Test
+    public void parseSkipsOtherFields() throws IOException {
+        VsInstance instance = VsInstanceStore.parse("x", "\uFEFF{\"catalogInfo\": {\"id\": \"VisualStudio/16\", "
+                + "\"nested\": [1, -2.5e3, true, null, {\"a\": \"}]\\\"\"}]}, "
+                + "\"installationPath\": \"C:\\\\VS\\u00e9\\/\", \"launchable\": false, "
+                + "\"installationVersion\": \"16.11.32413.511\", "
+                + "\"product\": {\"version\": \"16.11\", \"id\": \"Microsoft.VisualStudio.Product.Community\"}, "
+                + "\"selectedPackages\": [{\"id\": \"A\", \"selectedState\": \"IndividuallySelected\"}, "
+                + "{\"type\": \"Component\"}, {\"id\": \"B\"}], \"localizedResources\": []}");
+        assertEquals("C:\\VS\u00e9/\\", instance.getInstallationPath());
+        assertEquals("16.0", instance.getMajorVersion());
+        assertEquals("Microsoft.VisualStudio.Product.Community", instance.getProductId());
+        assertEquals(new HashSet<>(Arrays.asList("A", "B")), instance.getPackages());
+    }
+
+    @Test
+    public void parseRejectsInvalidJson() {
+        for (String json : new String[]{"", "[]", "{\"installationPath\": \"C:\\\\VS", "{\"a\": [1, 2}",
+                "{\"installationPath\" \"C:\\\\VS\"}", "{\"installationPath\": \"\\x\"}"}) {
+            try {
+                VsInstanceStore.parse("x", json);
+                fail(json);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("invalid state.json"));
+            }
+        }
+    }
+
+    @Test
+    public void indexesFixture() {
+        VsInstanceStore store = VsInstanceStore.get(mFixture);
+        assertEquals(new HashSet<>(Arrays.asList("1a2b3c4d", "5e6f7a8b")), ids(store.byVersion("15.0")));
+        assertEquals(Collections.singleton("9c0d1e2f"), ids(store.byVersion("16.0")));
+        assertEquals(Collections.<String>emptySet(), ids(store.byVersion("17.0")));
+        assertEquals(new HashSet<>(Arrays.asList("1a2b3c4d", "9c0d1e2f")),
+                ids(store.byPackage(VsInstanceStore.VC_TOOLS_PACKAGE)));
+        assertEquals(Collections.singleton("9c0d1e2f"),
+                ids(store.byPackage("Microsoft.VisualStudio.Component.VC.Tools.ARM64")));
+        assertEquals(Collections.singleton("1a2b3c4d"),
+                ids(store.byProduct("Microsoft.VisualStudio.Product.BuildTools")));
+    }
+
+    @Test
+    public void findPrefersInstanceWithCompilers() {
+        VsInstanceStore store = VsInstanceStore.get(mFixture);
+        assertEquals("1a2b3c4d", store.find("15.0").getId());
+        assertEquals("9c0d1e2f", store.find("16.0").getId());
+        assertNull(store.find("17.0"));
+        assertNull(store.find("14.0"));
+    }
+
+    @Test
+    public void missingStore() {
+        VsInstanceStore store = VsInstanceStore.get(new File(tmp.getRoot(), "missing"));
+        assertNull(store.find("15.0"));
+        assertEquals(0, store.byPackage(VsInstanceStore.VC_TOOLS_PACKAGE).size());
+    }
+
+    @Test
+    public void reloadsWhenStoreChanges() throws IOException {
+        File dir = tmp.newFolder("_Instances");
+        for (String id : new String[]{"1a2b3c4d", "5e6f7a8b"}) {
+            File instanceDir = new File(dir, id);
+            assertTrue(instanceDir.mkdir());
+            Files.copy(new File(new File(mFixture, id), "state.json").toPath(),
+                    new File(instanceDir, "state.json").toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        VsInstanceStore store = VsInstanceStore.get(dir);
+        assertSame(store, VsInstanceStore.get(dir));
+        assertEquals("1a2b3c4d", store.find("15.0").getId());
+
+        // Removing the compilers from the preferred instance is picked up
+        File state = new File(new File(dir, "1a2b3c4d"), "state.json");
+        String json = new String(Files.readAllBytes(state.toPath()), StandardCharsets.UTF_8);
+        Files.write(state.toPath(), json.replace(VsInstanceStore.VC_TOOLS_PACKAGE, "Removed")
+                .getBytes(StandardCharsets.UTF_8));
+        assertTrue(state.setLastModified(state.lastModified() + 2000));
+        VsInstanceStore reloaded = VsInstanceStore.get(dir);
+        assertNotSame(store, reloaded);
+        assertEquals(0, reloaded.byPackage(VsInstanceStore.VC_TOOLS_PACKAGE).size());
+    }
+}